@@ -1,157 +1,259 @@
 
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.locks.Condition;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
-import org.json.JSONObject;
-
+/**
+ * A room where mentioning @AI asks the model to answer. Answers are streamed:
+ * tokens are pushed to the room in small chunks as the model produces them,
+ * and the complete answer is then stored in the history as one message.
+ * Requests run on the shared AIScheduler, so a room holds no thread of its own.
+ * Mentions that arrive close together, or while the AI is still busy, are
+ * answered together by a single request. While the backend is down, mentions
+ * are turned down right away instead of waiting. With the response cache
+ * enabled, a question already answered in the same context is answered from
+ * the cache.
+ */
 public class AIRoom extends Room {
-    private static final String OLLAMA_URL = "http://localhost:11434/api/generate";
-    private static final String OLLAMA_MODEL = "llama3";
-    private final HttpClient httpClient;
-    private final Queue<Message> messageQueue = new LinkedList<>();
+    // A chunk is pushed once it has this many tokens, or this much time passed since the last one
+    private static final int STREAM_CHUNK_TOKENS = Integer.getInteger("chat.ai.stream.chunkTokens", 8);
+    private static final long STREAM_CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.ai.stream.chunkMs", 250));
 
-    private final Lock messageLock = new ReentrantLock();
-    private final Condition messageAvailable = messageLock.newCondition();
-    
-    private volatile boolean isProcessing = false; // For animation control
+    // A request waits this long after the first mention for others to join it
+    private static final long BATCH_WINDOW_MS = Long.getLong("chat.ai.batch.windowMs", 250);
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("chat.ai.batch.maxSize", 5);
+
+    // Rooms that never use the response cache, e.g. where answers must always be fresh
+    private static final Set<String> CACHE_BYPASS_ROOMS = Arrays.stream(System.getProperty("chat.ai.cache.bypassRooms", "").split(","))
+        .map(String::strip)
+        .filter(room -> !room.isEmpty())
+        .collect(Collectors.toSet());
+
+    private final PromptWindow promptWindow = new PromptWindow();
+    private final AIScheduler.Lane lane;
+    private final int maxPendingMentions;
+    private final BatchStats batchStats = new BatchStats(MAX_BATCH_SIZE);
+    private final LatencyHistogram waitStats = new LatencyHistogram();       // From a mention to its request starting
+    private final LatencyHistogram firstTokenStats = new LatencyHistogram(); // From a request starting to its first token
+    private final LatencyHistogram inferenceStats = new LatencyHistogram();  // Whole requests that completed
+    private final ResponseCache cache;
+    private final InferenceBackend backend;
+    private volatile boolean cacheBypassed;
+
+    private final Lock mentionLock = new ReentrantLock();
+    private final List<Message> pendingMentions = new ArrayList<>();
+    private final List<Long> pendingSince = new ArrayList<>(); // nanoTime each pending mention was queued
+    private boolean batchScheduled = false; // A request will pick up pendingMentions
     
-    public AIRoom(String name) throws IOException {
-        super(name);   
-        this.httpClient = HttpClient.newHttpClient();
-        startMessageProcessor();
-        System.out.println("AI Room created: " + name);
+    /** Creates the room, with the prompt window holding the history restored from the store. */
+    public static AIRoom create(String name, MessageStore store, AIScheduler scheduler, ResponseCache cache, InferenceBackend backend) throws IOException {
+        AIRoom room = new AIRoom(name, store, scheduler, cache, backend);
+        room.seedPromptWindow();
+        Log.info("AI room created", "room", name);
+        return room;
+    }
+
+    private AIRoom(String name, MessageStore store, AIScheduler scheduler, ResponseCache cache, InferenceBackend backend) throws IOException {
+        super(name, DEFAULT_HISTORY_CAPACITY, store);   
+        this.lane = scheduler.newLane(name);
+        this.maxPendingMentions = scheduler.getMaxQueuedPerLane();
+        this.cache = cache;
+        this.backend = backend;
+        this.cacheBypassed = CACHE_BYPASS_ROOMS.contains(name);
+    }
+
+    // Before the room is used, so no message can be appended in between
+    private void seedPromptWindow() {
+        for (Message restored : getHistory(history.capacity(), Long.MAX_VALUE))
+            promptWindow.add(restored);
     }
 
     @Override
-    public void addMessage(Message message) {
-        super.addMessage(message); // Always add to history and broadcast
+    protected void onAppended(Message stored) {
+        promptWindow.add(stored);
+    }
 
+    // Runs on the room's shard, after the message was stored and broadcast. Only on the node owning the room
+    @Override
+    protected void onMessage(Message stored) {
         // Only queue message if it requires AI processing
-        if (message.getContent().toLowerCase(Locale.ROOT).startsWith("@ai")) {
-            messageLock.lock();
-            try {
-                messageQueue.add(message);
-                System.out.println("Message queue is now: " + messageQueue);
-                messageAvailable.signalAll(); // Wake up the processor thread
-            } finally {
-                messageLock.unlock();
-            }
+        if (!stored.getContent().toLowerCase(Locale.ROOT).startsWith("@ai")) return;
+
+        String cached = usesCache() ? cache.get(cacheKey(stored)) : null;
+        if (cached != null) {
+            Log.debug("AI answered from cache", "room", getName());
+            append(aiMessage(cached));
         }
+        else if (!backend.isAvailable()) 
+            append(systemMessage("The AI is unavailable right now, please ask again later"));
+        else if (!queueMention(stored)) 
+            append(systemMessage("The AI has too many questions waiting, please ask again later"));
     }
 
-    private void startMessageProcessor() {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    processNextMessage();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-        }).start();
+    public BatchStats getBatchStats() {
+        return batchStats;
+    }
+
+    public LatencyHistogram getWaitStats() {
+        return waitStats;
     }
 
-    // Ensures thread-safe access to queue and isProcessing variable
-    private void processNextMessage() throws InterruptedException {
-        Message message;
+    public LatencyHistogram getFirstTokenStats() {
+        return firstTokenStats;
+    }
 
-        messageLock.lock();
+    public LatencyHistogram getInferenceStats() {
+        return inferenceStats;
+    }
+
+    /** Mentions waiting for a request to answer them. */
+    public int getPendingMentions() {
+        mentionLock.lock();
         try {
-            while (messageQueue.isEmpty()) {
-                messageAvailable.await(); 
-            }
-            message = messageQueue.poll();
+            return pendingMentions.size();
         } finally {
-            messageLock.unlock(); 
+            mentionLock.unlock();
         }
+    }
+
+    /** Makes this room always ask the model, even if the response cache is enabled. */
+    public void setCacheBypassed(boolean bypassed) {
+        this.cacheBypassed = bypassed;
+    }
 
+    public boolean isCacheBypassed() {
+        return cacheBypassed;
+    }
+
+    private boolean usesCache() {
+        return cache.isEnabled() && !cacheBypassed;
+    }
+
+    // The question and the messages right before it. Stays the same while the mention waits
+    private String cacheKey(Message mention) {
+        List<String> context = promptWindow.linesBefore(mention, cache.getContextMessages());
+        return ResponseCache.key(backend.model(), mention.getContent(), context);
+    }
+
+    // Returns false if the room already has too many mentions waiting
+    private boolean queueMention(Message mention) {
+        mentionLock.lock();
         try {
-            startAnimation(); 
-            Message response = getAIResponse(message);
-            System.out.println("AI response: " + response.getContent());
-            super.addMessage(response);
+            if (pendingMentions.size() >= maxPendingMentions) return false;
+            if (!batchScheduled) {
+                batchScheduled = lane.submit(this::answerBatch, BATCH_WINDOW_MS);
+                if (!batchScheduled) return false;
+            }
+            pendingMentions.add(mention);
+            pendingSince.add(System.nanoTime());
+            return true;
         } finally {
-            stopAnimation();
+            mentionLock.unlock();
         }
     }
 
-    private void startAnimation() {
-        isProcessing = true;
-        Thread.startVirtualThread(() -> {
-            while (isProcessing) {
-                broadcast(systemMessage("AI is thinking..."));
-                try { Thread.sleep(5000); } 
-                catch (InterruptedException e) { break; }
-            }
-        });  
-    }
+    // Runs on the scheduler. Answers up to MAX_BATCH_SIZE waiting mentions with one request
+    private void answerBatch() {
+        List<Message> batch;
+        mentionLock.lock();
+        try {
+            int size = Math.min(pendingMentions.size(), MAX_BATCH_SIZE);
+            batch = new ArrayList<>(pendingMentions.subList(0, size));
+            pendingMentions.subList(0, size).clear();
+            for (long since : pendingSince.subList(0, size))
+                waitStats.recordSince(since);
+            pendingSince.subList(0, size).clear();
+            // Whatever is left, or arrives while this one runs, goes in the next batch
+            batchScheduled = !pendingMentions.isEmpty() && lane.submit(this::answerBatch);
+        } finally {
+            mentionLock.unlock();
+        }
+        if (batch.isEmpty()) return;
 
-    private void stopAnimation() {
-        isProcessing = false;
+        batchStats.recordBatch(batch.size());
+        Log.debug("AI answering", "room", getName(), "mentions", batch.size());
+        String answer = streamAIResponse(batch);
+
+        // An answer to several people at once is no answer to any one question
+        if (answer != null && batch.size() == 1 && usesCache()) {
+            cache.put(cacheKey(batch.get(0)), answer);
+        }
     }
 
-    private Message getAIResponse(Message message)  {
-        String prompt = buildPrompt(message);
+    // Pushes the answer to the room as it is generated, then stores it whole. Returns null if it failed
+    private String streamAIResponse(List<Message> mentions) {
+        StringBuilder answer = new StringBuilder();
+        try {
+            streamTokens(mentions, answer);
+            if (Log.isEnabled(Log.Level.DEBUG)) Log.debug("AI response", "room", getName(), "chars", answer.length());
+            appendToHistory(aiMessage(answer.toString()));
+            return answer.toString();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            if (answer.length() > 0) 
+                appendToHistory(aiMessage(answer.toString())); // Keep what the room already saw
+            if (e instanceof BackendUnavailableException) 
+                post(systemMessage(e.getMessage()));
+            else
+                post(systemMessage("Error getting AI response: " + e.getClass().getSimpleName() + ": " + e.getMessage()));
+            return null;
+        }
+    }
 
-        System.out.println("Prompt sent to the model:\n\n" + prompt.toString());
+    // Asks the backend, appending every token to answer and broadcasting them in chunks
+    private void streamTokens(List<Message> mentions, StringBuilder answer) throws IOException, InterruptedException {
+        String prompt = buildPrompt(mentions);
 
-        String jsonRequest = new JSONObject()
-            .put("model", OLLAMA_MODEL)
-            .put("prompt", prompt)
-            .put("stream", false)
-            .toString();
+        Log.debug("Prompt sent to the model", "room", getName(), "prompt", prompt);
 
-        HttpRequest request = HttpRequest.newBuilder()
-            .uri(URI.create(OLLAMA_URL))
-            .header("Content-Type", "application/json")
-            .POST(HttpRequest.BodyPublishers.ofString(jsonRequest))
-            .timeout(java.time.Duration.ofSeconds(30))
-            .build();
+        StringBuilder chunk = new StringBuilder();
+        int[] chunkTokens = {0};
+        long start = System.nanoTime();
+        long[] lastPush = {start - STREAM_CHUNK_NANOS}; // The first token goes out right away
+        boolean[] firstToken = {true};
 
-        try {
-            HttpResponse<String> response = httpClient.send(
-                request, 
-                HttpResponse.BodyHandlers.ofString()
-            );
+        backend.generate(prompt, token -> {
+            if (firstToken[0]) {
+                firstTokenStats.recordSince(start);
+                firstToken[0] = false;
+            }
+            answer.append(token);
+            chunk.append(token);
+            chunkTokens[0]++;
 
-            if (response.statusCode() != 200) {
-                throw new IOException("API Error: " + response.body());
+            long now = System.nanoTime();
+            if (chunkTokens[0] >= STREAM_CHUNK_TOKENS || now - lastPush[0] >= STREAM_CHUNK_NANOS) {
+                pushChunk(chunk);
+                chunkTokens[0] = 0;
+                lastPush[0] = now;
             }
+        });
+        inferenceStats.recordSince(start);
+        pushChunk(chunk); // The rest of the answer
+    }
 
-            return aiMessage(new JSONObject(response.body()).getString("response"));
-        } catch (IOException | InterruptedException e) {
-            return systemMessage("Error getting AI response: " +  e.getClass().getSimpleName() +  e.getMessage());
-        }
-    }  
+    // Live only: chunks are not stored, the complete answer is
+    private void pushChunk(StringBuilder chunk) {
+        if (chunk.length() == 0) return;
+        broadcast(aiMessage(chunk.toString()));
+        chunk.setLength(0);
+    }
 
     private Message aiMessage(String content) {
         return new Message("AI", content);
     }
 
-    private String buildPrompt(Message currentMessage) {
-        StringBuilder prompt = new StringBuilder();
-        
-        prompt.append(String.format("%s just said ''%s''\n", currentMessage.getSender(), currentMessage.getContent()));
-        prompt.append("The chat history is as follows:\n");
-        
-        for (int i = 0; i < this.history.size() - 1; i++) {
-            Message msg = this.history.get(i);
-            prompt.append(String.format("%s said ''%s''\n", msg.getSender(), msg.getContent()));
-        }
-        
-        return prompt.toString();
+    private String buildPrompt(List<Message> mentions) {
+        return promptWindow.buildPrompt(mentions);
     }
 
     
@@ -0,0 +1,174 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-wide scheduler for AI inference. At most a fixed number of jobs run
+ * at once, each on its own virtual thread. Every AI room submits through a
+ * Lane, which bounds how many of its jobs may wait and run. Lanes with waiting
+ * jobs take turns, so a busy room cannot starve the others. A room with
+ * nothing to do holds no thread, only its empty lane.
+ */
+public class AIScheduler {
+
+    /** A room's queue in the scheduler. */
+    public final class Lane {
+        private final String name;
+        private final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        private int inFlight = 0;
+        private int delayed = 0;       // Submitted with a delay that has not passed yet
+        private boolean ready = false; // In the ready ring
+
+        private Lane(String name) {
+            this.name = name;
+        }
+
+        /** Queues a job. Returns false if the lane already has its maximum of waiting jobs. */
+        public boolean submit(Runnable job) {
+            lock.lock();
+            try {
+                if (queued.size() + delayed >= maxQueuedPerLane) return false;
+                queued.addLast(job);
+                markReady(this);
+                dispatch();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Like submit, but the job only joins the queue once delayMs passed. It counts as waiting meanwhile. */
+        public boolean submit(Runnable job, long delayMs) {
+            if (delayMs <= 0) return submit(job);
+
+            lock.lock();
+            try {
+                if (queued.size() + delayed >= maxQueuedPerLane) return false;
+                delayed++;
+            } finally {
+                lock.unlock();
+            }
+
+            timer.schedule(() -> {
+                lock.lock();
+                try {
+                    delayed--;
+                    queued.addLast(job);
+                    markReady(this);
+                    dispatch();
+                } finally {
+                    lock.unlock();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        public int queued() {
+            lock.lock();
+            try {
+                return queued.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int inFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final int slots;
+    private final int maxQueuedPerLane;
+    private final int maxInFlightPerLane;
+    private final TimerWheel timer;
+
+    private final Lock lock = new ReentrantLock();
+    private final ArrayDeque<Lane> readyLanes = new ArrayDeque<>(); // Lanes that can start a job, in turn order
+    private int running = 0;
+
+    public AIScheduler(int slots, int maxQueuedPerLane, int maxInFlightPerLane, TimerWheel timer) {
+        this.slots = slots;
+        this.maxQueuedPerLane = maxQueuedPerLane;
+        this.maxInFlightPerLane = maxInFlightPerLane;
+        this.timer = timer;
+    }
+
+    public static AIScheduler fromSystemProperties(TimerWheel timer) {
+        return new AIScheduler(
+            Integer.getInteger("chat.ai.slots", 4),
+            Integer.getInteger("chat.ai.room.maxQueued", 16),
+            Integer.getInteger("chat.ai.room.maxInFlight", 1),
+            timer);
+    }
+
+    /** How many jobs a lane can have waiting. AI rooms apply the same limit to waiting mentions. */
+    public int getMaxQueuedPerLane() {
+        return maxQueuedPerLane;
+    }
+
+    public Lane newLane(String name) {
+        return new Lane(name);
+    }
+
+    /** Jobs running across all lanes. */
+    public int running() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private void markReady(Lane lane) {
+        if (!lane.ready && !lane.queued.isEmpty() && lane.inFlight < maxInFlightPerLane) {
+            lane.ready = true;
+            readyLanes.addLast(lane);
+        }
+    }
+
+    // Called with the lock held. Starts one job per ready lane in turn while slots are free
+    private void dispatch() {
+        while (running < slots && !readyLanes.isEmpty()) {
+            Lane lane = readyLanes.pollFirst();
+            lane.ready = false;
+            Runnable job = lane.queued.pollFirst();
+            lane.inFlight++;
+            running++;
+            markReady(lane); // Back of the line, if it has more to run
+
+            Thread.ofVirtual()
+                .name("ai-" + lane.name)
+                .start(() -> run(lane, job));
+        }
+    }
+
+    private void run(Lane lane, Runnable job) {
+        try {
+            job.run();
+        } catch (RuntimeException e) {
+            Log.error("AI job failed", "room", lane.name, "error", e);
+        } finally {
+            lock.lock();
+            try {
+                lane.inFlight--;
+                running--;
+                markReady(lane);
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
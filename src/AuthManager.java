@@ -1,132 +1,185 @@
 
 
 import java.io.*;
-import java.util.*;
-
+import java.nio.file.Path;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import org.mindrot.jbcrypt.BCrypt;
 
 
 /**
  * AuthManager is responsible for user authentication and registration.
- * It stores user credentials in a file and provides methods to authenticate or register users.
+ * It keeps user credentials in an on-disk CredentialStore and provides methods to authenticate or register users.
+ * Password hashing runs on a bounded verifier pool, outside of any lock shared with token lookups.
  */
 
-public class AuthManager {
-    private static final long TOKEN_EXPIRATION_MINUTES = 5;
+public class AuthManager implements Closeable {
+    private static final int VERIFIER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int VERIFIER_QUEUE_SIZE = Integer.getInteger("chat.auth.verifierQueue", 256);
     
-    private final Map<String, String> credentials;
-    private final String credentialsFilePath;
-    private final Map<String, Session> activeSessions; // (token, session)
-    private final Lock authLock;
-
-    public AuthManager(String credentialsFilePath) throws IOException {
-        this.credentialsFilePath = credentialsFilePath;
-        this.credentials = new HashMap<>();
-        this.activeSessions = new HashMap<>();
-        this.authLock = new ReentrantLock();
-        loadCredentials();
-    }
-
-    private void loadCredentials() {
-        File file = new File(credentialsFilePath);
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                System.err.println("Failed to create credentials file: " + e.getMessage());
-            }
-        }
+    private final CredentialStore credentials;
+    private final SessionStore sessions;
+    private final ExecutorService verifierPool;
+    private final LatencyHistogram authStats = new LatencyHistogram(); // Whole auth commands, queueing included
+    private final LatencyHistogram hashStats = new LatencyHistogram(); // bcrypt alone, on the verifier pool
+    private final AtomicLong rejected = new AtomicLong(); // Auth commands turned down because the verifier queue was full
+    private volatile BiConsumer<String, String> registrationListener; // (username, hash) of new accounts
+
+    public AuthManager(Path credentialsDirectory, TimerWheel timer) throws IOException {
+        this.credentials = new CredentialStore(credentialsDirectory);
+        this.sessions = SessionStore.fromSystemProperties(timer);
+        this.verifierPool = createVerifierPool();
+        Log.info("Loaded credential store", "users", credentials.size());
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.trim().split(":", 2);
-                if (parts.length == 2) {
-                    credentials.put(parts[0], parts[1]);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Failed to load credentials: " + e.getMessage());
-        }
+    // bcrypt is CPU bound, so it gets a small pool of platform threads instead of running
+    // on the caller's virtual thread. When the queue is full the command is turned down, so
+    // a login storm can't use more than the pool's threads.
+    private static ExecutorService createVerifierPool() {
+        return new ThreadPoolExecutor(
+            VERIFIER_THREADS, VERIFIER_THREADS,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(VERIFIER_QUEUE_SIZE),
+            runnable -> {
+                Thread thread = new Thread(runnable, "auth-verifier");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
     }
 
+    /**
+     * Returns "OK", "NEW_USER", "WRONG_PASSWORD", "BUSY" if too many passwords are waiting
+     * to be checked, or "ERROR" if the credentials could not be read, stored or checked.
+     */
     public String authenticateOrRegister(String username, String password) {
-        authLock.lock();
+        long start = System.nanoTime();
         try {
-            if (credentials.containsKey(username)) {
-                 String storedHash = credentials.get(username);
-
-                if (BCrypt.checkpw(password, storedHash)) 
-                    return "OK";
-                
-                return "WRONG_PASSWORD";
-                
-            } else {
-                String hashed = BCrypt.hashpw(password, BCrypt.gensalt());
-                credentials.put(username, hashed);
-                registerCredentials(username, hashed);
-
-                return "NEW_USER"; 
-            }    
+            String storedHash = credentials.get(username);
+            if (storedHash != null) 
+                return checkPassword(password, storedHash);
+
+            String hashed = runOnVerifier(() -> BCrypt.hashpw(password, BCrypt.gensalt()));
+
+            // Only one concurrent registration for the same username wins, the others 
+            // are treated as a login against the winner's password
+            String existingHash = credentials.putIfAbsent(username, hashed);
+            if (existingHash != null) 
+                return checkPassword(password, existingHash);
+            if (registrationListener != null) registrationListener.accept(username, hashed);
+            return "NEW_USER"; 
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return "BUSY";
+        } catch (IOException e) {
+            Log.error("Credential store failed", "user", username, "error", e.getMessage());
+            return "ERROR";
+        } catch (ExecutionException e) {
+            // E.g. BCrypt turning down a stored hash it can't parse
+            Log.error("Password check failed", "user", username, "error", String.valueOf(e.getCause()));
+            return "ERROR";
         } finally {
-            authLock.unlock();
+            authStats.recordSince(start);
         }
     }
 
-    private void registerCredentials(String username, String hashedPassword) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(credentialsFilePath, true))) {
-            writer.write(username + ":" + hashedPassword);
-            writer.newLine();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private String checkPassword(String password, String storedHash) throws ExecutionException {
+        boolean matches = runOnVerifier(() -> BCrypt.checkpw(password, storedHash));
+        return matches ? "OK" : "WRONG_PASSWORD";
     }
 
-    public String generateSessionToken(String username){
-        authLock.lock();
+    // Throws ExecutionException with what the task threw
+    private <T> T runOnVerifier(Callable<T> task) throws ExecutionException {
         try {
-            String token = UUID.randomUUID().toString();
-            long expirationTime = System.currentTimeMillis() + 
-                TimeUnit.MINUTES.toMillis(TOKEN_EXPIRATION_MINUTES);
+            return verifierPool.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    hashStats.recordSince(start);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing password", e);
+        }
+    }
 
-            activeSessions.put(token, new Session(username, expirationTime)); 
-            return token;
-        } finally {
-            authLock.unlock();
+    /** Called with the username and hash of every account registered here, e.g. to share it with other nodes. */
+    public void setRegistrationListener(BiConsumer<String, String> listener) {
+        this.registrationListener = listener;
+    }
+
+    /** Adds an account registered elsewhere, unless one with that name exists. */
+    public void importUser(String username, String hash) {
+        try {
+            credentials.putIfAbsent(username, hash);
+        } catch (IOException e) {
+            Log.error("Failed to import account", "user", username, "error", e.getMessage());
         }
+    }
+
+    public String generateSessionToken(String username){
+        return sessions.create(username);
     }  
 
+    /** Checks the token and, if it is valid, extends its session. */
     public boolean validateToken(String token) {
-        authLock.lock();
-        try {
-            Session session = activeSessions.get(token);
-
-            if (session == null) return false;
-            if (!session.isValid()) {
-                activeSessions.remove(token);
-                System.out.println("Token expired.");
-                return false;
-            }
-           return true;
-        } finally {
-            authLock.unlock();
-        }
+        return validateSession(token) != null;
+    }
+
+    /** Like validateToken, but returns the session, or null. */
+    public Session validateSession(String token) {
+        Session session = sessions.validate(token);
+        if (session == null) Log.debug("Token expired");
+        return session;
+    }
+
+    /** Records the room the session's user is in, see SessionStore.setRoom. */
+    public void setSessionRoom(Session session, Room room) {
+        sessions.setRoom(session, room);
     }
 
     public Session getSessionFromToken(String token) {
-        authLock.lock();
-        try {
-            Session session = activeSessions.get(token);
-            return session;
-        } finally {
-            authLock.unlock();
-        }
+        return sessions.get(token);
     }
 
+    public SessionStore getSessions() {
+        return sessions;
+    }
 
+    public long getUserCount() {
+        return credentials.size();
+    }
 
+    public LatencyHistogram getAuthStats() {
+        return authStats;
+    }
+
+    public LatencyHistogram getHashStats() {
+        return hashStats;
+    }
+
+    /** Auth commands turned down with "BUSY" so far. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            credentials.close();
+        } catch (IOException e) {
+            Log.error("Failed to close credential store", "error", e.getMessage());
+        }
+    }
 }
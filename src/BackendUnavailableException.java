@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+/**
+ * Thrown instead of trying a request while no inference backend is healthy.
+ * The message is meant for the room.
+ */
+public class BackendUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BackendUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * Tells writers to wait while a client is too far behind reading what was
+ * sent to it. Implemented by both transports: writes themselves never wait,
+ * since they run under the writers' monitors and would pin a virtual
+ * thread's carrier.
+ */
+public interface Backpressure {
+
+    /** Waits while the client is too far behind. Called before writing more, without holding any lock. */
+    void awaitWritable() throws InterruptedException;
+}
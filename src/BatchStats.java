@@ -0,0 +1,53 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sizes of the batches of @AI mentions answered by a single request. Kept per
+ * AI room.
+ */
+public class BatchStats {
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong mentions = new AtomicLong();
+    private final AtomicLongArray sizes; // sizes[n] counts batches of n mentions
+
+    public BatchStats(int maxBatchSize) {
+        this.sizes = new AtomicLongArray(maxBatchSize + 1);
+    }
+
+    public void recordBatch(int size) {
+        batches.incrementAndGet();
+        mentions.addAndGet(size);
+        sizes.incrementAndGet(Math.min(size, sizes.length() - 1));
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getMentions() {
+        return mentions.get();
+    }
+
+    /** Number of batches that had exactly size mentions. */
+    public long getBatchesOfSize(int size) {
+        return size < sizes.length() ? sizes.get(size) : 0;
+    }
+
+    public double getMeanBatchSize() {
+        long count = getBatches();
+        return count == 0 ? 0 : (double) getMentions() / count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (int size = 1; size < sizes.length(); size++) {
+            long count = sizes.get(size);
+            if (count == 0) continue;
+            if (histogram.length() > 0) histogram.append(' ');
+            histogram.append(size).append('x').append(count);
+        }
+        return String.format("batches=%d mentions=%d mean=%.2f sizes=[%s]", 
+            getBatches(), getMentions(), getMeanBatchSize(), histogram);
+    }
+}
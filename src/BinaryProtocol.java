@@ -0,0 +1,163 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary alternative to the line-based text protocol. A client opts in
+ * by sending "proto binary" as a text line and waiting for "PROTO binary";
+ * from then on both directions use frames:
+ *
+ *   [varint length][opcode][payload]   (length counts the opcode and payload)
+ *
+ * Client frames carry the command arguments as UTF-8. OP_LINE carries a whole
+ * text command, so every text command is also reachable in binary mode.
+ * Server frames are OP_TEXT for replies, OP_CHAT for room messages and
+ * OP_NAME, sent before an id is first used on a connection. Ids belong to
+ * the connection, and a later OP_NAME for the same id replaces its name.
+ */
+public final class BinaryProtocol {
+    public static final String NEGOTIATE_COMMAND = "proto binary";
+    public static final String NEGOTIATE_REPLY = "PROTO binary";
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    // Client to server
+    public static final int OP_LINE = 0;       // Payload: a full text command
+    public static final int OP_AUTH = 1;       // Payload: "<username> <password>"
+    public static final int OP_RECONNECT = 2;  // Payload: token
+    public static final int OP_PING = 3;
+    public static final int OP_JOIN = 4;       // Payload: room name
+    public static final int OP_MSG = 5;        // Payload: message
+    public static final int OP_LEAVE = 6;
+    public static final int OP_LIST = 7;
+    public static final int OP_WHO = 8;
+    public static final int OP_HISTORY = 9;    // Payload: "[n] [before-id]"
+    public static final int OP_HELP = 10;
+    public static final int OP_QUIT = 11;
+    public static final int OP_PROTO = 12;     // Payload: protocol name
+    public static final int OP_METRICS = 13;
+
+    // Server to client
+    public static final int OP_TEXT = 64;      // Payload: one reply line
+    public static final int OP_CHAT = 65;      // Payload: varint roomId, varint senderId, varint messageId + 1, content
+    public static final int OP_NAME = 66;      // Payload: kind, varint id, name
+
+    public static final int NAME_ROOM = 0;
+    public static final int NAME_USER = 1;
+
+    /** Longest OP_CHAT header, see putChatHeader. */
+    public static final int MAX_CHAT_HEADER = 5 + 1 + 5 + 5 + 10;
+
+    private BinaryProtocol() {}
+
+    /** Maps a lower case command word to its opcode, or OP_LINE if it has none. */
+    public static int opcodeOf(String command) {
+        switch (command) {
+            case "auth": return OP_AUTH;
+            case "reconnect": return OP_RECONNECT;
+            case "ping": return OP_PING;
+            case "join": return OP_JOIN;
+            case "msg": return OP_MSG;
+            case "leave": return OP_LEAVE;
+            case "list": return OP_LIST;
+            case "who": return OP_WHO;
+            case "history": return OP_HISTORY;
+            case "help": return OP_HELP;
+            case "quit": return OP_QUIT;
+            case "proto": return OP_PROTO;
+            case "metrics": return OP_METRICS;
+            default: return OP_LINE;
+        }
+    }
+
+    public static byte[] encodeFrame(int opcode, byte[] payload) {
+        int length = 1 + payload.length;
+        byte[] frame = new byte[varintSize(length) + length];
+        int position = putVarint(frame, 0, length);
+        frame[position++] = (byte) opcode;
+        System.arraycopy(payload, 0, frame, position, payload.length);
+        return frame;
+    }
+
+    public static byte[] encodeText(String line) {
+        return encodeFrame(OP_TEXT, line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes everything of an OP_CHAT frame but its UTF-8 content into target,
+     * which needs MAX_CHAT_HEADER bytes, and returns the header's length. The
+     * content follows it as is.
+     */
+    public static int putChatHeader(byte[] target, int roomId, int senderId, long messageId, int contentLength) {
+        int length = 1 + varintSize(roomId) + varintSize(senderId) + varintSize(messageId + 1) + contentLength;
+        int position = putVarint(target, 0, length);
+        target[position++] = (byte) OP_CHAT;
+        position = putVarint(target, position, roomId);
+        position = putVarint(target, position, senderId);
+        return putVarint(target, position, messageId + 1); // System messages have no id
+    }
+
+    public static byte[] encodeName(int kind, int id, String name) {
+        byte[] text = name.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[1 + varintSize(id) + text.length];
+        payload[0] = (byte) kind;
+        int position = putVarint(payload, 1, id);
+        System.arraycopy(text, 0, payload, position, text.length);
+        return encodeFrame(OP_NAME, payload);
+    }
+
+    public static void writeFrame(OutputStream out, int opcode, String payload) throws IOException {
+        out.write(encodeFrame(opcode, payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /** Writes an unsigned LEB128 varint and returns the position after it. */
+    public static int putVarint(byte[] target, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    /** Reads a varint from the stream. Returns -1 on a clean end of stream before the first byte. */
+    public static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return -1;
+                throw new EOFException("Truncated varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Reads a varint from bytes[position..limit). Returns the value, or -1 if the
+     * varint is incomplete; the number of bytes used is varintSize of the value.
+     */
+    public static long getVarint(byte[] bytes, int position, int limit) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) return -1;
+            int b = bytes[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+}
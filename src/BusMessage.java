@@ -0,0 +1,18 @@
+/**
+ * A message between cluster nodes: a type and its fields, all strings. The
+ * bus fills in the node it came from when it is received.
+ */
+public record BusMessage(String from, String type, String... fields) {
+
+    public static BusMessage of(String type, String... fields) {
+        return new BusMessage(null, type, fields);
+    }
+
+    public String field(int index) {
+        return fields[index];
+    }
+
+    BusMessage from(String nodeId) {
+        return new BusMessage(nodeId, type, fields);
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops sending requests to a backend that keeps failing. After a number of
+ * failures in a row the breaker opens and requests are refused for a while.
+ * Then a single trial request is let through: if it succeeds the breaker
+ * closes again, otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+    private enum State { CLOSED, OPEN, TRIAL }
+
+    private final int failureThreshold;
+    private final long openMs;
+
+    private final Lock lock = new ReentrantLock();
+    private State state = State.CLOSED;
+    private int failures = 0; // In a row
+    private long openedAt = 0;
+
+    public CircuitBreaker(int failureThreshold, long openMs) {
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    /** True if tryAcquire could succeed now. */
+    public boolean isAvailable() {
+        lock.lock();
+        try {
+            return state == State.CLOSED || (state == State.OPEN && trialDue());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Asks to send a request. Once it is done, report recordSuccess or recordFailure. */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (state == State.CLOSED) return true;
+            if (state == State.OPEN && trialDue()) {
+                state = State.TRIAL;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordSuccess() {
+        lock.lock();
+        try {
+            failures = 0;
+            state = State.CLOSED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordFailure() {
+        lock.lock();
+        try {
+            failures++;
+            if (state == State.TRIAL || failures >= failureThreshold) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** How long until a trial request is let through, 0 if requests are allowed now. */
+    public long retryInMs() {
+        lock.lock();
+        try {
+            if (state != State.OPEN) return 0;
+            return Math.max(0, openedAt + openMs - System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private boolean trialDue() {
+        return System.currentTimeMillis() - openedAt >= openMs;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return state.name().toLowerCase() + " failures=" + failures;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,14 +1,22 @@
 
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
+import java.nio.charset.StandardCharsets;
+
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
@@ -18,6 +26,10 @@ public class Client {
     private int serverPort;
 
     private PrintWriter out_;
+    private OutputStream rawOut_; // Frames are written here in binary mode
+
+    private final boolean binary;
+    private final Map<Integer, String> userNames = new HashMap<>(); // From OP_NAME frames, only used by the listener
 
     private static final int MAX_RETRIES = 5;
     private static final int BASE_DELAY_MS = 1000; // 1 second initial delay
@@ -31,8 +43,13 @@ public class Client {
     private boolean shouldQuit = false;
     
     public Client(String addr, int port) throws IOException {
+        this(addr, port, false);
+    }
+
+    public Client(String addr, int port, boolean binary) throws IOException {
         this.serverAddress = InetAddress.getByName(addr);
         this.serverPort = port;
+        this.binary = binary;
     }
 
     private SSLSocket createSocket() throws IOException {
@@ -63,7 +80,7 @@ public class Client {
                     String inputLine = userInput.readLine();
                     if (inputLine == null) break; // remove?
                     if (out_ != null) {
-                        out_.println(inputLine);
+                        send(inputLine);
                         // System.out.println("Sent line to server: " + inputLine);
                         if (inputLine.equalsIgnoreCase("quit")) {
                             shouldQuit = true;
@@ -95,6 +112,8 @@ public class Client {
                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 
+                if (binary) negotiateBinary(out, in);
+                this.rawOut_ = socket.getOutputStream();
                 this.out_ = out;
                 // Reset pong time
                 lastPongTime = System.currentTimeMillis();
@@ -106,26 +125,13 @@ public class Client {
                 Thread listenerThread = Thread.ofVirtual().start(() -> {
                     String line;
                     try {
-                        while ((line = in.readLine()) != null) {
-                            // Do not print the token to the console
-                            if (line.startsWith("TOKEN")) {
-                                String token = line.split(" ")[1]; 
-                                token_ = token;
-                                continue; // Skip printing the token
-                            } 
-
-                            if (line.startsWith("EXPIRED")){
-                                token_ = null;
-                            }
-
-                            if (line.startsWith("PONG")) {
-                                lastPongTime = System.currentTimeMillis();
-                                // System.out.println("Received pong from server"); 
-                                continue; // Skip printing the PONG message
+                        if (binary) {
+                            readFrames(new BufferedInputStream(socket.getInputStream()));
+                        } else {
+                            while ((line = in.readLine()) != null) {
+                                handleServerLine(line);
                             }
-                            System.out.print( line + "\n");
                         }
-                        
                     } catch (IOException e) {
                         System.err.println("Error reading from server: " + e.getMessage());
                     }
@@ -134,7 +140,7 @@ public class Client {
                 // Connection may not be the first, so, if the token is not null, we need to send it
                 if (token_ != null) {
                     System.out.println("Trying to restore session...");
-                    out_.println("reconnect " + token_);
+                    send("reconnect " + token_);
                 }
                 
                 Thread pingThread = new Thread(() -> {
@@ -151,7 +157,7 @@ public class Client {
                                 break;
                             }
 
-                            out_.println("ping");
+                            send("ping");
                         }
                     } catch (InterruptedException e) {
                         // Thread interrupted, exit gracefully
@@ -182,6 +188,95 @@ public class Client {
     }
     
 
+    private void handleServerLine(String line) {
+        // Do not print the token to the console
+        if (line.startsWith("TOKEN")) {
+            String token = line.split(" ")[1]; 
+            token_ = token;
+            return; // Skip printing the token
+        } 
+
+        if (line.startsWith("EXPIRED")){
+            token_ = null;
+        }
+
+        if (line.startsWith("PONG")) {
+            lastPongTime = System.currentTimeMillis();
+            // System.out.println("Received pong from server"); 
+            return; // Skip printing the PONG message
+        }
+        System.out.print( line + "\n");
+    }
+
+    // Asks for the binary protocol and waits for the server to switch, printing what comes before
+    private void negotiateBinary(PrintWriter out, BufferedReader in) throws IOException {
+        out.println(BinaryProtocol.NEGOTIATE_COMMAND);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(BinaryProtocol.NEGOTIATE_REPLY)) return;
+            handleServerLine(line);
+        }
+        throw new IOException("Connection closed while switching to the binary protocol");
+    }
+
+    private void readFrames(InputStream in) throws IOException {
+        byte[] frame = new byte[256];
+        long length;
+        while ((length = BinaryProtocol.readVarint(in)) > 0) {
+            if (length > BinaryProtocol.MAX_FRAME_LENGTH) 
+                throw new IOException("Bad frame length " + length);
+            if (length > frame.length) frame = new byte[(int) length];
+            if (in.readNBytes(frame, 0, (int) length) != length) return;
+
+            int opcode = frame[0] & 0xFF;
+            switch (opcode) {
+                case BinaryProtocol.OP_TEXT:
+                    handleServerLine(new String(frame, 1, (int) length - 1, StandardCharsets.UTF_8));
+                    break;
+                case BinaryProtocol.OP_NAME:
+                    int kind = frame[1];
+                    int id = (int) BinaryProtocol.getVarint(frame, 2, (int) length);
+                    int nameStart = 2 + BinaryProtocol.varintSize(id);
+                    if (kind == BinaryProtocol.NAME_USER)
+                        userNames.put(id, new String(frame, nameStart, (int) length - nameStart, StandardCharsets.UTF_8));
+                    break;
+                case BinaryProtocol.OP_CHAT:
+                    int position = 1;
+                    long roomId = BinaryProtocol.getVarint(frame, position, (int) length);
+                    position += BinaryProtocol.varintSize(roomId);
+                    long senderId = BinaryProtocol.getVarint(frame, position, (int) length);
+                    position += BinaryProtocol.varintSize(senderId);
+                    long messageId = BinaryProtocol.getVarint(frame, position, (int) length);
+                    position += BinaryProtocol.varintSize(messageId);
+                    String content = new String(frame, position, (int) length - position, StandardCharsets.UTF_8);
+                    System.out.print("[" + userNames.getOrDefault((int) senderId, "?") + "]: " + content + "\n");
+                    break;
+                default:
+                    System.err.println("Ignoring unknown frame " + opcode);
+            }
+        }
+    }
+
+    // Sends a typed command, as a frame with the command's opcode in binary mode
+    private void send(String command) {
+        if (!binary) {
+            out_.println(command);
+            return;
+        }
+
+        String[] parts = command.split(" ", 2);
+        int opcode = BinaryProtocol.opcodeOf(parts[0].toLowerCase());
+        String payload = opcode == BinaryProtocol.OP_LINE ? command : (parts.length > 1 ? parts[1] : "");
+        try {
+            synchronized (this) { // Input and ping threads both send
+                BinaryProtocol.writeFrame(rawOut_, opcode, payload);
+                rawOut_.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending to server: " + e.getMessage());
+        }
+    }
+
     private int calculateBackoffTimeout(int attempt) {
         return (int) (BASE_DELAY_MS * Math.pow(2, attempt));
     }
@@ -202,16 +297,17 @@ public class Client {
         System.setProperty("javax.net.ssl.trustStore", "server.jks");
         System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
     
-        if (args.length != 2) {
-            System.err.println("Usage: java ChatClient <address> <port>");
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("binary"))) {
+            System.err.println("Usage: java ChatClient <address> <port> [binary]");
             return;
         }
 
         String address = args[0];
         int port = Integer.parseInt(args[1]);
+        boolean binary = args.length == 3;
     
         try {
-            Client client = new Client(address, port);
+            Client client = new Client(address, port, binary);
             client.run();
         } catch (IOException e) {
             System.err.println("Error initializing ChatClient: " + e.getMessage());
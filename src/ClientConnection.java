@@ -0,0 +1,26 @@
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * A client connection whose reads are driven by the transport, which calls
+ * ClientHandler's onConnect, onLine, onFrame and onDisconnect.
+ */
+public interface ClientConnection extends Closeable, Backpressure {
+
+    /** Stream for everything the handler sends. Written bytes are sent on flush. */
+    OutputStream outputStream();
+
+    /**
+     * Parses inbound data as binary frames from now on. The client does not
+     * send frames before it got the reply to its "proto binary" line, so no
+     * bytes can be misread during the switch.
+     */
+    void switchToBinary();
+
+    /** Address of the client, or null if it is no longer connected. */
+    InetAddress remoteAddress();
+
+    @Override
+    default void awaitWritable() throws InterruptedException {}
+}
@@ -2,11 +2,14 @@
 
 import java.io.*;
 
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
+import java.nio.charset.StandardCharsets;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ClientHandler implements Runnable {
 
@@ -18,60 +21,133 @@ public class ClientHandler implements Runnable {
         "leave - Leave current room",
         "list - List all rooms",
         "who - List room participants",
+        "history [n] [before-id] - Show the last n messages of the room, older than before-id",
         "help - Show this message",
         "quit - Exit chat",
+        "proto binary - Switch this connection to the binary protocol, before auth",
+        "metrics - Show server metrics, from the server's own machine only",
         "If you want to connect to a room with an AI, checkout the room AI lounge ;)",
         "####################################"
 
     );
     
-    private final Socket clientSocket;
-    private final Map<String, Room> chatRooms;
-    private final Lock roomsLock;
+    private final Socket clientSocket; // Null when the connection is driven by NioServer
+    private final Closeable connection;
+    private final ClientConnection transport; // Null for blocking sockets
+    private final Backpressure backpressure;  // The transport, or the SocketOutput of a blocking socket
+    private final RoomRegistry chatRooms;
     private final AuthManager authManager;
+    private final OutboundConfig outboundConfig;
+    private final TimerWheel timer;
+    private final ServerMetrics metrics;
+    private final ClusterNode cluster; // Null unless the server is part of a cluster
+    private final ServerContext context;
+
+    private static final int DEFAULT_HISTORY_PAGE = 20;
+    private static final int MAX_HISTORY_PAGE = 100;
+
+    // Pings arrive every few seconds from every client, so only one in this many is logged
+    private static final Log.Sampler PINGS = new Log.Sampler(Long.getLong("chat.logging.pingSampleEvery", 1000));
 
     private static final long TIMEOUT_MS = 20000; 
-    private long lastPingTime = System.currentTimeMillis();
+    private volatile long lastPingTime = System.currentTimeMillis(); // Written by the reader, read by the timer
+    private TimerWheel.Timeout idleTimeout;
 
     
     private BufferedReader input;
-    private PrintWriter output;
+    private OutputStream rawOutput;
+    private MessageWriter writer; // A FrameWriter once the client switched to the binary protocol
+    private PrintWriter output;   // Wraps writer
 
     private User currentUser;
     private String currentToken;
+    private Session session; // Of currentToken, checked without a lookup
     private Room currentRoom;
 
     private boolean running = true;
+    private volatile boolean closed = false;
+
+    public ClientHandler(Socket socket, ServerContext context) throws SocketException{
+        this(socket, new SocketOutput(socket), context);
+    }
+
+    private ClientHandler(Socket socket, SocketOutput output, ServerContext context) {
+        this(socket, output, null, output, context);
+        this.rawOutput = output;
+    }
 
-    public ClientHandler(Socket socket, Map<String, Room> rooms, Lock lock, AuthManager authManager) 
-        throws SocketException{
+    /**
+     * Creates a handler for a connection whose reads are driven by the transport,
+     * which then calls onConnect, onLine, onFrame and onDisconnect instead of run.
+     */
+    public ClientHandler(ClientConnection connection, ServerContext context) {
+        this(null, connection, connection, connection, context);
+        this.rawOutput = connection.outputStream();
+        this.writer = new TextWriter(rawOutput);
+        this.output = new PrintWriter(writer, true);
+    }
+
+    private ClientHandler(Socket socket, Closeable connection, ClientConnection transport, Backpressure backpressure,
+            ServerContext context) {
         this.clientSocket = socket;
-        this.chatRooms = rooms;
-        this.roomsLock = lock;
-        this.authManager = authManager;
+        this.connection = connection;
+        this.transport = transport;
+        this.backpressure = backpressure;
+        this.chatRooms = context.rooms();
+        this.authManager = context.authManager();
+        this.outboundConfig = context.outboundConfig();
+        this.timer = context.timer();
+        this.metrics = context.metrics();
+        this.cluster = context.cluster();
+        this.context = context;
+        metrics.connectionOpened();
         
-        System.out.println("New Client Handler");
+        Log.debug("New client handler");
     }
 
     @Override
     public void run() {
         try {
             initializeStreams();
-            startTimeoutChecker();
+            onConnect();
             handleCommands();
-            System.out.println("Client disconnected");
+            Log.debug("Client disconnected");
         } catch (IOException e) {
-            System.err.println("Client error: " + e.getMessage());
+            Log.warn("Client error", "error", e.getMessage());
         } finally {
-            System.out.println("Finally block being executed");
-            cleanup();
+            onDisconnect();
         }
        
     }
 
+    public void onConnect() {
+        scheduleIdleTimeout(TIMEOUT_MS);
+        output.println("Welcome to the chat server! Type 'help' for a list of commands.");
+    }
+
+    /** Handles one command line. Returns false once the client asked to quit. */
+    public boolean onLine(String command) {
+        lastPingTime = System.currentTimeMillis(); 
+        handleCommand(command);
+        return running;
+    }
+
+    /** Handles one binary protocol frame. Returns false once the client asked to quit. */
+    public boolean onFrame(int opcode, String payload) {
+        lastPingTime = System.currentTimeMillis();
+        if (opcode == BinaryProtocol.OP_LINE) handleCommand(payload);
+        else dispatch(opcode, payload, Integer.toString(opcode));
+        return running;
+    }
+
+    public void onDisconnect() {
+        cleanup();
+    }
+
     private void initializeStreams() throws IOException {
         input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        output = new PrintWriter(clientSocket.getOutputStream(), true);
+        writer = new TextWriter(rawOutput);
+        output = new PrintWriter(writer, true);
     }
     
     private boolean handleAuthCommand(String command) {        
@@ -90,129 +166,250 @@ public class ClientHandler implements Runnable {
             case "OK":
                 token = authManager.generateSessionToken(username);
                 currentToken = token;
-                currentUser = new User(username, output);
+                session = authManager.getSessionFromToken(token);
+                replaceCurrentUser(newUser(username));
                 output.println("Welcome back, " + username);
                 output.println("TOKEN " + token);
                 return true;
             case "NEW_USER":
                 token = authManager.generateSessionToken(username);
                 currentToken = token;
-                currentUser = new User(username, output);
+                session = authManager.getSessionFromToken(token);
+                replaceCurrentUser(newUser(username));
                 output.println("Account created. Welcome, " + username);
                 output.println("TOKEN " + token);
                 return true;
             case "WRONG_PASSWORD":
                 output.println("AUTH_FAILURE Incorrect password");
                 return false;
+            case "BUSY":
+                output.println("AUTH_FAILURE Server busy, please try again later");
+                return false;
+            case "ERROR":
+                output.println("AUTH_FAILURE Could not check your account, please try again later");
+                return false;
         }
         return false; // Default case
     }
 
-    private void startTimeoutChecker() {
-        new Thread(() -> {
-            try {
-                while (!clientSocket.isClosed()) {
-                    if (System.currentTimeMillis() - lastPingTime > TIMEOUT_MS) {
-                        System.out.println("Client timed out ");
-                        clientSocket.close(); // will trigger IOException in main loop
-                        break;
-                    }
-                    Thread.sleep(10_000);
-                }
-            } catch (InterruptedException | IOException ignored) {}
-        }).start();
+    private User newUser(String username) {
+        return new User(username, writer, backpressure, outboundConfig, this::disconnect);
+    }
+
+    // Called when the user's outbound queue overflows under the DISCONNECT policy
+    private void disconnect(String reason) {
+        Log.info("Disconnecting client", "user", currentUser != null ? currentUser.getUsername() : null, "reason", reason);
+        try {
+            // The client may not be reading at all, so don't wait long for the notice to go out
+            Thread notice = Thread.startVirtualThread(() -> output.println("DISCONNECTED " + reason));
+            notice.join(1000);
+            connection.close(); // will trigger IOException in main loop
+        } catch (InterruptedException | IOException ignored) {}
+    }
+
+    private void replaceCurrentUser(User user) {
+        if (currentUser != null) 
+            currentUser.close();
+        currentUser = user;
+    }
+
+    // Resetting the timeout is just the write to lastPingTime, the check reschedules itself for the remainder
+    private void scheduleIdleTimeout(long delayMs) {
+        idleTimeout = timer.schedule(this::checkIdle, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkIdle() {
+        if (closed) return;
+
+        long idle = System.currentTimeMillis() - lastPingTime;
+        if (idle < TIMEOUT_MS) {
+            scheduleIdleTimeout(TIMEOUT_MS - idle);
+            return;
+        }
+        Log.debug("Client timed out");
+        try {
+            connection.close(); // will trigger IOException in main loop
+        } catch (IOException ignored) {}
     }
 
     private void handleCommands()  {
-        output.println("Welcome to the chat server! Type 'help' for a list of commands.");
-        
         String command;
         try {
-            while (running && (command = input.readLine()) != null) {
-                lastPingTime = System.currentTimeMillis(); 
-                handleCommand(command);
+            while (running && !(writer instanceof FrameWriter) && (command = input.readLine()) != null) {
+                awaitWritable();
+                onLine(command);
             }
+            if (running && writer instanceof FrameWriter)
+                handleFrames();
         } catch (IOException e) {
             output.println("Error reading input: " + e.getMessage());
         }
     }
 
+    // Blocking read loop for the binary protocol, reusing one payload buffer
+    private void handleFrames() throws IOException {
+        InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+        byte[] payload = new byte[256];
+        while (running) {
+            long length = BinaryProtocol.readVarint(in);
+            if (length < 0) return;
+            if (length == 0 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                throw new IOException("Bad frame length " + length);
+
+            int opcode = in.read();
+            int payloadLength = (int) length - 1;
+            if (payloadLength > payload.length)
+                payload = new byte[Math.max(payloadLength, payload.length * 2)];
+            if (opcode < 0 || in.readNBytes(payload, 0, payloadLength) != payloadLength)
+                throw new EOFException("Truncated frame");
+
+            awaitWritable();
+            onFrame(opcode, payloadLength == 0 ? "" : new String(payload, 0, payloadLength, StandardCharsets.UTF_8));
+        }
+    }
+
+    // As with the nio transport, a client that doesn't read its replies has its next command wait
+    private void awaitWritable() throws InterruptedIOException {
+        try {
+            backpressure.awaitWritable();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the client to read");
+        }
+    }
+
     private void handleCommand(String command) {
         String[] parts = command.split(" ", 2);
         String cmd = parts[0].toLowerCase();;
         String args = parts.length > 1 ? parts[1] : "";
 
-        switch (cmd) {
-            case "auth":
+        dispatch(BinaryProtocol.opcodeOf(cmd), args, cmd);
+    }
+
+    // Both protocols end up here. cmd is only used to report unknown commands
+    private void dispatch(int opcode, String args, String cmd) {
+        long start = System.nanoTime();
+        try {
+            execute(opcode, args, cmd);
+        } finally {
+            metrics.recordCommand(opcode, start);
+        }
+    }
+
+    private void execute(int opcode, String args, String cmd) {
+        switch (opcode) {
+            case BinaryProtocol.OP_AUTH:
                 handleAuthCommand(args);
                 break;
-            case "reconnect":
+            case BinaryProtocol.OP_RECONNECT:
                 handleReconnectCommand(args);
                 break;
-            case "ping":
-                System.out.println("Received ping from client");
+            case BinaryProtocol.OP_PING:
+                if (Log.isEnabled(Log.Level.DEBUG) && PINGS.sample()) 
+                    Log.debug("Received pings", "count", PINGS.count(), "sampledEvery", PINGS.every());
                 output.println("PONG");
                 break;
-            case "join":
+            case BinaryProtocol.OP_JOIN:
                 if (!isAuthenticated()) {
                     output.println("You are not authenticated. Please authenticate first.");
                     return;
                 }
                 handleJoinCommand(args);
                 break;
-            case "msg":
+            case BinaryProtocol.OP_MSG:
                 if (!isAuthenticated()) {
                     output.println("You are not authenticated. Please authenticate first.");
                     return;
                 }
-                handleMsgCommand(command);
+                handleMsgCommand(args);
                 break;
-            case "leave":
+            case BinaryProtocol.OP_LEAVE:
                 handleLeaveCommand();
                 break;
-            case "list":
+            case BinaryProtocol.OP_LIST:
                 handleListCommand();
                 break;
-            case "who":
+            case BinaryProtocol.OP_WHO:
                 if (!isAuthenticated()) {
                     output.println("You are not authenticated. Please authenticate first.");
                     return;
                 }
                 handleWhoCommand();
                 break;
-            case "help":
+            case BinaryProtocol.OP_HISTORY:
+                if (!isAuthenticated()) {
+                    output.println("You are not authenticated. Please authenticate first.");
+                    return;
+                }
+                handleHistoryCommand(args);
+                break;
+            case BinaryProtocol.OP_HELP:
                 handleHelpCommand();
                 break;
-            case "quit":
+            case BinaryProtocol.OP_QUIT:
                 output.println("Goodbye!");
                 running = false;
                 break;
+            case BinaryProtocol.OP_PROTO:
+                handleProtoCommand(args);
+                break;
+            case BinaryProtocol.OP_METRICS:
+                handleMetricsCommand();
+                break;
             default:
                 output.println("Unknown command " + cmd);
         }
     }
 
+    private void handleProtoCommand(String args) {
+        if (!args.trim().equalsIgnoreCase("binary")) {
+            output.println("Invalid format, please use: proto binary");
+            return;
+        }
+        if (writer instanceof FrameWriter) {
+            output.println("Already using the binary protocol");
+            return;
+        }
+        if (currentUser != null) {
+            output.println("The protocol can only be changed before authenticating");
+            return;
+        }
+
+        if (transport != null) transport.switchToBinary();
+        output.println(BinaryProtocol.NEGOTIATE_REPLY); // Last text line, the client waits for it
+        writer = new FrameWriter(rawOutput);
+        output = new PrintWriter(writer, true);
+    }
+
+    // Only for clients on the server's own machine, the report names rooms and backends
+    private void handleMetricsCommand() {
+        InetAddress address = clientSocket != null ? clientSocket.getInetAddress() : transport.remoteAddress();
+        if (address == null || !address.isLoopbackAddress()) {
+            output.println("The metrics command is only available from the server's machine");
+            return;
+        }
+        output.println(metrics.report().stripTrailing());
+    }
+
     private void handleReconnectCommand(String token){
 
-        if (authManager.validateToken(token)) {
-            Session lastSession = authManager.getSessionFromToken(token);
+        Session lastSession = authManager.validateSession(token);
+        if (lastSession == null && cluster != null) 
+            lastSession = cluster.adoptSession(token); // Started on another node
+        if (lastSession != null) {
             currentToken = token;
+            session = lastSession;
 
             String username = lastSession.getUsername();
-            currentUser = new User(username, output);
+            replaceCurrentUser(newUser(username));
 
             Room lastRoom = lastSession.getRoom();
             output.println("Reconnection successful as " + username);
 
             if (lastRoom != null) {
-                roomsLock.lock();
-                try {
-                    lastRoom.addParticipant(currentUser);
-                    currentRoom = lastRoom;
-                    output.println("Reconnected to room " + lastRoom.getName());
-                } finally {
-                    roomsLock.unlock();
-                }
+                lastRoom.addParticipant(currentUser);
+                currentRoom = lastRoom;
+                output.println("Reconnected to room " + lastRoom.getName());
             } else {
                 output.println("Reconnected successfully, but you were not in any room.");
             }
@@ -228,11 +425,11 @@ public class ClientHandler implements Runnable {
             output.println("Current user is null. Please authenticate first.");
             return false;
         }
-        if (currentToken == null) {
+        if (currentToken == null || session == null) {
             output.println("Current token is null, no active session. Please authenticate first.");
             return false;
         }
-        if (!authManager.validateToken(currentToken)) {
+        if (!session.touch()) {
             output.println("Invalid or expired token. Please authenticate again.");
             return false;
         }
@@ -245,12 +442,15 @@ public class ClientHandler implements Runnable {
             return;
         }
 
+        // Stops the user's outbound writer even when not in a room
+        currentUser.close(); 
+
         if (currentRoom == null) {
             output.println("No active room to logout from.");
+            currentUser = null;
             return;
         }
         if (currentRoom != null) {
-            currentUser.close(); 
             currentRoom.removeParticipant(currentUser);
             output.println("You were removed from the room");
         }        
@@ -259,21 +459,23 @@ public class ClientHandler implements Runnable {
     }
 
     private void cleanup() {
-        System.out.println("Cleaning up resources...");
+        Log.debug("Cleaning up client");
         logoutUser();
 
+        if (!closed) metrics.connectionClosed();
+        closed = true;
+        if (idleTimeout != null) idleTimeout.cancel();
         try {
             output.println("Closing socket...");
-            clientSocket.close();
-            input.close();
+            connection.close(); // Once the replies were sent, which also closes input
             output.close();
         } catch (IOException e) {
-            System.err.println("Error closing client socket: " + e.getMessage());
+            Log.warn("Error closing client socket", "error", e.getMessage());
         }
     }
 
     private void handleJoinCommand(String roomName) {
-        roomsLock.lock();
+        Room room;
         try {
             // Handle AI room creation
             if (roomName.startsWith("AI")) {
@@ -287,41 +489,37 @@ public class ClientHandler implements Runnable {
                 }
                 
                 String actualRoomName = aiParts[1].trim();
-                currentRoom = chatRooms.computeIfAbsent(actualRoomName, 
-                    k -> {
-                        try {
-                            return new AIRoom(actualRoomName);
-                        } catch (IOException e) {
-                            output.println("Error creating AI room: " + e.getMessage());
-                            return null;
-                        }
-                    });
+                room = chatRooms.getOrCreate(actualRoomName, k -> context.newRoom(k, true));
             } 
             // Regular room
             else {
-                currentRoom = chatRooms.computeIfAbsent(roomName, Room::new);
+                room = chatRooms.getOrCreate(roomName, k -> context.newRoom(k, false));
             }
-    
-            if (currentRoom != null) {
-                output.println("Joined room: " + currentRoom.getName());
-                currentRoom.addParticipant(currentUser);
-            }
-
-            // Update the session token
-            authManager.getSessionFromToken(currentToken).setRoom(currentRoom);
-            System.out.println("currentRoom: " + authManager.getSessionFromToken(currentToken).getRoom().getName());
-        } finally {
-            roomsLock.unlock();
+        } catch (IOException e) {
+            output.println("Error creating room: " + e.getMessage());
+            return;
         }
+
+        currentRoom = room;
+        output.println("Joined room: " + currentRoom.getName());
+        currentRoom.addParticipant(currentUser);
+
+        // Update the session token
+        authManager.setSessionRoom(session, currentRoom);
+        Log.debug("Joined room", "user", currentUser.getUsername(), "room", currentRoom.getName());
     }
 
-    private void handleMsgCommand(String command) {
+    private void handleMsgCommand(String message) {
         if (currentRoom == null) {
             output.println("Not in any room");
             return;
         } 
-        String message = command.substring(4); // Skip "msg "
-        currentRoom.addMessage(new Message(currentUser.getUsername(), message));
+        if (!currentRoom.isAvailable()) {
+            output.println("Room " + currentRoom.getName() + " can't take messages right now, the server that hosts it is down");
+            return;
+        }
+        if (!currentRoom.addMessage(new Message(currentUser.getUsername(), message)))
+            output.println("Your message to " + currentRoom.getName() + " was not delivered, the server that hosts it is down or too busy");
     }
     
     private void handleLeaveCommand() {
@@ -339,23 +537,19 @@ public class ClientHandler implements Runnable {
         output.println("You just left room " + currentRoom.getName());
 
         // Update the session token
-        authManager.getSessionFromToken(currentToken).setRoom(null);
+        if (session != null) authManager.setSessionRoom(session, null);
         
     }
     
     private void handleListCommand() {
-        roomsLock.lock();
-        try {
-            if (chatRooms.isEmpty()) {
-                output.println("No rooms available");
-                return;
-            }
-            
-            output.println("Available rooms:");
-            chatRooms.keySet().forEach(output::println);
-        } finally {
-            roomsLock.unlock();
+        List<String> roomNames = chatRooms.names();
+        if (roomNames.isEmpty()) {
+            output.println("No rooms available");
+            return;
         }
+        
+        output.println("Available rooms:");
+        roomNames.forEach(output::println);
     }
     
     private void handleWhoCommand() {
@@ -368,8 +562,37 @@ public class ClientHandler implements Runnable {
         currentRoom.getParticipants().stream()
             .map(User::getUsername)
             .forEach(output::println);
+        if (cluster != null) 
+            cluster.remoteParticipants(currentRoom).forEach(output::println);
     }
     
+    private void handleHistoryCommand(String args) {
+        if (currentRoom == null) {
+            output.println("Not in any room");
+            return;
+        }
+
+        int count = DEFAULT_HISTORY_PAGE;
+        long beforeId = Long.MAX_VALUE;
+        String[] parts = args.isBlank() ? new String[0] : args.trim().split("\\s+");
+        try {
+            if (parts.length > 2) throw new NumberFormatException();
+            if (parts.length >= 1) count = Integer.parseInt(parts[0]);
+            if (parts.length == 2) beforeId = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            output.println("Invalid format, please use: history [n] [before-id]");
+            return;
+        }
+        count = Math.max(1, Math.min(count, MAX_HISTORY_PAGE));
+
+        List<Message> page = currentRoom.getHistory(count, beforeId);
+        if (page.isEmpty()) {
+            output.println("No earlier messages");
+            return;
+        }
+        for (Message message : page) 
+            output.println(String.format("#%d [%s]: %s", message.getId(), message.getSender(), message.getContent()));
+    }
 
     private void handleHelpCommand() {
         output.println(HELP_MESSAGE);
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This server's part in a cluster of nodes sharing rooms and sessions over a
+ * MessageBus. Every room is owned by one node, picked by rendezvous hashing of
+ * its name over the configured nodes, so all nodes agree on it without
+ * talking. The owner keeps the room's history and log and numbers its
+ * messages. Any node can serve a user in any room: a message sent on another
+ * node is forwarded to the owner, which publishes it numbered to every node,
+ * and each node delivers it to its own members. Live messages (joins, leaves,
+ * AI answers being streamed) are published by whichever node produced them.
+ * History and participant lists are asked from the other nodes.
+ *
+ * Sessions are shared so that a client can reconnect to any node: every node
+ * keeps a copy of the sessions started elsewhere, and the node a client
+ * reconnects to adopts the session, which ends it on the node it came from.
+ * Copies end with their session, or one session lifetime after their node
+ * went down. New accounts are shared the same way.
+ *
+ * Rooms don't move when their node goes down: until it is back, their
+ * messages are turned down. Copies are only exchanged while nodes are up, so
+ * accounts registered while a node was down are not sent to it later.
+ */
+public class ClusterNode implements MessageBus.Listener, SessionStore.Listener {
+    // Message types, with their fields
+    private static final String POST = "POST";               // room, ai, sender, content: to the owner, to be numbered
+    private static final String EVENT = "EVENT";             // room, id, sender, content: numbered by the owner
+    private static final String LIVE = "LIVE";               // room, sender, content: delivered, not stored
+    private static final String HISTORY = "HISTORY";         // requestId, room, count, beforeId
+    private static final String WHO = "WHO";                 // requestId, room
+    private static final String REPLY = "REPLY";             // requestId, result...
+    private static final String SESSION = "SESSION";         // token, username, room, ai: the sender now holds it
+    private static final String SESSION_END = "SESSION_END"; // token
+    private static final String USER = "USER";               // username, hash
+
+    // A session held by another node
+    private record RemoteSession(String node, String username, String room, boolean ai, long endsAt) {}
+
+    private final MessageBus bus;
+    private final long requestTimeoutMs;
+    private final long sessionTtlMs;
+    private final Map<String, RemoteSession> remoteSessions = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<String[]>> requests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private ServerContext context;
+
+    public ClusterNode(MessageBus bus, long requestTimeoutMs, long sessionTtlMs) {
+        this.bus = bus;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.sessionTtlMs = sessionTtlMs;
+    }
+
+    /** Starts sharing sessions and accounts, and taking messages from the bus. */
+    public void start(ServerContext context) {
+        this.context = context;
+        context.authManager().getSessions().setListener(this);
+        context.authManager().setRegistrationListener((username, hash) -> bus.publish(BusMessage.of(USER, username, hash)));
+        context.timer().schedule(this::sweepRemoteSessions, sessionTtlMs, TimeUnit.MILLISECONDS);
+        bus.start(this);
+    }
+
+    public String nodeId() {
+        return bus.nodeId();
+    }
+
+    /** The node that owns the room: the one whose hash with the room name is highest. */
+    public String ownerOf(String roomName) {
+        String owner = null;
+        long best = 0;
+        for (String node : bus.nodes()) {
+            long weight = Hashing.hash(node + "/" + roomName);
+            if (owner == null || Long.compareUnsigned(weight, best) > 0 || (weight == best && node.compareTo(owner) < 0)) {
+                owner = node;
+                best = weight;
+            }
+        }
+        return owner;
+    }
+
+    public boolean owns(String roomName) {
+        return nodeId().equals(ownerOf(roomName));
+    }
+
+    /** Whether messages for the room can be numbered right now, i.e. its owner is up. */
+    public boolean isAvailable(String roomName) {
+        return bus.isUp(ownerOf(roomName));
+    }
+
+    /** Sends a message to the room's owner to be numbered and published. Returns false if the owner is down or too far behind. */
+    public boolean forward(Room room, Message message) {
+        return bus.send(ownerOf(room.getName()),
+            BusMessage.of(POST, room.getName(), Boolean.toString(room instanceof AIRoom), message.getSender(), message.getContent()));
+    }
+
+    /** Publishes a message the owner numbered, for every node to deliver. */
+    public void publishStored(Room room, Message stored) {
+        bus.publish(BusMessage.of(EVENT, room.getName(), Long.toString(stored.getId()), stored.getSender(), stored.getContent()));
+    }
+
+    /** Publishes a message that is delivered but not stored. */
+    public void publishLive(Room room, Message message) {
+        bus.publish(BusMessage.of(LIVE, room.getName(), message.getSender(), message.getContent()));
+    }
+
+    /** Asks the owner for a page of the room's history. Empty if it doesn't answer. */
+    public List<Message> history(Room room, int count, long beforeId) {
+        String[] reply = request(ownerOf(room.getName()), HISTORY, room.getName(), Integer.toString(count), Long.toString(beforeId));
+        List<Message> page = new ArrayList<>();
+        if (reply == null) return page;
+        for (int i = 0; i + 2 < reply.length; i += 3)
+            page.add(new Message(reply[i + 1], reply[i + 2]).withId(Long.parseLong(reply[i])));
+        return page;
+    }
+
+    /** Names of the room's participants on the other nodes that are up. */
+    public List<String> remoteParticipants(Room room) {
+        List<CompletableFuture<String[]>> replies = new ArrayList<>();
+        for (String node : bus.nodes()) {
+            if (!node.equals(nodeId()) && bus.isUp(node))
+                replies.add(requestAsync(node, WHO, room.getName()));
+        }
+        List<String> names = new ArrayList<>();
+        for (CompletableFuture<String[]> reply : replies) {
+            String[] result = await(reply);
+            if (result != null) names.addAll(List.of(result));
+        }
+        return names;
+    }
+
+    /**
+     * Takes over a session another node holds, or held until it went down.
+     * Returns it, or null if there is no such session.
+     */
+    public Session adoptSession(String token) {
+        RemoteSession remote = remoteSessions.remove(token);
+        if (remote == null || System.currentTimeMillis() >= remote.endsAt()) return null;
+
+        Session session = context.authManager().getSessions().adopt(token, remote.username());
+        if (!remote.room().isEmpty()) {
+            try {
+                Room room = context.rooms().getOrCreate(remote.room(), name -> context.newRoom(name, remote.ai()));
+                context.authManager().setSessionRoom(session, room);
+            } catch (IOException e) {
+                Log.warn("Could not restore the room of an adopted session", "room", remote.room(), "error", e.getMessage());
+            }
+        }
+        Log.info("Adopted session", "user", remote.username(), "from", remote.node());
+        return session;
+    }
+
+    private String[] request(String node, String type, String... fields) {
+        return await(requestAsync(node, type, fields));
+    }
+
+    private CompletableFuture<String[]> requestAsync(String node, String type, String... fields) {
+        long id = nextRequestId.incrementAndGet();
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        requests.put(id, reply);
+        reply.whenComplete((result, error) -> requests.remove(id));
+
+        String[] withId = new String[fields.length + 1];
+        withId[0] = Long.toString(id);
+        System.arraycopy(fields, 0, withId, 1, fields.length);
+        if (!bus.send(node, BusMessage.of(type, withId))) reply.complete(null);
+        return reply;
+    }
+
+    private String[] await(CompletableFuture<String[]> reply) {
+        try {
+            return reply.get(requestTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            reply.cancel(false);
+            return null;
+        }
+    }
+
+    @Override
+    public void onMessage(BusMessage message) {
+        switch (message.type()) {
+            case POST -> onPost(message);
+            case EVENT -> {
+                Room room = context.rooms().get(message.field(0));
+                if (room != null)
+                    room.deliver(new Message(message.field(2), message.field(3)).withId(Long.parseLong(message.field(1))));
+            }
+            case LIVE -> {
+                Room room = context.rooms().get(message.field(0));
+                if (room != null) room.deliver(new Message(message.field(1), message.field(2)));
+            }
+            // Answered on their own thread, history may come from disk
+            case HISTORY, WHO -> Thread.startVirtualThread(() -> answer(message));
+            case REPLY -> {
+                CompletableFuture<String[]> reply = requests.get(Long.parseLong(message.field(0)));
+                if (reply != null) reply.complete(Arrays.copyOfRange(message.fields(), 1, message.fields().length));
+            }
+            case SESSION -> {
+                String token = message.field(0);
+                remoteSessions.put(token, new RemoteSession(message.from(), message.field(1), message.field(2),
+                    Boolean.parseBoolean(message.field(3)), Long.MAX_VALUE));
+                context.authManager().getSessions().drop(token); // Adopted there, if it was here
+            }
+            case SESSION_END -> remoteSessions.remove(message.field(0));
+            case USER -> context.authManager().importUser(message.field(0), message.field(1));
+            default -> Log.warn("Unknown cluster message", "type", message.type(), "node", message.from());
+        }
+    }
+
+    // The owner numbers, stores and publishes the message, and answers @AI mentions
+    private void onPost(BusMessage message) {
+        String roomName = message.field(0);
+        if (!owns(roomName)) {
+            Log.warn("Message for a room owned elsewhere", "room", roomName, "node", message.from());
+            return;
+        }
+        try {
+            boolean ai = Boolean.parseBoolean(message.field(1));
+            Room room = context.rooms().getOrCreate(roomName, name -> context.newRoom(name, ai));
+            if (!room.addForwarded(new Message(message.field(2), message.field(3))))
+                Log.warn("Room too busy, dropped a forwarded message", "room", roomName, "node", message.from());
+        } catch (IOException e) {
+            Log.error("Could not create room for a forwarded message", "room", roomName, "error", e.getMessage());
+        }
+    }
+
+    private void answer(BusMessage request) {
+        Room room = context.rooms().get(request.field(1));
+        List<String> result = new ArrayList<>();
+        result.add(request.field(0));
+        if (room != null && request.type().equals(HISTORY)) {
+            for (Message stored : room.getHistory(Integer.parseInt(request.field(2)), Long.parseLong(request.field(3)))) {
+                result.add(Long.toString(stored.getId()));
+                result.add(stored.getSender());
+                result.add(stored.getContent());
+            }
+        } else if (room != null) {
+            for (User user : room.getParticipants())
+                result.add(user.getUsername());
+        }
+        bus.send(request.from(), BusMessage.of(REPLY, result.toArray(new String[0])));
+    }
+
+    @Override
+    public void onNodeUp(String nodeId) {
+        // It may have missed the sessions held here, or lost its copies by restarting
+        context.authManager().getSessions().forEach(session -> bus.send(nodeId, sessionMessage(session)));
+    }
+
+    @Override
+    public void onNodeDown(String nodeId) {
+        long endsAt = System.currentTimeMillis() + sessionTtlMs;
+        remoteSessions.replaceAll((token, remote) -> remote.node().equals(nodeId) && remote.endsAt() == Long.MAX_VALUE
+            ? new RemoteSession(remote.node(), remote.username(), remote.room(), remote.ai(), endsAt)
+            : remote);
+    }
+
+    @Override
+    public void sessionUpdated(Session session) {
+        bus.publish(sessionMessage(session));
+    }
+
+    @Override
+    public void sessionEnded(Session session) {
+        bus.publish(BusMessage.of(SESSION_END, session.getToken()));
+    }
+
+    @Override
+    public String toString() {
+        return "node=" + bus.nodeId() + " remoteSessions=" + remoteSessions.size() + " bus=[" + bus + "]";
+    }
+
+    private static BusMessage sessionMessage(Session session) {
+        Room room = session.getRoom();
+        return BusMessage.of(SESSION, session.getToken(), session.getUsername(),
+            room != null ? room.getName() : "", Boolean.toString(room instanceof AIRoom));
+    }
+
+    // Copies of sessions whose node went down end one session lifetime later
+    private void sweepRemoteSessions() {
+        long now = System.currentTimeMillis();
+        remoteSessions.values().removeIf(remote -> now >= remote.endsAt());
+        context.timer().schedule(this::sweepRemoteSessions, sessionTtlMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,487 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Usernames and password hashes, kept on disk so neither startup time nor heap
+ * grows with the number of accounts.
+ *
+ * users.db is an append-only file of records. users.idx is a memory-mapped
+ * open-addressing hash table whose slots point into it: 24 bits of the
+ * username's hash and the record's offset. A lookup probes the index and reads
+ * the record it points to. Registrations are queued and group-committed by a
+ * writer thread: one write and one fsync per batch, after which the batch's
+ * slots are published. The index is flushed and checkpointed at most once per
+ * interval, so opening the store only replays records after the checkpoint.
+ * A missing or damaged index is rebuilt from users.db, and a users.txt from
+ * before the store existed is imported once.
+ *
+ * Record layout: [int payloadLength][int crc32][int usernameLength][username][hash]
+ * Index layout:  [int magic][int slotBits][long count][long checkpoint][long unused][long slot]...
+ */
+public final class CredentialStore implements Closeable {
+    private static final String DATA_FILE = "users.db";
+    private static final String INDEX_FILE = "users.idx";
+    private static final String LEGACY_FILE = "users.txt";
+
+    private static final int MAGIC = 0x43524544; // "CRED"
+    private static final int INDEX_HEADER_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int INITIAL_SLOT_BITS = 10;
+    private static final int MAX_SLOT_BITS = 27; // A 1 GB index, so positions fit in the mapping's int
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final double MAX_LOAD = 0.5;
+    private static final int READ_AHEAD_BYTES = 128; // Enough for a username and a bcrypt hash
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    // Slots are written by the writer while readers probe them
+    private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private record Index(FileChannel channel, MappedByteBuffer buffer, int slotBits, int mask) {}
+
+    private record Credential(String username, String hash, int length) {}
+
+    private record Registration(String username, String hash, CompletableFuture<String> result) {}
+
+    private final Path directory;
+    private final FileChannel data; // Positional reads from any thread, appends only by the writer
+    private volatile Index index;
+
+    // Only touched by the writer once open
+    private long dataSize;
+    private volatile long count; // Read by size()
+    private long checkpoint;
+    private long lastCheckpointTime;
+
+    private final List<Registration> pending = new ArrayList<>();
+    private final Lock pendingLock = new ReentrantLock();
+    private final Condition pendingAvailable = pendingLock.newCondition();
+    private final Thread writerThread;
+
+    private volatile boolean closed = false;
+
+    public CredentialStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        Path dataPath = directory.resolve(DATA_FILE);
+        if (!Files.exists(dataPath)) importLegacy(dataPath);
+        this.data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        openIndex();
+        data.position(dataSize);
+        this.lastCheckpointTime = System.currentTimeMillis();
+        this.writerThread = Thread.ofVirtual()
+            .name("credential-store")
+            .start(this::runWriter);
+    }
+
+    /** The stored password hash, or null if there is no such user. */
+    public String get(String username) throws IOException {
+        Credential credential = find(index, username, Hashing.hash(username));
+        return credential != null ? credential.hash() : null;
+    }
+
+    /**
+     * Stores the user's hash unless the user already exists. Returns once the
+     * record is on disk: null if it was stored, otherwise the existing hash.
+     */
+    public String putIfAbsent(String username, String hash) throws IOException {
+        Registration registration = new Registration(username, hash, new CompletableFuture<>());
+        pendingLock.lock();
+        try {
+            if (closed) throw new IOException("Credential store is closed");
+            pending.add(registration);
+            pendingAvailable.signal();
+        } finally {
+            pendingLock.unlock();
+        }
+
+        try {
+            return registration.result().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while storing credentials", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to store credentials", e.getCause());
+        }
+    }
+
+    private static long fingerprint(long hash) {
+        return hash >>> OFFSET_BITS;
+    }
+
+    private Credential find(Index index, String username, long hash) throws IOException {
+        int slot = (int) hash & index.mask();
+        while (true) {
+            long value = (long) SLOT.getAcquire(index.buffer(), slotPosition(slot));
+            if (value == 0) return null;
+            if (value >>> OFFSET_BITS == fingerprint(hash)) {
+                Credential credential = readRecord((value & OFFSET_MASK) - 1);
+                if (credential != null && credential.username().equals(username))
+                    return credential;
+            }
+            slot = (slot + 1) & index.mask();
+        }
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_BYTES + slot * Long.BYTES;
+    }
+
+    // Called by the writer, or while opening. The record must already be on disk
+    private static void insert(Index index, long hash, long offset) {
+        int slot = (int) hash & index.mask();
+        while ((long) SLOT.getAcquire(index.buffer(), slotPosition(slot)) != 0)
+            slot = (slot + 1) & index.mask();
+        SLOT.setRelease(index.buffer(), slotPosition(slot), fingerprint(hash) << OFFSET_BITS | (offset + 1));
+    }
+
+    // Returns null if there is no complete, intact record at offset
+    private Credential readRecord(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD_BYTES);
+        if (!readFully(buffer, offset, RECORD_HEADER_BYTES)) return null;
+        int length = buffer.getInt(0);
+        if (length <= Integer.BYTES || length > MAX_RECORD_BYTES) return null;
+
+        if (RECORD_HEADER_BYTES + length > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+            larger.put(buffer.flip());
+            buffer = larger;
+        }
+        if (!readFully(buffer, offset, RECORD_HEADER_BYTES + length)) return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_BYTES, length);
+        if ((int) crc.getValue() != buffer.getInt(4)) return null;
+
+        int usernameLength = buffer.getInt(RECORD_HEADER_BYTES);
+        if (usernameLength < 0 || usernameLength > length - Integer.BYTES) return null;
+        int usernameOffset = RECORD_HEADER_BYTES + Integer.BYTES;
+        String username = new String(buffer.array(), usernameOffset, usernameLength, StandardCharsets.UTF_8);
+        String hash = new String(buffer.array(), usernameOffset + usernameLength,
+            RECORD_HEADER_BYTES + length - usernameOffset - usernameLength, StandardCharsets.UTF_8);
+        return new Credential(username, hash, RECORD_HEADER_BYTES + length);
+    }
+
+    // Reads until the buffer holds at least minBytes, or returns false at the end of the file
+    private boolean readFully(ByteBuffer buffer, long offset, int minBytes) throws IOException {
+        while (buffer.position() < minBytes) {
+            int read = data.read(buffer, offset + buffer.position());
+            if (read < 0) return buffer.position() >= minBytes;
+        }
+        return true;
+    }
+
+    private static ByteBuffer encode(String username, String hash) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+        int length = Integer.BYTES + name.length + hashBytes.length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        record.putInt(length).putInt(0)
+            .putInt(name.length)
+            .put(name)
+            .put(hashBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    // users.txt held "username:hash" lines. Later lines win, as they did when it was loaded into a map
+    // Imports into a file of its own, renamed once complete, so a crash leaves no users.db and the next start imports again
+    private void importLegacy(Path dataPath) throws IOException {
+        Path legacy = directory.resolve(LEGACY_FILE);
+        if (!Files.exists(legacy)) return;
+
+        Map<String, String> users = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(legacy)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(":", 2);
+                if (parts.length == 2) users.put(parts[0], parts[1]);
+            }
+        }
+
+        Path tmp = directory.resolve(DATA_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                ByteBuffer record = encode(user.getKey(), user.getValue());
+                while (record.hasRemaining()) channel.write(record);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, dataPath, StandardCopyOption.ATOMIC_MOVE);
+        Log.info("Imported users", "users", users.size(), "from", legacy);
+    }
+
+    // Maps the index and replays records written after its checkpoint. Rebuilds it if it can't be used
+    private void openIndex() throws IOException {
+        Files.deleteIfExists(directory.resolve(INDEX_FILE + ".tmp")); // Left by a rebuild that didn't finish
+        Path indexPath = directory.resolve(INDEX_FILE);
+        Index existing = Files.exists(indexPath) ? mapIndex(indexPath) : null;
+        if (existing == null) {
+            rebuildIndex();
+            return;
+        }
+
+        index = existing;
+        ByteBuffer header = existing.buffer();
+        count = header.getLong(8);
+        checkpoint = header.getLong(16);
+        if (checkpoint > data.size()) {
+            Log.warn("Credential index is ahead of its data file, rebuilding it", "file", DATA_FILE);
+            existing.channel().close();
+            rebuildIndex();
+            return;
+        }
+
+        // Slots written after the checkpoint may or may not have reached the disk
+        long offset = checkpoint;
+        long replayed = 0;
+        Credential credential;
+        while ((credential = readRecord(offset)) != null) {
+            if (count + 1 > capacity(index.slotBits())) {
+                rebuildIndex();
+                return;
+            }
+            // Every record after the checkpoint is a new user, but its slot may already be there
+            long hash = Hashing.hash(credential.username());
+            if (find(index, credential.username(), hash) == null) insert(index, hash, offset);
+            count++;
+            offset += credential.length();
+            replayed++;
+        }
+        truncateTornTail(offset);
+        if (replayed > 0) Log.info("Replayed credential records after the index checkpoint", "records", replayed);
+    }
+
+    private Index mapIndex(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size >= INDEX_HEADER_BYTES) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int slotBits = buffer.getInt(4);
+            if (buffer.getInt(0) == MAGIC && slotBits > 0 && slotBits <= MAX_SLOT_BITS
+                    && size == INDEX_HEADER_BYTES + ((long) Long.BYTES << slotBits))
+                return new Index(channel, buffer, slotBits, (1 << slotBits) - 1);
+        }
+        channel.close();
+        Log.warn("Credential index is damaged, rebuilding it", "file", path);
+        return null;
+    }
+
+    private static long capacity(int slotBits) {
+        return (long) ((1L << slotBits) * MAX_LOAD);
+    }
+
+    // Writes a new index for every intact record in users.db, then swaps it in. Called while opening, or by the writer
+    private void rebuildIndex() throws IOException {
+        long records = 0;
+        long end = 0;
+        Credential credential;
+        while ((credential = readRecord(end)) != null) {
+            records++;
+            end += credential.length();
+        }
+        truncateTornTail(end);
+
+        int slotBits = INITIAL_SLOT_BITS;
+        while (capacity(slotBits) < records + 1) slotBits++;
+        if (slotBits > MAX_SLOT_BITS) throw new IOException("Too many users for the credential index");
+
+        Path indexPath = directory.resolve(INDEX_FILE);
+        Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+        Files.deleteIfExists(tmp);
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES + ((long) Long.BYTES << slotBits));
+        Index rebuilt = new Index(channel, buffer, slotBits, (1 << slotBits) - 1);
+
+        long users = 0;
+        for (long offset = 0; offset < end; offset += credential.length()) {
+            credential = readRecord(offset);
+            long hash = Hashing.hash(credential.username());
+            if (find(rebuilt, credential.username(), hash) != null) continue; // The first record of a user wins
+            insert(rebuilt, hash, offset);
+            users++;
+        }
+        buffer.putInt(0, MAGIC).putInt(4, slotBits).putLong(8, users).putLong(16, end);
+        buffer.force();
+        Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Index previous = index;
+        index = rebuilt;
+        count = users;
+        checkpoint = end;
+        if (previous != null) previous.channel().close(); // Its mapping stays valid for readers still probing it
+    }
+
+    private void truncateTornTail(long validBytes) throws IOException {
+        if (validBytes < data.size()) {
+            Log.warn("Truncating torn tail", "file", DATA_FILE, "bytes", validBytes);
+            data.truncate(validBytes);
+            data.force(false);
+        }
+        dataSize = validBytes;
+    }
+
+    // Group commit: everything queued since the last batch is written and fsynced together
+    private void runWriter() {
+        List<Registration> batch = new ArrayList<>();
+        while (true) {
+            pendingLock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    long wait = CHECKPOINT_INTERVAL_MS - (System.currentTimeMillis() - lastCheckpointTime);
+                    if (checkpoint < dataSize && wait <= 0) break;
+                    if (checkpoint < dataSize) pendingAvailable.await(wait, TimeUnit.MILLISECONDS);
+                    else pendingAvailable.await();
+                }
+                batch.addAll(pending);
+                pending.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                pendingLock.unlock();
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+            if (checkpoint < dataSize && (closed || System.currentTimeMillis() - lastCheckpointTime >= CHECKPOINT_INTERVAL_MS))
+                writeCheckpoint();
+
+            if (closed) {
+                pendingLock.lock();
+                try {
+                    if (pending.isEmpty()) return;
+                } finally {
+                    pendingLock.unlock();
+                }
+            }
+        }
+    }
+
+    private void commit(List<Registration> batch) {
+        List<Registration> added = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        Map<String, String> inBatch = new HashMap<>();
+        try {
+            for (Registration registration : batch) {
+                String existing = inBatch.get(registration.username());
+                if (existing == null) existing = get(registration.username());
+                if (existing != null) {
+                    registration.result().complete(existing);
+                    continue;
+                }
+                inBatch.put(registration.username(), registration.hash());
+                added.add(registration);
+                records.add(encode(registration.username(), registration.hash()));
+            }
+            if (added.isEmpty()) return;
+
+            long start = dataSize;
+            long bytes = 0;
+            for (ByteBuffer record : records) bytes += record.remaining();
+            ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+            long written = 0;
+            try {
+                while (written < bytes) written += data.write(buffers);
+                data.force(false);
+            } catch (IOException e) {
+                data.truncate(start); // Don't leave a partial batch for the next one to follow
+                data.position(start);
+                throw e;
+            }
+            dataSize = start + bytes;
+
+            // The records are durable, publish them
+            if (count + added.size() > capacity(index.slotBits())) {
+                rebuildIndex();
+                lastCheckpointTime = System.currentTimeMillis();
+            } else {
+                long offset = start;
+                for (int i = 0; i < added.size(); i++) {
+                    insert(index, Hashing.hash(added.get(i).username()), offset);
+                    offset += RECORD_HEADER_BYTES + records.get(i).getInt(0);
+                }
+                count += added.size();
+            }
+            for (Registration registration : added)
+                registration.result().complete(null);
+        } catch (IOException | RuntimeException e) {
+            Log.error("Failed to store credentials", "error", e.getMessage());
+            for (Registration registration : batch)
+                registration.result().completeExceptionally(e); // No effect on those already completed
+        }
+    }
+
+    // Flushes the slots, then records that everything up to dataSize is indexed
+    private void writeCheckpoint() {
+        try {
+            Index current = index;
+            current.buffer().force();
+            current.buffer().putLong(8, count).putLong(16, dataSize);
+            current.buffer().force(0, INDEX_HEADER_BYTES);
+            checkpoint = dataSize;
+        } catch (RuntimeException e) {
+            Log.error("Failed to checkpoint credential index", "error", e.getMessage());
+        }
+        lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    public long size() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pendingLock.lock();
+        try {
+            closed = true;
+            pendingAvailable.signalAll();
+        } finally {
+            pendingLock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        data.close();
+        index.channel().close();
+    }
+}
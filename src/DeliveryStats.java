@@ -0,0 +1,40 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for messages that were not delivered as sent because a recipient
+ * could not keep up. Kept per user and per room.
+ */
+public class DeliveryStats {
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+
+    public void recordDropped() {
+        dropped.incrementAndGet();
+    }
+
+    public void recordCoalesced(int count) {
+        coalesced.addAndGet(count);
+    }
+
+    public void recordDisconnect() {
+        disconnects.incrementAndGet();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    @Override
+    public String toString() {
+        return "dropped=" + getDropped() + " coalesced=" + getCoalesced() + " disconnects=" + getDisconnects();
+    }
+}
@@ -0,0 +1,105 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message on its way out to the participants of a room. Room.broadcast builds
+ * one per message and hands the same instance to every recipient, so the text
+ * line and the binary content are each encoded to bytes once per broadcast,
+ * by the first recipient that needs them, and every recipient copies those
+ * same bytes into its connection's output buffer. Binary recipients add
+ * a header with the ids their connection uses, see FrameWriter.
+ */
+public final class EncodedMessage {
+    private final Message message; // Null for plain lines
+    private final String line;     // Null for chat messages
+    private final String roomName;
+    private final boolean system;
+
+    // Set once: recipients that race to encode keep the first result. Never modified once set
+    private volatile byte[] textBytes;
+    private volatile byte[] frame;
+    private volatile byte[] contentBytes;
+
+    private static final VarHandle TEXT_BYTES;
+    private static final VarHandle FRAME;
+    private static final VarHandle CONTENT_BYTES;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TEXT_BYTES = lookup.findVarHandle(EncodedMessage.class, "textBytes", byte[].class);
+            FRAME = lookup.findVarHandle(EncodedMessage.class, "frame", byte[].class);
+            CONTENT_BYTES = lookup.findVarHandle(EncodedMessage.class, "contentBytes", byte[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private EncodedMessage(Message message, String roomName, String line, boolean system) {
+        this.message = message;
+        this.roomName = roomName;
+        this.line = line;
+        this.system = system;
+    }
+
+    public static EncodedMessage of(Message message, String roomName) {
+        return new EncodedMessage(message, roomName, null, message.isSystem());
+    }
+
+    /** A line that is not a chat message. Binary clients receive it as an OP_TEXT frame. */
+    public static EncodedMessage ofLine(String line, boolean system) {
+        return new EncodedMessage(null, null, line, system);
+    }
+
+    public boolean isSystem() {
+        return system;
+    }
+
+    public boolean isChat() {
+        return message != null;
+    }
+
+    public String roomName() {
+        return roomName;
+    }
+
+    public String senderName() {
+        return message.getSender();
+    }
+
+    public long messageId() {
+        return message.getId();
+    }
+
+    public String line() {
+        return message != null ? "[" + message.getSender() + "]: " + message.getContent() : line;
+    }
+
+    /** The text protocol line, terminator included, in TextWriter.CHARSET. */
+    public byte[] textBytes() {
+        byte[] encoded = textBytes;
+        if (encoded == null) encoded = publish(TEXT_BYTES, (line() + System.lineSeparator()).getBytes(TextWriter.CHARSET));
+        return encoded;
+    }
+
+    /** The OP_TEXT frame of line(). Chat messages go out as OP_CHAT frames instead, see contentBytes. */
+    public byte[] frame() {
+        byte[] encoded = frame;
+        if (encoded == null) encoded = publish(FRAME, BinaryProtocol.encodeText(line()));
+        return encoded;
+    }
+
+    /** The content of a chat message in UTF-8, the body of its OP_CHAT frame. */
+    public byte[] contentBytes() {
+        byte[] encoded = contentBytes;
+        if (encoded == null) encoded = publish(CONTENT_BYTES, message.getContent().getBytes(StandardCharsets.UTF_8));
+        return encoded;
+    }
+
+    // Sets the field unless another recipient got there first, and returns what it holds
+    private byte[] publish(VarHandle field, byte[] encoded) {
+        byte[] first = (byte[]) field.compareAndExchange(this, (byte[]) null, encoded);
+        return first != null ? first : encoded;
+    }
+}
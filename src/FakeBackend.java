@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * A backend that makes up answers, for trying AI rooms and load testing
+ * without a model. Configured by a URL such as
+ * fake:?firstMs=500&tokenMs=20&tokens=30&failRate=0.1, which waits firstMs
+ * before the first token and tokenMs between the others, and fails that
+ * share of requests.
+ */
+public class FakeBackend implements InferenceBackend {
+    public static final String SCHEME = "fake";
+
+    private final String name;
+    private final long firstMs;
+    private final long tokenMs;
+    private final int tokens;
+    private final double failRate;
+
+    public FakeBackend(String url) {
+        this.name = url;
+        Map<String, String> params = new HashMap<>();
+        String query = URI.create(url).getRawSchemeSpecificPart();
+        for (String param : query.replaceFirst("^[^?]*\\?", "").split("&")) {
+            String[] parts = param.split("=", 2);
+            if (parts.length == 2) params.put(parts[0], parts[1]);
+        }
+        this.firstMs = Long.parseLong(params.getOrDefault("firstMs", "500"));
+        this.tokenMs = Long.parseLong(params.getOrDefault("tokenMs", "20"));
+        this.tokens = Integer.parseInt(params.getOrDefault("tokens", "30"));
+        this.failRate = Double.parseDouble(params.getOrDefault("failRate", "0"));
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String model() {
+        return SCHEME;
+    }
+
+    @Override
+    public void generate(String prompt, Consumer<String> onToken) throws IOException, InterruptedException {
+        Thread.sleep(firstMs);
+        if (ThreadLocalRandom.current().nextDouble() < failRate)
+            throw new IOException("API Error: fake failure");
+
+        for (int i = 0; i < tokens; i++) {
+            if (i > 0) Thread.sleep(tokenMs);
+            onToken.accept(i == 0 ? "Fake answer, token 0" : " " + i);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writer for a connection that negotiated the binary protocol. Every line
+ * written through it goes out as an OP_TEXT frame, so command replies keep
+ * using println. Chat messages go out as OP_CHAT frames: a header with this
+ * connection's ids, then the content bytes shared by every recipient. OP_NAME
+ * frames for names this client has not seen yet go first.
+ */
+public class FrameWriter extends MessageWriter {
+    private static final int MAX_NAMES = 4096; // Per kind, before a table starts over
+
+    // Ids of the names this client was told about, numbered from 0 on every connection
+    private static final class NameTable {
+        private final int kind;
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        NameTable(int kind) {
+            this.kind = kind;
+        }
+
+        // Writes an OP_NAME frame first if the name has no id yet. A full table starts over, and the client replaces the names of reused ids
+        int idOf(String name, OutputStream out) throws IOException {
+            Integer id = ids.get(name);
+            if (id != null) return id;
+            if (ids.size() == MAX_NAMES) ids.clear();
+            int next = ids.size();
+            ids.put(name, next);
+            out.write(BinaryProtocol.encodeName(kind, next, name));
+            return next;
+        }
+    }
+
+    private final StringBuilder line = new StringBuilder(128);
+    private final NameTable rooms = new NameTable(BinaryProtocol.NAME_ROOM);
+    private final NameTable users = new NameTable(BinaryProtocol.NAME_USER);
+    private final byte[] chatHeader = new byte[BinaryProtocol.MAX_CHAT_HEADER];
+
+    public FrameWriter(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        synchronized (lock) {
+            for (int i = offset; i < offset + length; i++) {
+                char c = chars[i];
+                if (c == '\n') writeLine();
+                else line.append(c);
+            }
+        }
+    }
+
+    private void writeLine() throws IOException {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        out.write(BinaryProtocol.encodeText(line.toString()));
+        line.setLength(0);
+    }
+
+    @Override
+    public void writeMessage(EncodedMessage message) throws IOException {
+        synchronized (lock) {
+            if (!message.isChat()) {
+                out.write(message.frame());
+                return;
+            }
+            int roomId = rooms.idOf(message.roomName(), out);
+            int senderId = users.idOf(message.senderName(), out);
+            byte[] content = message.contentBytes();
+            out.write(chatHeader, 0, BinaryProtocol.putChatHeader(chatHeader, roomId, senderId, message.messageId(), content.length));
+            out.write(content);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (line.length() > 0) writeLine();
+            out.close();
+        }
+    }
+}
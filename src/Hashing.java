@@ -0,0 +1,24 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 64-bit string hash used to place things by name: rooms on cluster nodes
+ * and on shards, and users in the credential index. Stable across runs and
+ * JVMs, unlike String.hashCode, since every node must agree and the index is
+ * kept on disk.
+ */
+public final class Hashing {
+    private Hashing() {}
+
+    // FNV-1a, then a finalizer so that similar names spread evenly over both the low and the high bits
+    public static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Something that generates AI answers for AI rooms, such as an Ollama server.
+ */
+public interface InferenceBackend {
+
+    /** Shown in logs. */
+    String name();
+
+    /** The model answers come from. Part of the response cache key. */
+    String model();
+
+    /**
+     * Generates an answer to prompt, handing each token to onToken as it is
+     * produced. Returns once the answer is complete.
+     */
+    void generate(String prompt, Consumer<String> onToken) throws IOException, InterruptedException;
+
+    /** False while requests would fail right away, e.g. because the backend is known to be down. */
+    default boolean isAvailable() {
+        return true;
+    }
+}
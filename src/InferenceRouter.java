@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spreads AI requests over one or more backends. Each backend runs at most a
+ * fixed number of requests at once and has its own circuit breaker. A request
+ * goes to the healthy backend with the fewest requests running, waiting for a
+ * free one if all are busy. A request that fails before its first token is
+ * tried on another backend. While every backend's breaker is open, requests
+ * fail right away with a BackendUnavailableException.
+ */
+public class InferenceRouter implements InferenceBackend {
+    private static final long BUSY_POLL_MS = 50;
+
+    private static final class Route {
+        final InferenceBackend backend;
+        final Semaphore permits;
+        final CircuitBreaker breaker;
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Route(InferenceBackend backend, int maxConcurrent, CircuitBreaker breaker) {
+            this.backend = backend;
+            this.permits = new Semaphore(maxConcurrent);
+            this.breaker = breaker;
+        }
+    }
+
+    private final List<Route> routes = new ArrayList<>();
+    private final String model;
+    private final long acquireTimeoutMs;
+    private final AtomicInteger nextStart = new AtomicInteger(); // Rotates ties between equally loaded backends
+
+    public InferenceRouter(List<InferenceBackend> backends, int maxConcurrent, int breakerFailures, long breakerOpenMs, long acquireTimeoutMs) {
+        for (InferenceBackend backend : backends)
+            routes.add(new Route(backend, maxConcurrent, new CircuitBreaker(breakerFailures, breakerOpenMs)));
+        this.model = backends.get(0).model();
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    /** Backends from chat.ai.url, a comma separated list of Ollama endpoints or fake: URLs. */
+    public static InferenceRouter fromSystemProperties() {
+        String model = System.getProperty("chat.ai.model", "llama3");
+        Duration timeout = Duration.ofMillis(Long.getLong("chat.ai.timeoutMs", 30000));
+
+        List<InferenceBackend> backends = new ArrayList<>();
+        for (String url : System.getProperty("chat.ai.url", "http://localhost:11434/api/generate").split(",")) {
+            url = url.strip();
+            if (url.isEmpty()) continue;
+            backends.add(url.startsWith(FakeBackend.SCHEME + ":") ? new FakeBackend(url) : new OllamaBackend(url, model, timeout));
+        }
+
+        return new InferenceRouter(
+            backends,
+            Integer.getInteger("chat.ai.backend.maxConcurrent", 4),
+            Integer.getInteger("chat.ai.breaker.failures", 3),
+            Long.getLong("chat.ai.breaker.openMs", 10000),
+            timeout.toMillis());
+    }
+
+    @Override
+    public String name() {
+        return "router" + routes.stream().map(route -> route.backend.name()).toList();
+    }
+
+    @Override
+    public String model() {
+        return model;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        for (Route route : routes) {
+            if (route.breaker.isAvailable()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void generate(String prompt, Consumer<String> onToken) throws IOException, InterruptedException {
+        List<Route> tried = new ArrayList<>();
+        while (true) {
+            Route route = acquire(tried);
+            boolean[] started = {false};
+            boolean succeeded = false;
+            try {
+                route.backend.generate(prompt, token -> {
+                    started[0] = true;
+                    onToken.accept(token);
+                });
+                succeeded = true;
+                return;
+            } catch (IOException e) {
+                // Nothing reached the room yet, so another backend can answer instead
+                tried.add(route);
+                if (started[0] || tried.size() == routes.size()) throw e;
+                Log.warn("AI backend failed, trying another", "backend", route.backend.name(), "error", e);
+            } finally {
+                // Anything but a complete answer counts against the backend
+                if (succeeded) route.breaker.recordSuccess();
+                else route.breaker.recordFailure();
+                route.inFlight.decrementAndGet();
+                route.permits.release();
+            }
+        }
+    }
+
+    // Takes a permit on the least loaded healthy backend not tried yet, waiting up to acquireTimeoutMs for one
+    private Route acquire(List<Route> tried) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + acquireTimeoutMs;
+        while (true) {
+            Route leastLoaded = null;
+            int start = Math.floorMod(nextStart.getAndIncrement(), routes.size());
+            for (int i = 0; i < routes.size(); i++) {
+                Route route = routes.get((start + i) % routes.size());
+                if (tried.contains(route) || !route.breaker.isAvailable()) continue;
+                if (leastLoaded == null || route.inFlight.get() < leastLoaded.inFlight.get())
+                    leastLoaded = route;
+            }
+            if (leastLoaded == null) throw unavailable();
+
+            if (leastLoaded.permits.tryAcquire(BUSY_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (leastLoaded.breaker.tryAcquire()) {
+                    leastLoaded.inFlight.incrementAndGet();
+                    return leastLoaded;
+                }
+                leastLoaded.permits.release(); // Another request took the trial
+            }
+            if (System.currentTimeMillis() >= deadline) throw new IOException("All AI backends are busy");
+        }
+    }
+
+    private BackendUnavailableException unavailable() {
+        long retryInMs = Long.MAX_VALUE;
+        for (Route route : routes)
+            retryInMs = Math.min(retryInMs, route.breaker.retryInMs());
+        return new BackendUnavailableException(
+            "The AI is unavailable right now, please ask again in " + Math.max(1, (retryInMs + 999) / 1000) + " s");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Route route : routes) {
+            if (out.length() > 0) out.append(", ");
+            out.append(route.backend.name()).append(" inFlight=").append(route.inFlight.get())
+                .append(" breaker=").append(route.breaker);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,511 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Headless load generator speaking the text protocol, for measuring a server,
+ * usually a local one, before and after a change. It simulates many clients
+ * that log in, join a room and then keep doing operations picked from a
+ * weighted mix: send a message, move to another room, leave, or log in again
+ * on a new connection. Which room a client joins follows a uniform or Zipf
+ * distribution, so rooms can be all alike or a few big ones and many small.
+ *
+ * Every message carries the time it was sent, and each delivery to each
+ * member is measured end to end. In closed mode a client starts its next
+ * operation once the server answered the previous one, which finds the most
+ * the server can take. In open mode operations start on a fixed schedule
+ * whether or not the server keeps up, and latency is measured from the time
+ * each operation was due, so a stall counts against every operation it held
+ * back (corrected for coordinated omission). Latency from the time messages
+ * were actually sent is shown next to it.
+ *
+ * Usage: LoadGenerator [host] [port] [key=value ...], with the keys of Settings.
+ */
+public class LoadGenerator {
+
+    private enum Op { MSG, JOIN, LEAVE, AUTH }
+
+    private static final long KEEPALIVE_NANOS = TimeUnit.SECONDS.toNanos(10); // Like Client, the server drops connections idle for 20s
+
+    /** Options, given as key=value arguments. */
+    static final class Settings {
+        private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+        static {
+            DEFAULTS.put("clients", "100");        // Simulated clients, each with its own connection and account
+            DEFAULTS.put("rooms", "20");           // Rooms the clients spread over
+            DEFAULTS.put("roomSizes", "uniform");  // uniform, or zipf:<exponent> for a few big rooms and many small ones
+            DEFAULTS.put("mix", "msg:96,join:2,leave:2"); // Relative weights of msg, join, leave and auth. Every auth costs the server a bcrypt check
+            DEFAULTS.put("mode", "closed");        // closed or open, see the class comment
+            DEFAULTS.put("rate", "1000");          // Operations per second over all clients, in open mode
+            DEFAULTS.put("thinkMs", "0");          // Pause between a client's operations, in closed mode
+            DEFAULTS.put("durationSec", "30");     // Measured time, after the warmup
+            DEFAULTS.put("warmupSec", "5");        // Load that is not measured, so the server's JIT and caches settle
+            DEFAULTS.put("messageBytes", "64");    // Approximate size of each message
+            DEFAULTS.put("user", "load");          // Account names are this plus the client number
+            DEFAULTS.put("password", "load");
+            DEFAULTS.put("logins", "8");           // Logins running at once at startup. New accounts cost the server a bcrypt hash
+            DEFAULTS.put("drivers", "4");          // Threads starting operations in open mode
+            DEFAULTS.put("timeoutMs", "5000");     // How long a client waits for an answer before counting a timeout
+            DEFAULTS.put("reportSec", "5");        // How often progress is printed
+        }
+
+        private final Map<String, String> values = new LinkedHashMap<>(DEFAULTS);
+
+        Settings(List<String> args) {
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (equals < 0 || !DEFAULTS.containsKey(arg.substring(0, equals)))
+                    throw new IllegalArgumentException("Unknown option " + arg + ", options are " + DEFAULTS.keySet());
+                values.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+
+        String get(String key) {
+            return values.get(key);
+        }
+
+        int getInt(String key) {
+            return Integer.parseInt(values.get(key));
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+
+    // What is measured. Replaced by a fresh one once the warmup is over
+    private static final class Stats {
+        final LatencyHistogram delivery = new LatencyHistogram();          // From a message being sent to a member reading it
+        final LatencyHistogram deliveryFromDue = new LatencyHistogram();   // From the message being due, in open mode
+        final LatencyHistogram[] ops = new LatencyHistogram[Op.values().length]; // From an operation being due to its answer
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();    // Lost connections and refused logins
+        final AtomicLong late = new AtomicLong();        // Open mode: operations started over a millisecond after they were due
+        final AtomicLong skipped = new AtomicLong();     // Open mode: operations due while their client was logging in again
+        final long startNanos = System.nanoTime();
+
+        Stats() {
+            for (int i = 0; i < ops.length; i++)
+                ops[i] = new LatencyHistogram();
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Settings settings;
+    private final boolean open;
+    private final long timeoutMs;
+    private final String padding;
+    private final Op[] mix = new Op[1000];    // Each operation as many times as its share of the weights
+    private final double[] roomCdf;           // Probability of picking each room or one before it
+    private final Semaphore loginPermits;
+    private final SSLSocketFactory sslFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    private final List<SimClient> clients = new ArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1); // Every client tried to log in
+    private final AtomicLong loggedInClients = new AtomicLong(); // Clients that logged in at startup
+    private volatile Stats stats = new Stats();
+    private volatile LatencyHistogram interval = new LatencyHistogram(); // Deliveries since the last progress line
+    private volatile boolean running = true;
+
+    public LoadGenerator(String host, int port, Settings settings) {
+        this.host = host;
+        this.port = port;
+        this.settings = settings;
+        this.open = switch (settings.get("mode")) {
+            case "open" -> true;
+            case "closed" -> false;
+            default -> throw new IllegalArgumentException("mode must be closed or open");
+        };
+        this.timeoutMs = settings.getInt("timeoutMs");
+        this.padding = "x".repeat(Math.max(1, settings.getInt("messageBytes") - 40)); // The stamps take about 40
+        this.loginPermits = new Semaphore(settings.getInt("logins"));
+        parseMix(settings.get("mix"));
+        this.roomCdf = roomCdf(settings.getInt("rooms"), settings.get("roomSizes"));
+    }
+
+    private void parseMix(String spec) {
+        Map<Op, Double> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] opAndWeight = part.strip().split(":");
+            weights.put(Op.valueOf(opAndWeight[0].strip().toUpperCase()), Double.parseDouble(opAndWeight[1]));
+        }
+        double total = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+        int slot = 0;
+        double cumulative = 0;
+        for (Map.Entry<Op, Double> weight : weights.entrySet()) {
+            cumulative += weight.getValue();
+            int end = (int) Math.round(cumulative / total * mix.length);
+            Arrays.fill(mix, slot, end, weight.getKey());
+            slot = end;
+        }
+        Arrays.fill(mix, slot, mix.length, Op.MSG);
+    }
+
+    private static double[] roomCdf(int rooms, String sizes) {
+        double exponent = 0; // Zipf with exponent 0 is uniform
+        if (sizes.startsWith("zipf:")) exponent = Double.parseDouble(sizes.substring(5));
+        else if (!sizes.equals("uniform")) throw new IllegalArgumentException("roomSizes must be uniform or zipf:<exponent>");
+
+        double[] cdf = new double[rooms];
+        double total = 0;
+        for (int i = 0; i < rooms; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = total;
+        }
+        for (int i = 0; i < rooms; i++) cdf[i] /= total;
+        return cdf;
+    }
+
+    private String pickRoom() {
+        int index = Arrays.binarySearch(roomCdf, ThreadLocalRandom.current().nextDouble());
+        return "load-" + (index >= 0 ? index : Math.min(-index - 1, roomCdf.length - 1));
+    }
+
+    private Op pickOp() {
+        return mix[ThreadLocalRandom.current().nextInt(mix.length)];
+    }
+
+    // A simulated client. Its thread owns the connection: it logs in, reads everything the server sends,
+    // and in closed mode also starts each operation once the previous one was answered
+    private final class SimClient {
+        private final String username;
+        private final Lock writeLock = new ReentrantLock(); // Open mode drivers write while the client thread reads
+        private volatile Socket socket;
+        private volatile Writer out;
+        private BufferedReader reader; // Only used by the client thread
+        private volatile String room;
+        private volatile boolean loggedIn = false;
+        private volatile long lastSent = System.nanoTime();
+
+        // The operation waiting for its answer. Only one at a time, others are sent as messages meanwhile
+        private volatile Op pending;
+        private volatile long pendingDue;
+        private volatile long pendingSent;
+
+        SimClient(int number) {
+            this.username = settings.get("user") + number;
+        }
+
+        void run(CountDownLatch ready) {
+            boolean first = true;
+            while (running) {
+                try {
+                    connect(first);
+                    if (first) {
+                        loggedInClients.incrementAndGet();
+                        ready.countDown();
+                        first = false;
+                        started.await();
+                        if (!open) next(); // Later logins start the next operation once they are answered
+                    }
+                    readLoop();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (!running) return;
+                    if (first) {
+                        System.err.println(username + " could not log in: " + e.getMessage());
+                        ready.countDown();
+                        return;
+                    }
+                    if (pending != Op.AUTH) {
+                        if (stats.failures.incrementAndGet() <= 5) System.err.println(username + " lost its connection: " + e.getMessage());
+                        pending = null;
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100)); // Don't spin while the server is away
+                    }
+                } finally {
+                    loggedIn = false;
+                    closeQuietly();
+                }
+            }
+        }
+
+        // Opens a connection, logs in and joins the client's room, or a new one the first time
+        private void connect(boolean first) throws IOException {
+            if (first) loginPermits.acquireUninterruptibly();
+            try {
+                Socket plain = new Socket();
+                plain.connect(new InetSocketAddress(host, port), (int) timeoutMs);
+                SSLSocket ssl = (SSLSocket) sslFactory.createSocket(plain, host, port, true);
+                ssl.setSoTimeout((int) timeoutMs);
+                socket = ssl;
+                out = new BufferedWriter(new OutputStreamWriter(ssl.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader in = new BufferedReader(new InputStreamReader(ssl.getInputStream(), StandardCharsets.UTF_8));
+                reader = in;
+
+                if (first) room = pickRoom();
+                send("auth " + username + " " + settings.get("password") + (room != null ? "\njoin " + room : ""));
+                String line;
+                while ((line = in.readLine()) != null && !line.startsWith("TOKEN ")) {
+                    if (line.startsWith("AUTH_FAILURE")) throw new IOException(line);
+                }
+                if (line == null) throw new IOException("Connection closed while logging in");
+                loggedIn = true;
+                if (pending == Op.AUTH) answered(); // A login started by the AUTH operation
+            } finally {
+                if (first) loginPermits.release();
+            }
+        }
+
+        private void readLoop() throws IOException {
+            while (running) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (SocketTimeoutException e) {
+                    if (pending != null && System.nanoTime() - pendingSent > TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+                        stats.timeouts.incrementAndGet();
+                        pending = null;
+                        if (!open) next();
+                    }
+                    continue;
+                }
+                if (line == null) throw new IOException("Connection closed by the server");
+                onLine(line);
+            }
+        }
+
+        private void onLine(String line) throws IOException {
+            if (line.startsWith("[")) {
+                int stamp = line.indexOf("]: lg ");
+                if (stamp < 0) return;
+                onDelivery(line, stamp);
+            } else if (line.startsWith("Joined room: ")) {
+                if (pending == Op.JOIN) answered();
+            } else if (line.startsWith("You just left room")) {
+                if (pending == Op.LEAVE) answered();
+            } else if (line.startsWith("DISCONNECTED")) {
+                throw new IOException(line);
+            }
+        }
+
+        // A message line: [sender]: lg <due> <sent> <padding>
+        private void onDelivery(String line, int stamp) throws IOException {
+            long now = System.nanoTime();
+            int dueStart = stamp + 6;
+            int dueEnd = line.indexOf(' ', dueStart);
+            int sentEnd = line.indexOf(' ', dueEnd + 1);
+            if (dueEnd < 0 || sentEnd < 0) return;
+            long due = Long.parseLong(line, dueStart, dueEnd, 10);
+            long sent = Long.parseLong(line, dueEnd + 1, sentEnd, 10);
+
+            Stats current = stats;
+            current.delivered.incrementAndGet();
+            current.delivery.record(now - sent);
+            current.deliveryFromDue.record(now - due);
+            interval.record(now - due);
+
+            boolean own = line.regionMatches(1, username, 0, username.length()) && line.charAt(username.length() + 1) == ']';
+            if (own && pending == Op.MSG) answered();
+        }
+
+        private void answered() throws IOException {
+            Op op = pending;
+            pending = null;
+            if (op == null) return;
+            if (op != Op.MSG) stats.ops[op.ordinal()].record(System.nanoTime() - pendingDue);
+            if (!open) next();
+        }
+
+        // Closed mode: starts the next operation right away, or after the think time
+        private void next() throws IOException {
+            long thinkMs = settings.getInt("thinkMs");
+            if (thinkMs > 0) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(thinkMs));
+            if (running) start(pickOp(), System.nanoTime());
+        }
+
+        /** Starts an operation that was due at the given time. */
+        void start(Op op, long due) throws IOException {
+            if (!loggedIn) {
+                stats.skipped.incrementAndGet();
+                return;
+            }
+            if (pending != null && op != Op.MSG) op = Op.MSG; // Only one operation waits for its answer
+            if (room == null && (op == Op.MSG || op == Op.LEAVE)) op = Op.JOIN;
+
+            long now = System.nanoTime();
+            if (pending == null) {
+                pendingDue = due;
+                pendingSent = now;
+                pending = op;
+            }
+            switch (op) {
+                case MSG -> send("msg lg " + due + " " + now + " " + padding);
+                case JOIN -> {
+                    String previous = room;
+                    room = pickRoom();
+                    send((previous != null ? "leave\n" : "") + "join " + room);
+                }
+                case LEAVE -> {
+                    room = null;
+                    send("leave");
+                }
+                case AUTH -> closeQuietly(); // The client thread logs in again on a new connection
+            }
+            stats.sent.incrementAndGet();
+        }
+
+        private void send(String lines) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(lines);
+                out.write('\n');
+                out.flush();
+                lastSent = System.nanoTime();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void keepAlive() {
+            if (!loggedIn || System.nanoTime() - lastSent < KEEPALIVE_NANOS) return;
+            try {
+                send("ping");
+            } catch (IOException e) {
+                // The client thread notices the broken connection
+            }
+        }
+
+        void closeQuietly() {
+            Socket current = socket;
+            if (current == null) return;
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /** Logs every client in, runs the warmup and the measured time, and prints the report. */
+    public void run() throws InterruptedException {
+        int count = settings.getInt("clients");
+        System.out.println("Load generator " + host + ":" + port + " " + settings);
+        CountDownLatch ready = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            SimClient client = new SimClient(i);
+            clients.add(client);
+            Thread.ofPlatform().name("sim-" + i).stackSize(256 * 1024).daemon().start(() -> client.run(ready));
+        }
+        Thread.ofPlatform().name("keepalive").daemon().start(() -> {
+            while (running) {
+                LockSupport.parkNanos(KEEPALIVE_NANOS / 4);
+                clients.forEach(SimClient::keepAlive);
+            }
+        });
+        ready.await();
+        System.out.println("Logged in " + loggedInClients.get() + " of " + count + " clients");
+        started.countDown();
+
+        if (open) startDrivers();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(settings.getInt("warmupSec")));
+        stats = new Stats();
+
+        long reportMs = TimeUnit.SECONDS.toMillis(settings.getInt("reportSec"));
+        long endMs = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(settings.getInt("durationSec"));
+        long lastDelivered = 0;
+        while (System.currentTimeMillis() < endMs) {
+            Thread.sleep(Math.min(reportMs, Math.max(1, endMs - System.currentTimeMillis())));
+            LatencyHistogram last = interval;
+            interval = new LatencyHistogram();
+            long delivered = stats.delivered.get();
+            System.out.printf("%5ds delivered=%d/s p50=%.1fms p99=%.1fms timeouts=%d failures=%d%n",
+                (System.nanoTime() - stats.startNanos) / 1_000_000_000, (delivered - lastDelivered) * 1000 / reportMs,
+                last.getPercentile(0.5) / 1e6, last.getPercentile(0.99) / 1e6, stats.timeouts.get(), stats.failures.get());
+            lastDelivered = delivered;
+        }
+        running = false;
+        report(stats);
+        clients.forEach(SimClient::closeQuietly);
+    }
+
+    // Open mode: every driver starts the operations of its clients in turn, each at its due time
+    private void startDrivers() {
+        int drivers = Math.min(settings.getInt("drivers"), clients.size());
+        double rate = Double.parseDouble(settings.get("rate"));
+        long start = System.nanoTime();
+        for (int d = 0; d < drivers; d++) {
+            List<SimClient> own = new ArrayList<>();
+            for (int i = d; i < clients.size(); i += drivers) own.add(clients.get(i));
+            long periodNanos = (long) (1e9 * drivers / rate); // Between two operations of this driver
+            long offset = periodNanos * d / drivers;
+            Thread.ofPlatform().name("driver-" + d).daemon().start(() -> {
+                for (long n = 0; running; n++) {
+                    long due = start + offset + n * periodNanos;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    else if (wait < -1_000_000) stats.late.incrementAndGet();
+                    try {
+                        own.get((int) (n % own.size())).start(pickOp(), due);
+                    } catch (IOException e) {
+                        // The client thread notices the broken connection and logs in again
+                    }
+                }
+            });
+        }
+    }
+
+    private void report(Stats stats) {
+        double seconds = (System.nanoTime() - stats.startNanos) / 1e9;
+        System.out.println();
+        System.out.printf("mode=%s clients=%d rooms=%d roomSizes=%s mix=%s%s%n", settings.get("mode"), clients.size(),
+            roomCdf.length, settings.get("roomSizes"), settings.get("mix"), open ? " rate=" + settings.get("rate") + "/s" : "");
+        System.out.printf("throughput operations=%.0f/s deliveries=%.0f/s over %.1fs%n",
+            stats.sent.get() / seconds, stats.delivered.get() / seconds, seconds);
+        if (open)
+            System.out.println("delivery (from due, corrected) " + stats.deliveryFromDue.format(TimeUnit.MILLISECONDS));
+        System.out.println("delivery (from send)           " + stats.delivery.format(TimeUnit.MILLISECONDS));
+        for (Op op : Op.values()) {
+            if (op != Op.MSG && stats.ops[op.ordinal()].getCount() > 0)
+                System.out.println("op." + op.name().toLowerCase() + " " + stats.ops[op.ordinal()].format(TimeUnit.MILLISECONDS));
+        }
+        System.out.println("timeouts=" + stats.timeouts.get() + " failures=" + stats.failures.get()
+            + (open ? " lateStarts=" + stats.late.get() + " skipped=" + stats.skipped.get() : ""));
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("javax.net.ssl.trustStore", "server.jks");
+        System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
+
+        List<String> options = new ArrayList<>(List.of(args));
+        String host = !options.isEmpty() && !options.get(0).contains("=") ? options.remove(0) : "127.0.0.1";
+        int port = !options.isEmpty() && !options.get(0).contains("=") ? Integer.parseInt(options.remove(0)) : 5000;
+        try {
+            new LoadGenerator(host, port, new Settings(options)).run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
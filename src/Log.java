@@ -0,0 +1,279 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log. A call only fills a preallocated slot of a ring
+ * buffer, without taking a lock, and a background thread formats the entries
+ * and writes them to stdout. Lines look like
+ *
+ *   2026-01-01T12:00:00.123Z INFO  [main] Server started port=5000
+ *
+ * with each key=value pair given after the message. Values are turned into
+ * text by the writer thread, so they should not change after the call.
+ * Calls for a disabled level return right away: with the fixed argument
+ * counts below they allocate nothing, as long as the caller does not box or
+ * concatenate anything itself. If the buffer is full the entry is dropped and
+ * counted rather than blocking the caller.
+ */
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    /** Lets one in every n events through, for events too frequent to log each time. */
+    public static final class Sampler {
+        private final long every;
+        private final AtomicLong count = new AtomicLong();
+
+        public Sampler(long every) {
+            this.every = Math.max(1, every);
+        }
+
+        /** Counts an event and returns true if it should be logged. */
+        public boolean sample() {
+            return count.incrementAndGet() % every == 1 % every;
+        }
+
+        /** Events counted so far, logged or not. */
+        public long count() {
+            return count.get();
+        }
+
+        public long every() {
+            return every;
+        }
+    }
+
+    private static final int MAX_FIELDS = 3;
+    private static final int WRITE_CHUNK_CHARS = 32 * 1024;
+
+    // A slot of the ring. sequence == position + 1 once published at position
+    private static final class Entry {
+        volatile long sequence;
+        long timeMillis;
+        Level level;
+        String thread;
+        long threadId; // Shown instead of the name for unnamed threads, such as most virtual ones
+        String message;
+        final String[] keys = new String[MAX_FIELDS];
+        final Object[] values = new Object[MAX_FIELDS];
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("chat.logging.level", "INFO").toUpperCase());
+    private static final Entry[] ring;
+    private static final int mask;
+    private static final AtomicLong tail = new AtomicLong(); // Next position to claim
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread writer;
+    private static final AtomicBoolean writerParked = new AtomicBoolean(); // Only the caller that clears it unparks
+    private static long head = 0; // Next position to write, only used by the writer
+    private static volatile long flushed = 0; // Everything before it reached the stream
+    private static long droppedReported = 0;
+    private static long lastMillis = -1;  // Writer only: the last timestamp, formatted once per millisecond
+    private static String lastTimestamp;
+
+    static {
+        int size = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.logging.bufferSize", 8192) - 1)) << 1;
+        ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i;
+        }
+        mask = size - 1;
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+        writer = new Thread(() -> writeLoop(out), "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log() {}
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) <= 0;
+    }
+
+    public static void error(String message) { log(Level.ERROR, message, null, null, null, null, null, null); }
+    public static void error(String message, String k1, Object v1) { log(Level.ERROR, message, k1, v1, null, null, null, null); }
+    public static void error(String message, String k1, Object v1, String k2, Object v2) { log(Level.ERROR, message, k1, v1, k2, v2, null, null); }
+    public static void error(String message, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.ERROR, message, k1, v1, k2, v2, k3, v3); }
+
+    public static void warn(String message) { log(Level.WARN, message, null, null, null, null, null, null); }
+    public static void warn(String message, String k1, Object v1) { log(Level.WARN, message, k1, v1, null, null, null, null); }
+    public static void warn(String message, String k1, Object v1, String k2, Object v2) { log(Level.WARN, message, k1, v1, k2, v2, null, null); }
+    public static void warn(String message, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.WARN, message, k1, v1, k2, v2, k3, v3); }
+
+    public static void info(String message) { log(Level.INFO, message, null, null, null, null, null, null); }
+    public static void info(String message, String k1, Object v1) { log(Level.INFO, message, k1, v1, null, null, null, null); }
+    public static void info(String message, String k1, Object v1, String k2, Object v2) { log(Level.INFO, message, k1, v1, k2, v2, null, null); }
+    public static void info(String message, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.INFO, message, k1, v1, k2, v2, k3, v3); }
+
+    public static void debug(String message) { log(Level.DEBUG, message, null, null, null, null, null, null); }
+    public static void debug(String message, String k1, Object v1) { log(Level.DEBUG, message, k1, v1, null, null, null, null); }
+    public static void debug(String message, String k1, Object v1, String k2, Object v2) { log(Level.DEBUG, message, k1, v1, k2, v2, null, null); }
+    public static void debug(String message, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.DEBUG, message, k1, v1, k2, v2, k3, v3); }
+
+    /** Entries dropped so far because the buffer was full. */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /** Waits up to a second for everything logged so far to be written. */
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (flushed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void log(Level level, String message, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (!isEnabled(level)) return;
+
+        // Claim a position whose slot the writer has released, or give up if the ring is full
+        long position = tail.get();
+        Entry entry;
+        while (true) {
+            entry = ring[(int) (position & mask)];
+            long available = entry.sequence - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (available < 0) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get(); // Another caller claimed it first
+            }
+        }
+
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level = level;
+        entry.thread = Thread.currentThread().getName();
+        entry.threadId = Thread.currentThread().threadId();
+        entry.message = message;
+        entry.keys[0] = k1;
+        entry.values[0] = v1;
+        entry.keys[1] = k2;
+        entry.values[1] = v2;
+        entry.keys[2] = k3;
+        entry.values[2] = v3;
+        entry.sequence = position + 1; // Publishes the fields above
+
+        if (writerParked.get() && writerParked.compareAndSet(true, false)) LockSupport.unpark(writer);
+    }
+
+    private static void writeLoop(OutputStream out) {
+        StringBuilder lines = new StringBuilder(WRITE_CHUNK_CHARS + 1024);
+        while (true) {
+            try {
+                boolean wroteAny = false;
+                Entry entry;
+                while ((entry = ring[(int) (head & mask)]).sequence == head + 1) {
+                    format(entry, lines);
+                    entry.message = null; // Don't keep values alive until the slot is reused
+                    Arrays.fill(entry.values, null);
+                    entry.sequence = head + ring.length; // Hands the slot back to callers
+                    head++;
+                    wroteAny = true;
+                    if (lines.length() >= WRITE_CHUNK_CHARS) write(out, lines);
+                }
+                write(out, lines);
+                long droppedNow = dropped.get();
+                if (droppedNow != droppedReported) {
+                    out.write((Instant.now() + " WARN  [log-writer] Log buffer full, entries dropped dropped="
+                        + (droppedNow - droppedReported) + "\n").getBytes(StandardCharsets.UTF_8));
+                    droppedReported = droppedNow;
+                    wroteAny = true;
+                }
+                if (wroteAny) {
+                    out.flush();
+                    flushed = head;
+                    continue;
+                }
+
+                // Nothing to write: park until a caller publishes something
+                writerParked.set(true);
+                if (ring[(int) (head & mask)].sequence != head + 1) LockSupport.park();
+                writerParked.set(false);
+            } catch (IOException | RuntimeException e) {
+                // Nowhere left to report it. Keep going so callers never fill up the ring for good
+            }
+        }
+    }
+
+    private static void write(OutputStream out, StringBuilder lines) throws IOException {
+        if (lines.length() == 0) return;
+        out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+        lines.setLength(0);
+    }
+
+    // Appends the entry as one line, plus a stack trace for errors with an exception
+    private static void format(Entry entry, StringBuilder line) {
+        if (entry.timeMillis != lastMillis) {
+            lastMillis = entry.timeMillis;
+            lastTimestamp = Instant.ofEpochMilli(lastMillis).toString();
+        }
+        line.append(lastTimestamp).append(' ');
+        line.append(entry.level);
+        for (int pad = entry.level.name().length(); pad < 5; pad++) line.append(' ');
+        line.append(" [");
+        if (entry.thread.isEmpty()) line.append('#').append(entry.threadId);
+        else line.append(entry.thread);
+        line.append("] ").append(entry.message);
+
+        Throwable thrown = null;
+        for (int i = 0; i < MAX_FIELDS; i++) {
+            if (entry.keys[i] == null) continue;
+            Object value = entry.values[i];
+            line.append(' ').append(entry.keys[i]).append('=');
+            appendValue(line, String.valueOf(value));
+            if (value instanceof Throwable t) thrown = t;
+        }
+        line.append('\n');
+
+        if (thrown != null && entry.level == Level.ERROR) {
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    // Quotes values with spaces, quotes or line breaks, so every entry stays on one line
+    private static void appendValue(StringBuilder line, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ' ' || c == '"' || c == '\n' || c == '\r' || c == '=';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                default -> line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
@@ -2,14 +2,30 @@
 
 // In case we want to add more functionality to the message (timestamp, sender, etc.)
 public class Message {
+    public static final long NO_ID = -1;
+
+    private final long id; // Sequence number within the room, assigned when added to its history
     private final String sender;
     private final String content;
 
     public Message(String sender, String content) {
+        this(NO_ID, sender, content);
+    }
+
+    private Message(long id, String sender, String content) {
+        this.id = id;
         this.sender = sender;
         this.content = content;
     }
 
+    public Message withId(long id) {
+        return new Message(id, sender, content);
+    }
+
+    public long getId() {
+        return id;
+    }
+
     public String getSender() {
         return sender;
     }
@@ -18,6 +34,10 @@ public class Message {
         return content;
     }
 
+    public boolean isSystem() {
+        return "System".equals(sender);
+    }
+
     @Override
     public String toString() {
         return sender + ": " + content;
@@ -0,0 +1,41 @@
+import java.io.Closeable;
+import java.util.Set;
+
+/**
+ * Carries messages between the nodes of a cluster. Messages from one node to
+ * another arrive in the order they were sent, as long as the receiver stays
+ * up; messages for a node that is down are dropped. Implementations decide how
+ * nodes find and reach each other.
+ */
+public interface MessageBus extends Closeable {
+
+    /** Receives what other nodes send, and changes in which nodes are up. */
+    interface Listener {
+        void onMessage(BusMessage message);
+
+        /**
+         * The node can be reached again, or for the first time. Called on a
+         * thread of its own: what it sends to that node waits for room in the
+         * node's queue rather than overflowing it.
+         */
+        void onNodeUp(String nodeId);
+
+        void onNodeDown(String nodeId);
+    }
+
+    /** Starts delivering to the listener, on threads of the bus. */
+    void start(Listener listener);
+
+    String nodeId();
+
+    /** Every node of the cluster, including this one and those that are down. */
+    Set<String> nodes();
+
+    boolean isUp(String nodeId);
+
+    /** Queues the message for one node. Returns false if that node is down. */
+    boolean send(String nodeId, BusMessage message);
+
+    /** Queues the message for every other node that is up. */
+    void publish(BusMessage message);
+}
@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed-capacity, array-backed ring buffer of a room's most recent messages.
+ * Messages are stamped with sequential ids as they are appended, so a page can
+ * be located by index arithmetic instead of a scan.
+ * Not thread-safe: only the owning room's tasks touch it, and they run one
+ * at a time on the room's shard, see RoomShards.
+ */
+public class MessageHistory {
+    private final Message[] buffer;
+    private int head = 0;    // Index of the oldest message
+    private int size = 0;
+    private long nextId = 0;
+
+    public MessageHistory(int capacity) {
+        if (capacity <= 0) 
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        this.buffer = new Message[capacity];
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Id of the oldest message still in memory, or the next id if empty. */
+    public long oldestId() {
+        return nextId - size;
+    }
+
+    /**
+     * Stamps the message with the next id and stores it, overwriting the oldest 
+     * message when the buffer is full. Returns the stamped message.
+     */
+    public Message append(Message message) {
+        Message stamped = message.withId(nextId++);
+
+        if (size < buffer.length) {
+            buffer[(head + size) % buffer.length] = stamped;
+            size++;
+            return stamped;
+        }
+        buffer[head] = stamped;
+        head = (head + 1) % buffer.length;
+        return stamped;
+    }
+
+    /**
+     * Refills an empty history with already stamped messages, oldest first, 
+     * e.g. the tail of a persistent log. Numbering continues after the last one.
+     */
+    public void restore(List<Message> messages) {
+        if (size != 0) 
+            throw new IllegalStateException("History already has messages");
+
+        int skip = Math.max(0, messages.size() - buffer.length);
+        for (Message message : messages.subList(skip, messages.size())) {
+            buffer[size++] = message;
+        }
+        if (size > 0) 
+            nextId = buffer[size - 1].getId() + 1;
+    }
+
+    /**
+     * Returns up to n messages with id lower than beforeId, oldest first.
+     * Only the returned messages are copied.
+     */
+    public List<Message> page(int n, long beforeId) {
+        long end = Math.min(beforeId, nextId);  // Exclusive
+        long start = Math.max(oldestId(), end - Math.max(n, 0));
+        if (start >= end) return Collections.emptyList();
+
+        List<Message> page = new ArrayList<>((int) (end - start));
+        for (long id = start; id < end; id++) {
+            page.add(buffer[(int) ((head + (id - oldestId())) % buffer.length)]);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Owns the per-room message logs under one base directory.
+ * Each room gets its own directory, prefixed with its kind so AI rooms come back as AI rooms.
+ */
+public class MessageLogManager implements Closeable {
+    private static final String ROOM_PREFIX = "room-";
+    private static final String AI_ROOM_PREFIX = "ai-";
+
+    private final Path baseDirectory;
+    private final SegmentedMessageLog.Settings settings;
+    private final Map<String, SegmentedMessageLog> logs = new ConcurrentHashMap<>(); // (directory name, log)
+
+    public MessageLogManager(Path baseDirectory, SegmentedMessageLog.Settings settings) throws IOException {
+        this.baseDirectory = baseDirectory;
+        this.settings = settings;
+        Files.createDirectories(baseDirectory);
+    }
+
+    /**
+     * Opens, or creates, the log of a room. 
+     * Returns null if it cannot be opened, in which case the room keeps its history in memory only.
+     */
+    public MessageStore open(String roomName, boolean ai) {
+        String directoryName = (ai ? AI_ROOM_PREFIX : ROOM_PREFIX) + URLEncoder.encode(roomName, StandardCharsets.UTF_8);
+        try {
+            return logs.computeIfAbsent(directoryName, k -> {
+                try {
+                    return new SegmentedMessageLog(baseDirectory.resolve(k), settings);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            Log.error("Failed to open message log", "room", roomName, "error", e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /** Rooms that have a log on disk, mapped to whether they are AI rooms. */
+    public Map<String, Boolean> storedRooms() throws IOException {
+        Map<String, Boolean> rooms = new LinkedHashMap<>();
+        try (Stream<Path> listing = Files.list(baseDirectory)) {
+            listing.filter(Files::isDirectory)
+                .map(p -> p.getFileName().toString())
+                .sorted()
+                .forEach(name -> {
+                    if (name.startsWith(AI_ROOM_PREFIX))
+                        rooms.put(URLDecoder.decode(name.substring(AI_ROOM_PREFIX.length()), StandardCharsets.UTF_8), true);
+                    else if (name.startsWith(ROOM_PREFIX))
+                        rooms.put(URLDecoder.decode(name.substring(ROOM_PREFIX.length()), StandardCharsets.UTF_8), false);
+                });
+        }
+        return rooms;
+    }
+
+    @Override
+    public void close() {
+        for (SegmentedMessageLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.error("Failed to close message log", "error", e.getMessage());
+            }
+        }
+    }
+}
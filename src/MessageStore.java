@@ -0,0 +1,15 @@
+import java.util.List;
+
+/**
+ * Persistent storage for a single room's messages. Every message is appended 
+ * as it is added to the room; reads serve history older than what the room 
+ * keeps in memory and rebuild the room on startup.
+ */
+public interface MessageStore {
+
+    /** Queues a stamped message for writing. Must not block on I/O. */
+    void append(Message message);
+
+    /** Returns up to n messages with id lower than beforeId, oldest first. */
+    List<Message> readBefore(long beforeId, int n);
+}
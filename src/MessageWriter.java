@@ -0,0 +1,21 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Output side of a client connection. Command replies are written as text,
+ * usually through a PrintWriter wrapping this writer, and room messages are
+ * written with writeMessage, which copies their pre-encoded bytes without
+ * running them through a charset encoder again. Both share this writer's
+ * lock so replies and messages never interleave.
+ */
+public abstract class MessageWriter extends Writer {
+    protected final OutputStream out;
+
+    protected MessageWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Writes a message, possibly shared with other recipients. Does not flush. */
+    public abstract void writeMessage(EncodedMessage message) throws IOException;
+}
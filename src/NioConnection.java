@@ -0,0 +1,474 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * One client connection in NIO mode: TLS through an SSLEngine over a
+ * non-blocking SocketChannel. Channel and engine work only happens on the
+ * owning selector thread. Commands run on a virtual thread that exists only
+ * while there are commands to process, so an idle connection holds no thread
+ * and no buffers. Commands arrive as text lines or, once the client switched
+ * protocols, as binary frames.
+ *
+ * Outbound bytes wait in memory until the socket takes them. Once too many
+ * are waiting, the User's writer and the next command wait in awaitWritable
+ * until the client reads, like a write to a full socket does with the
+ * blocking transport. The User's queue then fills up, and its overflow policy
+ * deals with the slow client. Flushes themselves never wait, since they run
+ * under the writers' monitors and would pin a virtual thread's carrier.
+ */
+class NioConnection implements ClientConnection {
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 256; // Stop reading until the handler catches up
+    private static final int MAX_QUEUED_BYTES = Integer.getInteger("chat.nio.maxQueuedBytes", 256 * 1024);
+    private static final long CLOSE_TIMEOUT_MS = 2000; // How long close() waits for a client to read what is queued
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final NioServer.SelectorLoop loop;
+    private final DirectBufferPool pool;
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    // Owned by the selector thread
+    private ByteBuffer netIn;  // Encrypted bytes not yet unwrapped, in write mode
+    private ByteBuffer netOut; // Encrypted bytes not yet sent, in read mode
+    private byte[] partialLine = new byte[0]; // Incomplete line or frame
+    private int partialLength = 0;
+    private boolean binary = false;
+    private boolean closed = false;
+    private volatile boolean readPaused = false;
+
+    private final Queue<ByteBuffer> appOut = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong(); // In appOut, not yet wrapped
+    private final Lock queueLock = new ReentrantLock();
+    private final Condition notFull = queueLock.newCondition();
+    private volatile int waiting = 0; // Writers waiting for notFull, changed under queueLock
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+    private volatile boolean closeRequested = false;
+
+    private final OutboundStream outputStream = new OutboundStream();
+
+    // A text line has opcode OP_LINE
+    private record Inbound(int opcode, String payload) {}
+
+    // Handler events, processed in order by one virtual thread at a time
+    private final Queue<Inbound> commands = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private volatile boolean disconnected = false;
+    private boolean connectHandled = false;
+    private boolean disconnectHandled = false;
+
+    NioConnection(SocketChannel channel, SSLEngine engine, NioServer.SelectorLoop loop, DirectBufferPool pool) {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.pool = pool;
+    }
+
+    /** Each flush hands the written bytes to the selector thread. */
+    @Override
+    public OutputStream outputStream() {
+        return outputStream;
+    }
+
+    // Queued before the reply to the client is, so it runs before the client can send a frame
+    @Override
+    public void switchToBinary() {
+        loop.execute(() -> binary = true);
+    }
+
+    @Override
+    public InetAddress remoteAddress() {
+        Socket socket = channel.socket();
+        return socket != null ? socket.getInetAddress() : null;
+    }
+
+    // Selector thread
+    void start(SelectionKey key, ClientHandler handler) throws SSLException {
+        this.key = key;
+        this.handler = handler;
+        engine.beginHandshake();
+        scheduleDispatch(); // Runs onConnect
+    }
+
+    // Selector thread
+    void onReadable() {
+        if (netIn == null) netIn = pool.acquire();
+        try {
+            if (channel.read(netIn) < 0) {
+                closeNow();
+                return;
+            }
+            unwrapAvailable();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private void unwrapAvailable() throws IOException {
+        ByteBuffer appIn = pool.acquire();
+        try {
+            netIn.flip();
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                appIn.flip();
+                if (binary) collectFrames(appIn);
+                else collectLines(appIn);
+                appIn.clear();
+
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    closeNow();
+                    return;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+
+                runDelegatedTasks();
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                    flushOutbound();
+                if (closed) return;
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break;
+            }
+            netIn.compact();
+        } finally {
+            pool.release(appIn);
+        }
+
+        if (netIn.position() == 0) {
+            pool.release(netIn);
+            netIn = null;
+        }
+        // Data queued before the handshake finished can go out now
+        if (!appOut.isEmpty())
+            flushOutbound();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // Splits decrypted bytes into lines, the same way BufferedReader.readLine does for \n and \r\n
+    private void collectLines(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (b == '\n') {
+                int length = partialLength;
+                if (length > 0 && partialLine[length - 1] == '\r') length--;
+                addCommand(new Inbound(BinaryProtocol.OP_LINE, new String(partialLine, 0, length, StandardCharsets.UTF_8)));
+                partialLength = 0;
+                if (partialLine.length > 256) partialLine = new byte[0]; // Don't keep big buffers around
+                continue;
+            }
+            if (partialLength == MAX_LINE_BYTES)
+                throw new IOException("Line too long");
+            if (partialLength == partialLine.length)
+                partialLine = Arrays.copyOf(partialLine, Math.max(64, partialLength * 2));
+            partialLine[partialLength++] = b;
+        }
+    }
+
+    // Parses [varint length][opcode][payload] frames, keeping an incomplete one for the next read
+    private void collectFrames(ByteBuffer data) throws IOException {
+        int available = partialLength + data.remaining();
+        if (available > partialLine.length)
+            partialLine = Arrays.copyOf(partialLine, Math.max(available, partialLine.length * 2));
+        data.get(partialLine, partialLength, data.remaining());
+        partialLength = available;
+
+        int position = 0;
+        while (true) {
+            long length = BinaryProtocol.getVarint(partialLine, position, partialLength);
+            if (length < 0) break;
+            if (length == 0 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                throw new IOException("Bad frame length " + length);
+            int start = position + BinaryProtocol.varintSize(length);
+            if (partialLength - start < length) break;
+
+            int opcode = partialLine[start] & 0xFF;
+            int payloadLength = (int) length - 1;
+            addCommand(new Inbound(opcode, payloadLength == 0 
+                ? "" 
+                : new String(partialLine, start + 1, payloadLength, StandardCharsets.UTF_8)));
+            position = start + (int) length;
+        }
+
+        partialLength -= position;
+        System.arraycopy(partialLine, position, partialLine, 0, partialLength);
+        if (partialLength == 0 && partialLine.length > 256) partialLine = new byte[0];
+    }
+
+    private void addCommand(Inbound command) {
+        commands.add(command);
+        if (pendingCommands.incrementAndGet() > MAX_PENDING_COMMANDS && !readPaused) {
+            readPaused = true;
+            // The handler may have caught up before it could see readPaused, then nobody would resume
+            if (pendingCommands.get() <= MAX_PENDING_COMMANDS / 2) readPaused = false;
+            updateInterest();
+        }
+        scheduleDispatch();
+    }
+
+    // Selector thread
+    void onWritable() {
+        flushOutbound();
+    }
+
+    // Wraps queued application data, and handshake messages, until done or the socket is full
+    private void flushOutbound() {
+        try {
+            if (netOut != null && netOut.hasRemaining() && !writeNetOut()) return;
+
+            while (true) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                }
+                ByteBuffer source = appOut.peek();
+                if (status != HandshakeStatus.NEED_WRAP
+                    && (source == null || status != HandshakeStatus.NOT_HANDSHAKING))
+                    break; // Nothing to send, or waiting for the peer to finish the handshake
+
+                if (netOut == null) netOut = pool.acquire();
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(source != null ? source : EMPTY, netOut);
+                if (source != null && !source.hasRemaining()) appOut.poll();
+                if (result.bytesConsumed() > 0) released(result.bytesConsumed());
+
+                netOut.flip();
+                if (!writeNetOut()) return;
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) break;
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break;
+            }
+
+            pool.release(netOut);
+            netOut = null;
+            updateInterest();
+            if (closeRequested && appOut.isEmpty())
+                closeNow();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private boolean writeNetOut() throws IOException {
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            updateInterest();
+            return false;
+        }
+        return true;
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) return;
+        int ops = readPaused ? 0 : SelectionKey.OP_READ;
+        if (netOut != null && netOut.hasRemaining()) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    // Any thread
+    private void enqueue(ByteBuffer data) {
+        if (disconnected) return;
+
+        queuedBytes.addAndGet(data.remaining());
+        appOut.add(data);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                if (!closed) flushOutbound();
+            });
+        }
+    }
+
+    /** Waits while chat.nio.maxQueuedBytes are waiting for the client to read them. */
+    @Override
+    public void awaitWritable() throws InterruptedException {
+        if (queuedBytes.get() < MAX_QUEUED_BYTES) return;
+        queueLock.lock();
+        try {
+            waiting++;
+            while (queuedBytes.get() >= MAX_QUEUED_BYTES && !disconnected) notFull.await();
+        } finally {
+            waiting--;
+            queueLock.unlock();
+        }
+    }
+
+    // Selector thread, after wrapping queued bytes
+    private void released(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+        if (waiting > 0) signalNotFull();
+    }
+
+    private void signalNotFull() {
+        queueLock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection once everything queued so far was sent, or after
+     * CLOSE_TIMEOUT_MS if the client doesn't read it. Safe to call from any thread.
+     */
+    @Override
+    public void close() {
+        if (closeRequested) return;
+        closeRequested = true;
+        loop.execute(() -> {
+            if (!closed) flushOutbound();
+        });
+        Thread.startVirtualThread(() -> {
+            try {
+                Thread.sleep(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            loop.execute(this::closeNow);
+        });
+    }
+
+    // Selector thread
+    void closeNow() {
+        if (closed) return;
+        closed = true;
+
+        try {
+            // Best effort close_notify
+            engine.closeOutbound();
+            ByteBuffer notify = pool.acquire();
+            engine.wrap(EMPTY, notify);
+            notify.flip();
+            channel.write(notify);
+            pool.release(notify);
+        } catch (IOException ignored) {}
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        if (key != null) key.cancel();
+
+        pool.release(netIn);
+        pool.release(netOut);
+        netIn = null;
+        netOut = null;
+        appOut.clear();
+        queuedBytes.set(0);
+
+        disconnected = true;
+        signalNotFull(); // Writers waiting for the client give up
+        if (handler != null) 
+            scheduleDispatch(); // Runs onDisconnect
+    }
+
+    private void scheduleDispatch() {
+        if (dispatching.compareAndSet(false, true))
+            Thread.startVirtualThread(this::dispatch);
+    }
+
+    private void dispatch() {
+        while (true) {
+            if (!connectHandled) {
+                connectHandled = true;
+                handler.onConnect();
+            }
+
+            Inbound command;
+            while ((command = commands.poll()) != null) {
+                try {
+                    awaitWritable(); // Replies wait for a client that doesn't read, and commands pile up until reading pauses
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int pending = pendingCommands.decrementAndGet();
+                boolean keepGoing = disconnectHandled || (command.opcode() == BinaryProtocol.OP_LINE 
+                    ? handler.onLine(command.payload()) 
+                    : handler.onFrame(command.opcode(), command.payload()));
+                if (!keepGoing) {
+                    // Quit: clean up while the connection can still deliver the goodbye, cleanup closes it
+                    disconnectHandled = true;
+                    handler.onDisconnect();
+                }
+                if (readPaused && pending <= MAX_PENDING_COMMANDS / 2 && resumeScheduled.compareAndSet(false, true))
+                    loop.execute(this::resumeReading);
+            }
+
+            if (disconnected && !disconnectHandled) {
+                disconnectHandled = true;
+                handler.onDisconnect();
+            }
+
+            dispatching.set(false);
+            boolean moreWork = !commands.isEmpty() || (disconnected && !disconnectHandled);
+            if (!moreWork || !dispatching.compareAndSet(false, true)) return;
+        }
+    }
+
+    // Selector thread
+    private void resumeReading() {
+        resumeScheduled.set(false);
+        if (closed || !readPaused) return;
+        readPaused = false;
+        updateInterest();
+    }
+
+    // Collects what the handler writes and hands it over on flush, which PrintWriter does after every println
+    private class OutboundStream extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+        @Override
+        public void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            buffer.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.size() == 0) return;
+            enqueue(ByteBuffer.wrap(buffer.toByteArray()));
+            buffer.reset();
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Alternative transport to one virtual thread per socket: a few selector
+ * threads multiplex every connection, with TLS handled by SSLEngine.
+ * Commands are still dispatched to ClientHandler as text lines or binary frames.
+ */
+public class NioServer {
+
+    @FunctionalInterface
+    public interface HandlerFactory {
+        ClientHandler create(NioConnection connection);
+    }
+
+    private static final int MAX_POOLED_BUFFERS = 4096;
+
+    private final int port;
+    private final SSLContext sslContext;
+    private final String[] cipherSuites;
+    private final HandlerFactory handlerFactory;
+    private final SelectorLoop[] loops;
+    private final DirectBufferPool bufferPool;
+
+    public NioServer(int port, SSLContext sslContext, String[] cipherSuites, int selectorThreads,
+        HandlerFactory handlerFactory) throws IOException {
+        this.port = port;
+        this.sslContext = sslContext;
+        this.cipherSuites = cipherSuites;
+        this.handlerFactory = handlerFactory;
+
+        SSLSession prototype = sslContext.createSSLEngine().getSession();
+        int bufferSize = Math.max(prototype.getPacketBufferSize(), prototype.getApplicationBufferSize());
+        this.bufferPool = new DirectBufferPool(bufferSize, MAX_POOLED_BUFFERS);
+
+        this.loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+        }
+    }
+
+    /** Accepts connections on the calling thread, forever. */
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            Log.info("Server started", "port", port, "transport", "nio", "selectors", loops.length);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+
+                    SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    engine.setEnabledCipherSuites(cipherSuites);
+
+                    loops[next].register(channel, engine);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    Log.error("Accept failed", "error", e.getMessage());
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /** One selector thread. Other threads hand it work through execute. */
+    class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel, SSLEngine engine) {
+            execute(() -> {
+                NioConnection connection = new NioConnection(channel, engine, this, bufferPool);
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.start(key, handlerFactory.create(connection));
+                } catch (IOException e) {
+                    Log.warn("Failed to register connection", "error", e.getMessage());
+                    connection.closeNow();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.error("Selector error", "error", e.getMessage());
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                    } catch (RuntimeException e) {
+                        // A failing connection must not take the whole selector down
+                        Log.warn("Closing connection after error", "error", e);
+                        connection.closeNow();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Error in selector loop", "error", e);
+            }
+        }
+    }
+}
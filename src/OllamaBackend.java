@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+/**
+ * An Ollama server, asked through its streaming generate endpoint. Answers
+ * arrive as NDJSON, one token per line.
+ */
+public class OllamaBackend implements InferenceBackend {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMillis(Long.getLong("chat.ai.connectTimeoutMs", 2000));
+
+    // Shared by every backend: one selector thread, and idle connections are kept alive and reused.
+    // Ollama speaks HTTP/1.1, so don't offer an HTTP/2 upgrade on every request
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(CONNECT_TIMEOUT)
+        .build();
+
+    private final URI uri;
+    private final String model;
+    private final Duration timeout;
+
+    public OllamaBackend(String url, String model, Duration timeout) {
+        this.uri = URI.create(url);
+        this.model = model;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String name() {
+        return uri.toString();
+    }
+
+    @Override
+    public String model() {
+        return model;
+    }
+
+    @Override
+    public void generate(String prompt, Consumer<String> onToken) throws IOException, InterruptedException {
+        String jsonRequest = new JSONObject()
+            .put("model", model)
+            .put("prompt", prompt)
+            .put("stream", true)
+            .toString();
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(uri)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(jsonRequest))
+            .timeout(timeout)
+            .build();
+
+        // Lines are handed over as they arrive, the timeout only covers waiting for the headers
+        HttpResponse<Stream<String>> response = httpClient.send(request, HttpResponse.BodyHandlers.ofLines());
+
+        try (Stream<String> lines = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException("API Error: " + String.join("\n", lines.toList()));
+            }
+
+            Iterator<String> it = lines.iterator();
+            while (it.hasNext()) {
+                String line = it.next();
+                if (line.isBlank()) continue;
+
+                JSONObject json = new JSONObject(line);
+                if (json.has("error"))
+                    throw new IOException("API Error: " + json.getString("error"));
+
+                onToken.accept(json.optString("response", ""));
+                if (json.optBoolean("done", false)) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Backpressure settings applied to every user's outbound queue.
+ * Read from the chat.outbound.highWaterMark and chat.outbound.overflowPolicy system properties.
+ */
+public record OutboundConfig(int highWaterMark, OverflowPolicy overflowPolicy) {
+    public static final int DEFAULT_HIGH_WATER_MARK = 1024;
+
+    public static OutboundConfig fromSystemProperties() {
+        int highWaterMark = Integer.getInteger("chat.outbound.highWaterMark", DEFAULT_HIGH_WATER_MARK);
+        OverflowPolicy policy = OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.overflowPolicy", OverflowPolicy.DROP_OLDEST.name()));
+        return new OutboundConfig(highWaterMark, policy);
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * What a user's outbound queue does when it passes its high-water mark.
+ */
+public enum OverflowPolicy {
+    DROP_OLDEST,     // Discard the oldest queued message to make room
+    DROP_NEWEST,     // Discard the incoming message
+    COALESCE_SYSTEM, // Keep only the newest queued system message, then drop oldest if still full
+    DISCONNECT       // Close the connection with reason code SLOW_CONSUMER
+}
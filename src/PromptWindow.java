@@ -0,0 +1,160 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The part of a room's conversation that goes into AI prompts, maintained as
+ * messages arrive. Recent messages are kept formatted, up to a token budget.
+ * Older ones are folded into a rolling summary: who took part and how much,
+ * plus the start of the latest evicted messages, within a budget of its own.
+ * Building a prompt only walks the window, however long the room is.
+ * Tokens are estimated as four characters each.
+ */
+public class PromptWindow {
+    public static final int DEFAULT_TOKEN_BUDGET = Integer.getInteger("chat.ai.prompt.tokens", 2048);
+    public static final int DEFAULT_SUMMARY_TOKENS = Integer.getInteger("chat.ai.prompt.summaryTokens", 256);
+
+    private static final int SNIPPET_CHARS = 80;
+    private static final int MAX_SUMMARY_SENDERS = 20; // Any further ones are counted as "others"
+
+    private record Entry(long id, String sender, String line, int tokens) {}
+
+    private final int tokenBudget;
+    private final int summaryTokenBudget;
+    private final Lock lock = new ReentrantLock();
+
+    private final ArrayDeque<Entry> window = new ArrayDeque<>();
+    private int windowTokens = 0;
+    private int windowChars = 0;
+
+    // Rolling summary of evicted messages
+    private final Map<String, Integer> earlierSenders = new LinkedHashMap<>();
+    private final ArrayDeque<String> earlierSnippets = new ArrayDeque<>();
+    private int snippetTokens = 0;
+    private long summarized = 0;
+
+    public PromptWindow() {
+        this(DEFAULT_TOKEN_BUDGET, DEFAULT_SUMMARY_TOKENS);
+    }
+
+    public PromptWindow(int tokenBudget, int summaryTokenBudget) {
+        this.tokenBudget = tokenBudget;
+        this.summaryTokenBudget = summaryTokenBudget;
+    }
+
+    public static int estimateTokens(CharSequence text) {
+        return (text.length() + 3) / 4;
+    }
+
+    /** Adds a message to the window. Messages must be added in id order. */
+    public void add(Message message) {
+        String line = String.format("%s said ''%s''\n", message.getSender(), message.getContent());
+        Entry entry = new Entry(message.getId(), message.getSender(), line, estimateTokens(line));
+
+        lock.lock();
+        try {
+            window.addLast(entry);
+            windowTokens += entry.tokens();
+            windowChars += line.length();
+
+            // Always keep the newest message, even if it alone is over budget
+            while (windowTokens > tokenBudget && window.size() > 1) {
+                Entry evicted = window.pollFirst();
+                windowTokens -= evicted.tokens();
+                windowChars -= evicted.line().length();
+                summarize(evicted);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void summarize(Entry evicted) {
+        summarized++;
+        String sender = earlierSenders.containsKey(evicted.sender()) || earlierSenders.size() < MAX_SUMMARY_SENDERS
+            ? evicted.sender() 
+            : "others";
+        earlierSenders.merge(sender, 1, Integer::sum);
+
+        String line = evicted.line().strip();
+        String snippet = line.length() > SNIPPET_CHARS ? line.substring(0, SNIPPET_CHARS) + "...''" : line;
+        earlierSnippets.addLast(snippet);
+        snippetTokens += estimateTokens(snippet);
+        while (snippetTokens > summaryTokenBudget && !earlierSnippets.isEmpty()) {
+            snippetTokens -= estimateTokens(earlierSnippets.pollFirst());
+        }
+    }
+
+    public String buildPrompt(Message currentMessage) {
+        return buildPrompt(List.of(currentMessage));
+    }
+
+    /**
+     * Builds one prompt answering mentions that are already in the window, in
+     * id order: the mentions, the summary of older conversation and the window
+     * up to the last mention.
+     */
+    public String buildPrompt(List<Message> mentions) {
+        Message last = mentions.get(mentions.size() - 1);
+        lock.lock();
+        try {
+            StringBuilder prompt = new StringBuilder(windowChars + snippetTokens * 4 + 256);
+            if (mentions.size() > 1) 
+                prompt.append("Several people talked to you at once. Answer each of them, by name, in one reply.\n");
+            for (Message mention : mentions)
+                prompt.append(String.format("%s just said ''%s''\n", mention.getSender(), mention.getContent()));
+
+            if (summarized > 0) {
+                prompt.append("Summary of the earlier conversation: ")
+                    .append(summarized).append(" older messages, from ");
+                Iterator<Map.Entry<String, Integer>> it = earlierSenders.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Integer> sender = it.next();
+                    prompt.append(sender.getKey()).append(" (").append(sender.getValue()).append(')');
+                    if (it.hasNext()) prompt.append(", ");
+                }
+                prompt.append(". The latest of them began:\n");
+                for (String snippet : earlierSnippets)
+                    prompt.append(snippet).append('\n');
+            }
+
+            prompt.append("The chat history is as follows:\n");
+            // Everything said before the last mention, other than the mentions themselves
+            for (Entry entry : window) {
+                if (entry.id() >= last.getId()) break;
+                if (!isMention(entry, mentions)) prompt.append(entry.line());
+            }
+            return prompt.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Up to count lines said right before the given message, oldest first. */
+    public List<String> linesBefore(Message message, int count) {
+        ArrayDeque<String> lines = new ArrayDeque<>(count);
+        if (count <= 0) return List.of();
+        lock.lock();
+        try {
+            Iterator<Entry> it = window.descendingIterator();
+            while (it.hasNext() && lines.size() < count) {
+                Entry entry = it.next();
+                if (entry.id() < message.getId()) lines.addFirst(entry.line());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return List.copyOf(lines);
+    }
+
+    private static boolean isMention(Entry entry, List<Message> mentions) {
+        for (Message mention : mentions) {
+            if (mention.getId() == entry.id()) return true;
+        }
+        return false;
+    }
+}
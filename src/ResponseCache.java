@@ -0,0 +1,154 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-wide cache of AI answers, so repeated questions (greetings, help,
+ * FAQs) don't cost a model call each time. Keyed by the model, the normalized
+ * question and a hash of the last few messages before it. Entries expire after
+ * a TTL and the least recently used ones are evicted to stay under a byte limit.
+ */
+public class ResponseCache {
+    private static final int ENTRY_OVERHEAD_BYTES = 96; // Rough size of the entry, map node and strings
+
+    private record Entry(String answer, long expiresAt, int bytes) {}
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long ttlMs;
+    private final int contextMessages;
+
+    private final Lock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true); // Access order
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResponseCache(boolean enabled, long maxBytes, long ttlMs, int contextMessages) {
+        this.enabled = enabled;
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+        this.contextMessages = contextMessages;
+    }
+
+    public static ResponseCache fromSystemProperties() {
+        return new ResponseCache(
+            Boolean.getBoolean("chat.ai.cache.enabled"),
+            Long.getLong("chat.ai.cache.maxBytes", 4L * 1024 * 1024),
+            Long.getLong("chat.ai.cache.ttlMs", 10 * 60 * 1000),
+            Integer.getInteger("chat.ai.cache.contextMessages", 3));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** How many messages before a question are part of its key. */
+    public int getContextMessages() {
+        return contextMessages;
+    }
+
+    /** Builds the key for a question asked after the given context lines. */
+    public static String key(String model, String question, List<String> context) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String line : context)
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+            String contextHash = HexFormat.of().formatHex(digest.digest(), 0, 16);
+            return model + '\n' + normalize(question) + '\n' + contextHash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+    }
+
+    // "@AI  Hello there!!" and "@ai hello there" ask the same thing
+    static String normalize(String question) {
+        String normalized = question.toLowerCase(Locale.ROOT).strip();
+        if (normalized.startsWith("@ai")) normalized = normalized.substring(3);
+        normalized = normalized.replaceAll("\\s+", " ").strip();
+        return normalized.replaceAll("[\\p{Punct}\\s]+$", "");
+    }
+
+    /** Returns the cached answer, or null. Counts a hit or a miss. */
+    public String get(String key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt() <= System.currentTimeMillis()) {
+                remove(key, entry);
+                entry = null;
+            }
+            (entry != null ? hits : misses).incrementAndGet();
+            return entry != null ? entry.answer() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(String key, String answer) {
+        int entryBytes = 2 * (key.length() + answer.length()) + ENTRY_OVERHEAD_BYTES;
+        if (entryBytes > maxBytes) return;
+
+        lock.lock();
+        try {
+            Entry previous = entries.put(key, new Entry(answer, System.currentTimeMillis() + ttlMs, entryBytes));
+            if (previous != null) bytes -= previous.bytes();
+            bytes += entryBytes;
+
+            // Expired entries first, then the least recently used
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> oldest = it.next();
+                if (oldest.getKey().equals(key)) continue;
+                it.remove();
+                bytes -= oldest.getValue().bytes();
+                if (oldest.getValue().expiresAt() > now) evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.bytes();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions() + " bytes=" + getBytes();
+    }
+}
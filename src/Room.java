@@ -1,77 +1,217 @@
 
 import java.util.*;
-import java.util.concurrent.locks.*;
 
 /**
  * Represents a chat room where users can join, leave, and send messages.
+ * Everything that changes the room runs as a task of its mailbox, one task at
+ * a time on the shard the room is placed on (see RoomShards), so its state
+ * takes no lock. Participants are published as an immutable snapshot, so
+ * listing them never waits for the shard.
+ * In a cluster, only the node that owns the room numbers and stores its
+ * messages; on the others the room only holds the members connected there,
+ * and sends messages to the owner, see ClusterNode.
  */
 
 public class Room {
+    public static final int DEFAULT_HISTORY_CAPACITY = Integer.getInteger("chat.history.capacity", 500);
 
     private final String name;
-    private final Set<User> participants;
-    private final Lock roomLock;
+    private final RoomShards.Mailbox mailbox;
+    private volatile Set<User> participants = Collections.emptySet(); // Only replaced by the room's tasks
+    private final DeliveryStats deliveryStats;
+    private final LatencyHistogram fanOutStats = new LatencyHistogram(); // Time to queue a broadcast for everyone
+    private final MessageStore store; // May be null, in which case history is kept in memory only
+    private volatile ClusterNode cluster; // Null unless the server is part of a cluster
+    private volatile boolean owned = true; // Whether messages are numbered and stored here
     
-    protected final LinkedList<Message> history;
+    protected final MessageHistory history;
     
     public Room(String name) {
+        this(name, DEFAULT_HISTORY_CAPACITY, null);
+    }
+
+    public Room(String name, int historyCapacity, MessageStore store) {
         this.name = name;
-        this.history = new LinkedList<>();
-        this.participants = new HashSet<>();
-        this.roomLock = new ReentrantLock();
+        this.store = store;
+        this.history = new MessageHistory(historyCapacity);
+        this.mailbox = new RoomShards.Mailbox(name);
+        this.deliveryStats = new DeliveryStats();
+
+        // Rebuild the in-memory tail from the log, if there is one
+        if (store != null)
+            history.restore(store.readBefore(Long.MAX_VALUE, historyCapacity));
     }
 
     public String getName() {
         return name;
     }
 
+    /** Makes the room part of the cluster. Called before the room is used. */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+        this.owned = cluster == null || cluster.owns(name);
+    }
+
+    /** Whether messages can be sent to the room right now. False while the node that owns it is down. */
+    public boolean isAvailable() {
+        return owned || cluster.isAvailable(name);
+    }
+
+    /** The room's tasks. The registry places it on a shard. */
+    public RoomShards.Mailbox getMailbox() {
+        return mailbox;
+    }
+
+    public DeliveryStats getDeliveryStats() {
+        return deliveryStats;
+    }
+
+    public LatencyHistogram getFanOutStats() {
+        return fanOutStats;
+    }
+
+    /** Returns the current participants on this node. The set is an immutable snapshot. */
     public Set<User> getParticipants() {
-        roomLock.lock();
-        try {
-            return Collections.unmodifiableSet(participants);
-        } finally {
-            roomLock.unlock();
-        }
+        return participants;
     }
 
     public void addParticipant(User user) {
-        roomLock.lock();
-        try {
-            participants.add(user);
-            broadcast(systemMessage("Hey, " + user.getUsername() + " just joined the chat room " + getName() + "!"));
-        } finally {
-            roomLock.unlock();
-        }
+        mailbox.execute(() -> {
+            participants = with(participants, user);
+            broadcastNow(systemMessage("Hey, " + user.getUsername() + " just joined the chat room " + getName() + "!"));
+        });
     }
 
     public void removeParticipant(User user) {
-        System.out.println("Removing participant " + user.getUsername() + " from room " + name);	
-        roomLock.lock();
-        try {
-            participants.remove(user);
-            broadcast(systemMessage(user.getUsername() + " left the room"));
-        } finally {
-            roomLock.unlock();
-        }
-    }
-
-    public void addMessage(Message message) {
-        roomLock.lock(); 
-        try {
-            history.add(message);
-            broadcast(message);
-        } finally {
-            roomLock.unlock();
-        }
+        Log.debug("Removing participant", "user", user.getUsername(), "room", name);
+        mailbox.execute(() -> {
+            participants = without(participants, user);
+            broadcastNow(systemMessage(user.getUsername() + " left the room"));
+        });
+    }
+
+    private static Set<User> with(Set<User> current, User user) {
+        if (current.contains(user)) return current;
+        Set<User> next = new HashSet<>(current);
+        next.add(user);
+        return Collections.unmodifiableSet(next);
+    }
+
+    private static Set<User> without(Set<User> current, User user) {
+        if (!current.contains(user)) return current;
+        Set<User> next = new HashSet<>(current);
+        next.remove(user);
+        return Collections.unmodifiableSet(next);
+    }
+
+    /**
+     * Adds the message to the room history and broadcasts it, once the room's
+     * earlier tasks ran. On a node that does not own the room, the message
+     * goes to the owner instead. Returns false if it couldn't be sent there,
+     * the owner being down or too far behind.
+     */
+    public boolean addMessage(Message message) {
+        if (!owned) return cluster.forward(this, message); // Delivered here once the owner publishes it
+        mailbox.execute(() -> onMessage(append(message)));
+        return true;
+    }
+
+    /** Like addMessage, for a message another node forwarded to the owner. Never waits: returns false if the room is too busy. */
+    public boolean addForwarded(Message message) {
+        return mailbox.offer(() -> onMessage(append(message)));
+    }
+
+    /** Like addMessage, for messages of the room itself such as notices, which skip onMessage. */
+    protected void post(Message message) {
+        mailbox.execute(() -> append(message));
     }
 
+    /**
+     * Adds the message to the room history without broadcasting it, for content
+     * the participants already received some other way.
+     */
+    protected void appendToHistory(Message message) {
+        mailbox.execute(() -> store(message));
+    }
+
+    /** Stores and broadcasts a message. Only called by the room's tasks. Returns it stamped with its id. */
+    protected Message append(Message message) {
+        Message stored = store(message);
+        fanOut(stored); // Only enqueues, but keeps every recipient seeing messages in id order
+        if (cluster != null) cluster.publishStored(this, stored); // In id order too
+        return stored;
+    }
+
+    private Message store(Message message) {
+        Message stored = history.append(message);
+        if (store != null) 
+            store.append(stored); // Queued in id order, the log writes it in the background
+        onAppended(stored);
+        return stored;
+    }
+
+    /** Called by the room's tasks with every message added to the history, in id order. Never called while the room is being constructed. */
+    protected void onAppended(Message stored) {
+    }
+
+    /** Called by the room's tasks with every message added by addMessage, once stored and broadcast. */
+    protected void onMessage(Message stored) {
+    }
+
+    /**
+     * Returns up to n messages older than beforeId, oldest first. 
+     * Falls back to the persistent store, if any, for messages no longer in memory.
+     */
+    public List<Message> getHistory(int n, long beforeId) {
+        if (!owned) return cluster.history(this, n, beforeId);
+
+        long[] oldest = new long[1];
+        List<Message> page = mailbox.call(() -> {
+            oldest[0] = history.oldestId();
+            return history.page(n, beforeId);
+        });
+        long oldestInMemory = oldest[0];
+
+        int missing = n - page.size();
+        if (store == null || missing <= 0 || oldestInMemory == 0) 
+            return page;
+
+        long storeBefore = Math.min(beforeId, oldestInMemory);
+        List<Message> older = store.readBefore(storeBefore, missing);
+        if (older.isEmpty()) 
+            return page;
+
+        List<Message> combined = new ArrayList<>(older.size() + page.size());
+        combined.addAll(older);
+        combined.addAll(page);
+        return combined;
+    }
+
+    /** Sends a message that is not stored to every participant, on every node. */
     public void broadcast(Message message) {
-        String formattedMessage = String.format("[%s]: %s", 
-            message.getSender(), 
-            message.getContent());
+        mailbox.execute(() -> broadcastNow(message));
+    }
+
+    /**
+     * Sends a message to the participants on this node only. Called by the
+     * cluster bus, so it never waits: returns false if the room is too busy.
+     */
+    public boolean deliver(Message message) {
+        return mailbox.offer(() -> fanOut(message));
+    }
+
+    private void broadcastNow(Message message) {
+        fanOut(message);
+        if (cluster != null) cluster.publishLive(this, message);
+    }
+
+    private void fanOut(Message message) {
+        long start = System.nanoTime();
+        EncodedMessage encoded = EncodedMessage.of(message, name); // Shared, so each encoding is done once
 
         for (User participant : participants) 
-            participant.send(formattedMessage);    
+            participant.send(encoded, deliveryStats);    
+        fanOutStats.recordSince(start);
     }
 
     
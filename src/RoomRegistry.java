@@ -0,0 +1,112 @@
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Server-wide registry of chat rooms, shared by every ClientHandler.
+ * Lookups and listing never block. Creating a room is atomic per name: the first
+ * caller builds it outside of any lock while concurrent callers for the same
+ * name wait for that one result. Every room is placed on a shard before
+ * anyone else can see it, see RoomShards.
+ */
+public class RoomRegistry {
+
+    @FunctionalInterface
+    public interface RoomFactory {
+        Room create(String name) throws IOException;
+    }
+
+    private final ConcurrentMap<String, CompletableFuture<Room>> rooms = new ConcurrentHashMap<>();
+    private final RoomShards shards;
+
+    public RoomRegistry(RoomShards shards) {
+        this.shards = shards;
+    }
+
+    public RoomShards getShards() {
+        return shards;
+    }
+
+    /** Registers a room built at startup, replacing any room with the same name. */
+    public void put(Room room) {
+        shards.place(room.getMailbox());
+        rooms.put(room.getName(), CompletableFuture.completedFuture(room));
+    }
+
+    /** Returns the room, or null if it does not exist or is still being created. */
+    public Room get(String name) {
+        CompletableFuture<Room> future = rooms.get(name);
+        return future != null ? future.getNow(null) : null;
+    }
+
+    /**
+     * Returns the existing room with this name, or creates it with the factory.
+     * If creation fails the name is released so a later call can retry.
+     */
+    public Room getOrCreate(String name, RoomFactory factory) throws IOException {
+        CompletableFuture<Room> existing = rooms.get(name);
+        if (existing == null) {
+            CompletableFuture<Room> created = new CompletableFuture<>();
+            existing = rooms.putIfAbsent(name, created);
+            if (existing == null) {
+                // We won the race, build the room without holding anything
+                try {
+                    Room room = factory.create(name);
+                    shards.place(room.getMailbox());
+                    created.complete(room);
+                    return room;
+                } catch (IOException | RuntimeException e) {
+                    rooms.remove(name, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        return await(existing);
+    }
+
+    private static Room await(CompletableFuture<Room> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for room creation", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** Snapshot of the rooms that are ready to join, in no particular order. */
+    public List<Room> rooms() {
+        List<Room> created = new ArrayList<>(rooms.size());
+        rooms.forEach((name, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally())
+                created.add(future.join());
+        });
+        return created;
+    }
+
+    /** Snapshot of the names of rooms that are ready to join. */
+    public List<String> names() {
+        List<String> names = new ArrayList<>(rooms.size());
+        rooms.forEach((name, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally())
+                names.add(name);
+        });
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return rooms.containsKey(name);
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,327 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Runs the work of every room on a fixed set of shard threads. Each room has
+ * a Mailbox of tasks (joins, leaves, messages, broadcasts) that runs on one
+ * shard at a time, in order, so a room's state needs no lock. Rooms are
+ * placed on shards by consistent hashing of their name, and a room with
+ * nothing to do costs its shard nothing. A full mailbox makes the threads
+ * adding to it wait, so clients can't send faster than their room keeps up.
+ * Threads that must never wait, such as the cluster bus reading from another
+ * node, offer their tasks instead, and tasks offered to a full mailbox are
+ * turned down and counted.
+ *
+ * A rebalancer looks at how busy each shard was at a fixed interval. When the
+ * busiest one does much more work than the idlest, its hottest room moves
+ * there. Moving only changes which shard the room's mailbox is handed to
+ * next, so its tasks stay queued and in order across the move.
+ */
+public class RoomShards {
+    private static final int VIRTUAL_NODES = 64; // Points per shard on the hash ring
+    private static final int MAILBOX_BATCH = 64;  // Tasks a room runs before other rooms of its shard get a turn
+    private static final int MAILBOX_CAPACITY = Integer.getInteger("chat.shards.mailboxCapacity", 256);
+
+    /** The tasks of one room. Until the room is placed, tasks run on the caller's thread. */
+    public static final class Mailbox {
+        private final String name;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(); // Queued on, or running on, a shard
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong(); // Offered while full
+        private final Lock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private volatile int waiting = 0; // Threads waiting for notFull, changed under lock
+        private volatile Shard shard;
+        private volatile Thread runner;
+        private volatile long busyNanos = 0; // Only written by the shard running the mailbox
+        private long sampledBusyNanos = 0;   // Rebalancer only
+
+        public Mailbox(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Queues a task to run after every task queued before it. Waits while
+         * the mailbox is full, unless called by a shard, which must never wait
+         * for another one.
+         */
+        public void execute(Runnable task) {
+            Shard current = shard;
+            if (current == null) {
+                task.run();
+                return;
+            }
+            if (queued.get() >= MAILBOX_CAPACITY && !(Thread.currentThread() instanceof ShardThread)) awaitNotFull();
+            enqueue(current, task);
+        }
+
+        /** Like execute, but never waits: returns false, and counts the task as rejected, while the mailbox is full. */
+        public boolean offer(Runnable task) {
+            Shard current = shard;
+            if (current == null) {
+                task.run();
+                return true;
+            }
+            if (queued.get() >= MAILBOX_CAPACITY) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            enqueue(current, task);
+            return true;
+        }
+
+        /** Tasks turned down by offer. */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        private void enqueue(Shard current, Runnable task) {
+            queued.incrementAndGet();
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) current.schedule(this);
+        }
+
+        private void awaitNotFull() {
+            lock.lock();
+            try {
+                waiting++;
+                while (queued.get() >= MAILBOX_CAPACITY) notFull.awaitUninterruptibly();
+            } finally {
+                waiting--;
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Runs a task and waits for its result. Must not be called from another
+         * room's task, which would block that room's shard.
+         */
+        public <T> T call(Supplier<T> task) {
+            if (shard == null || runner == Thread.currentThread()) return task.get();
+
+            CompletableFuture<T> result = new CompletableFuture<>();
+            execute(() -> {
+                try {
+                    result.complete(task.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) throw cause;
+                throw e;
+            }
+        }
+
+        /** Index of the shard the room is on, or -1 if it was not placed. */
+        public int shardIndex() {
+            Shard current = shard;
+            return current != null ? current.index : -1;
+        }
+
+        // Runs a batch of tasks, then hands the mailbox back to its shard if more are waiting. Returns the time taken
+        private long drain() {
+            long start = System.nanoTime();
+            int ran = 0;
+            runner = Thread.currentThread();
+            try {
+                Runnable task;
+                for (; ran < MAILBOX_BATCH && (task = tasks.poll()) != null; ran++) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.error("Room task failed", "room", name, "error", e);
+                    }
+                }
+            } finally {
+                runner = null;
+            }
+            long elapsed = System.nanoTime() - start;
+            busyNanos += elapsed;
+
+            queued.addAndGet(-ran);
+            if (waiting > 0) {
+                lock.lock();
+                try {
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            scheduled.set(false);
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) shard.schedule(this); // Its shard may have changed
+            return elapsed;
+        }
+    }
+
+    private static final class ShardThread extends Thread {
+        ShardThread(Runnable task, String name) {
+            super(task, name);
+        }
+    }
+
+    // A thread running the mailboxes that have tasks, in the order they got them
+    private static final class Shard {
+        private final int index;
+        private final ShardThread thread;
+        private final ConcurrentLinkedQueue<Mailbox> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean parked = new AtomicBoolean(); // Only the caller that clears it unparks
+        private volatile long busyNanos = 0;
+        private long sampledBusyNanos = 0; // Rebalancer only
+
+        Shard(int index) {
+            this.index = index;
+            this.thread = new ShardThread(this::run, "room-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void schedule(Mailbox mailbox) {
+            ready.add(mailbox);
+            if (parked.get() && parked.compareAndSet(true, false)) LockSupport.unpark(thread);
+        }
+
+        private void run() {
+            while (true) {
+                Mailbox mailbox = ready.poll();
+                if (mailbox != null) {
+                    busyNanos += mailbox.drain();
+                    continue;
+                }
+                parked.set(true);
+                if (ready.isEmpty()) LockSupport.park();
+                parked.set(false);
+            }
+        }
+    }
+
+    private final Shard[] shards;
+    private final NavigableMap<Long, Shard> ring = new TreeMap<>();
+    private final Set<Mailbox> placed = ConcurrentHashMap.newKeySet();
+    private final TimerWheel timer;
+    private final long rebalanceMs;
+    private final double imbalance;
+    private final AtomicLong migrations = new AtomicLong();
+
+    /**
+     * count shard threads, rebalanced every rebalanceMs (0 never) when the
+     * busiest shard is more than imbalance times busier than the idlest.
+     */
+    public RoomShards(int count, TimerWheel timer, long rebalanceMs, double imbalance) {
+        this.shards = new Shard[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+            for (int point = 0; point < VIRTUAL_NODES; point++)
+                ring.put(Hashing.hash("shard-" + i + "#" + point), shards[i]);
+            shards[i].thread.start();
+        }
+        this.timer = timer;
+        this.rebalanceMs = rebalanceMs;
+        this.imbalance = imbalance;
+        if (rebalanceMs > 0 && shards.length > 1)
+            timer.schedule(this::rebalance, rebalanceMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static RoomShards fromSystemProperties(TimerWheel timer) {
+        return new RoomShards(
+            Integer.getInteger("chat.shards.count", Runtime.getRuntime().availableProcessors()),
+            timer,
+            Long.getLong("chat.shards.rebalanceMs", 1000),
+            Double.parseDouble(System.getProperty("chat.shards.imbalance", "1.5")));
+    }
+
+    /** Puts a room's mailbox on the shard its name hashes to. From then on its tasks run there. */
+    public void place(Mailbox mailbox) {
+        mailbox.shard = shardFor(mailbox.name);
+        placed.add(mailbox);
+    }
+
+    // The first point on the ring at or after the name's hash
+    private Shard shardFor(String roomName) {
+        Map.Entry<Long, Shard> point = ring.ceilingEntry(Hashing.hash(roomName));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    public long getMigrations() {
+        return migrations.get();
+    }
+
+    // Moves the hottest room of the busiest shard to the idlest one, if that evens them out
+    private void rebalance() {
+        try {
+            long[] load = new long[shards.length];
+            for (Shard shard : shards) {
+                long busy = shard.busyNanos;
+                load[shard.index] = busy - shard.sampledBusyNanos;
+                shard.sampledBusyNanos = busy;
+            }
+
+            Mailbox[] hottest = new Mailbox[shards.length];
+            long[] hottestLoad = new long[shards.length];
+            for (Mailbox mailbox : placed) {
+                long busy = mailbox.busyNanos;
+                long roomLoad = busy - mailbox.sampledBusyNanos;
+                mailbox.sampledBusyNanos = busy;
+                int index = mailbox.shard.index;
+                if (roomLoad > hottestLoad[index]) {
+                    hottest[index] = mailbox;
+                    hottestLoad[index] = roomLoad;
+                }
+            }
+
+            int busiest = 0, idlest = 0;
+            for (int i = 1; i < shards.length; i++) {
+                if (load[i] > load[busiest]) busiest = i;
+                if (load[i] < load[idlest]) idlest = i;
+            }
+            long gap = load[busiest] - load[idlest];
+            // Not worth it below a tenth of a core, and pointless if the room alone is more than the gap
+            boolean worthIt = load[busiest] > TimeUnit.MILLISECONDS.toNanos(rebalanceMs) / 10
+                && load[busiest] > imbalance * load[idlest]
+                && hottest[busiest] != null && hottestLoad[busiest] < gap;
+            if (worthIt) {
+                hottest[busiest].shard = shards[idlest];
+                migrations.incrementAndGet();
+                Log.info("Moved room to another shard", "room", hottest[busiest].name,
+                    "from", shards[busiest].thread.getName(), "to", shards[idlest].thread.getName());
+            }
+        } finally {
+            timer.schedule(this::rebalance, rebalanceMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Rooms and share of time busy of every shard since the server started, and the rooms moved. */
+    @Override
+    public String toString() {
+        int[] rooms = new int[shards.length];
+        for (Mailbox mailbox : placed) rooms[mailbox.shard.index]++;
+        List<String> perShard = new ArrayList<>(shards.length);
+        for (Shard shard : shards)
+            perShard.add(rooms[shard.index] + "/" + shard.busyNanos / 1_000_000 + "ms");
+        return "count=" + shards.length + " migrations=" + migrations.get() + " rooms/busy=" + perShard;
+    }
+}
@@ -0,0 +1,456 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only message log for one room, split into segment files named after
+ * the id of their first message. Appends are queued and group-committed by a
+ * writer thread; reads go through memory-mapped segments.
+ *
+ * Record layout: [int payloadLength][int crc32][long id][int senderLength][sender][content]
+ */
+public class SegmentedMessageLog implements MessageStore, Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS,   // fsync after every group commit
+        INTERVAL, // fsync at most once per interval
+        NEVER     // leave it to the OS
+    }
+
+    public record Settings(long segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMs) {
+        public static Settings fromSystemProperties() {
+            return new Settings(
+                Long.getLong("chat.log.segmentBytes", 16L * 1024 * 1024),
+                FsyncPolicy.valueOf(System.getProperty("chat.log.fsync", FsyncPolicy.INTERVAL.name())),
+                Long.getLong("chat.log.fsyncIntervalMs", 1000));
+        }
+    }
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final int INDEX_INTERVAL = 64; // Records between sparse index entries
+
+    private static final class Segment {
+        final long baseId;
+        final Path path;
+        volatile long size;          // Bytes of complete records
+
+        // Sparse index of (id, offset) every INDEX_INTERVAL records, built lazily
+        long[] indexIds = new long[16];
+        int[] indexOffsets = new int[16];
+        int indexCount = 0;
+        long indexedBytes = 0;
+        long indexedRecords = 0;
+        long lastId = Message.NO_ID;
+
+        FileChannel readChannel;
+        MappedByteBuffer mapped;     // Cached once the segment is sealed
+
+        Segment(long baseId, Path path, long size) {
+            this.baseId = baseId;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final Path directory;
+    private final Settings settings;
+
+    private final List<Segment> segments = new ArrayList<>(); // Ordered by baseId
+    private final Lock segmentsLock = new ReentrantLock();
+    private FileChannel activeChannel; // Only touched by the writer after open
+
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private final Lock pendingLock = new ReentrantLock();
+    private final Condition pendingAvailable = pendingLock.newCondition();
+    private final Thread writerThread;
+
+    private volatile boolean closed = false;
+
+    public SegmentedMessageLog(Path directory, Settings settings) throws IOException {
+        this.directory = directory;
+        this.settings = settings;
+        Files.createDirectories(directory);
+        loadSegments();
+        this.writerThread = Thread.ofVirtual()
+            .name("message-log-" + directory.getFileName())
+            .start(this::runWriter);
+    }
+
+    // Only the last segment is scanned, so opening a log costs O(tail), not O(history)
+    private void loadSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing
+                .filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            segments.add(new Segment(baseId, file, Files.size(file)));
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(createSegment(0));
+        } else {
+            Segment last = segments.get(segments.size() - 1);
+            long validBytes = recoverTail(last);
+            if (validBytes < last.size) {
+                Log.warn("Truncating torn tail", "file", last.path, "bytes", validBytes);
+                last.size = validBytes;
+            }
+        }
+
+        Segment active = segments.get(segments.size() - 1);
+        activeChannel = FileChannel.open(active.path, StandardOpenOption.WRITE);
+        activeChannel.truncate(active.size);
+        activeChannel.position(active.size);
+    }
+
+    // Returns the length of the valid prefix of the segment
+    private long recoverTail(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            CRC32 crc = new CRC32();
+            int offset = 0;
+            while (offset + HEADER_BYTES <= buffer.limit()) {
+                int length = buffer.getInt(offset);
+                int expectedCrc = buffer.getInt(offset + 4);
+                if (length <= 0 || offset + HEADER_BYTES + length > buffer.limit()) break;
+
+                crc.reset();
+                crc.update(buffer.slice(offset + HEADER_BYTES, length));
+                if ((int) crc.getValue() != expectedCrc) break;
+                offset += HEADER_BYTES + length;
+            }
+            return offset;
+        }
+    }
+
+    private Segment createSegment(long baseId) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", baseId, SEGMENT_SUFFIX));
+        Files.createFile(path);
+        return new Segment(baseId, path, 0);
+    }
+
+    @Override
+    public void append(Message message) {
+        if (closed) return;
+
+        ByteBuffer record = encode(message);
+        pendingLock.lock();
+        try {
+            pending.add(record);
+            pendingAvailable.signal();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private static ByteBuffer encode(Message message) {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = Long.BYTES + Integer.BYTES + sender.length + content.length;
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length).putInt(0)
+            .putLong(message.getId())
+            .putInt(sender.length)
+            .put(sender)
+            .put(content);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    // Group commit: everything queued since the last write goes out in one gathering write
+    private void runWriter() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        boolean dirty = false;
+
+        while (true) {
+            pendingLock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    if (dirty && settings.fsyncPolicy() == FsyncPolicy.INTERVAL) {
+                        long wait = settings.fsyncIntervalMs() - (System.currentTimeMillis() - lastSync);
+                        if (wait <= 0) break;
+                        pendingAvailable.await(wait, TimeUnit.MILLISECONDS);
+                    } else {
+                        pendingAvailable.await();
+                    }
+                }
+                batch.addAll(pending);
+                pending.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                pendingLock.unlock();
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    dirty = true;
+                    batch.clear();
+                }
+                boolean syncDue = settings.fsyncPolicy() == FsyncPolicy.ALWAYS
+                    || (settings.fsyncPolicy() == FsyncPolicy.INTERVAL
+                        && System.currentTimeMillis() - lastSync >= settings.fsyncIntervalMs());
+                if (dirty && (syncDue || closed)) {
+                    activeChannel.force(false);
+                    lastSync = System.currentTimeMillis();
+                    dirty = false;
+                }
+            } catch (IOException e) {
+                Log.error("Failed to write message log", "dir", directory, "error", e.getMessage());
+                batch.clear();
+            }
+
+            if (closed) {
+                pendingLock.lock();
+                try {
+                    if (pending.isEmpty()) return;
+                } finally {
+                    pendingLock.unlock();
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) throws IOException {
+        Segment active = activeSegment();
+        int from = 0;
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            ByteBuffer record = batch.get(i);
+            if (active.size + bytes > 0 && active.size + bytes + record.remaining() > settings.segmentBytes()) {
+                write(active, batch.subList(from, i), bytes);
+                active = rollSegment(record.getLong(HEADER_BYTES));
+                from = i;
+                bytes = 0;
+            }
+            bytes += record.remaining();
+        }
+        write(active, batch.subList(from, batch.size()), bytes);
+    }
+
+    private void write(Segment segment, List<ByteBuffer> records, long bytes) throws IOException {
+        if (records.isEmpty()) return;
+
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        long written = 0;
+        try {
+            while (written < bytes) {
+                written += activeChannel.write(buffers);
+            }
+        } catch (IOException e) {
+            activeChannel.truncate(segment.size); // Don't leave a partial record for the next batch to follow
+            activeChannel.position(segment.size);
+            throw e;
+        }
+        segment.size += bytes; // Publishes the records to readers
+    }
+
+    private Segment rollSegment(long baseId) throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+
+        Segment next = createSegment(baseId);
+        activeChannel = FileChannel.open(next.path, StandardOpenOption.WRITE);
+        segmentsLock.lock();
+        try {
+            segments.add(next);
+        } finally {
+            segmentsLock.unlock();
+        }
+        return next;
+    }
+
+    private Segment activeSegment() {
+        segmentsLock.lock();
+        try {
+            return segments.get(segments.size() - 1);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> readBefore(long beforeId, int n) {
+        if (n <= 0) return Collections.emptyList();
+
+        List<Segment> snapshot;
+        segmentsLock.lock();
+        try {
+            snapshot = new ArrayList<>(segments);
+        } finally {
+            segmentsLock.unlock();
+        }
+
+        // Walk segments newest first until enough messages were collected
+        List<List<Message>> chunks = new ArrayList<>();
+        int collected = 0;
+        long before = beforeId;
+        try {
+            for (int i = snapshot.size() - 1; i >= 0 && collected < n; i--) {
+                Segment segment = snapshot.get(i);
+                if (segment.baseId >= before) continue;
+
+                List<Message> chunk = readSegment(segment, before, n - collected);
+                chunks.add(chunk);
+                collected += chunk.size();
+                before = segment.baseId;
+            }
+        } catch (IOException e) {
+            Log.error("Failed to read message log", "dir", directory, "error", e.getMessage());
+        }
+
+        List<Message> result = new ArrayList<>(collected);
+        for (int i = chunks.size() - 1; i >= 0; i--) {
+            result.addAll(chunks.get(i));
+        }
+        return result;
+    }
+
+    // Returns the last n messages of the segment with id lower than beforeId
+    private List<Message> readSegment(Segment segment, long beforeId, int n) throws IOException {
+        indexSegment(segment);
+
+        int startOffset;
+        long size;
+        synchronized (segment) {
+            long endId = Math.min(beforeId, segment.lastId + 1);
+            long startId = endId - n;
+            int entry = Arrays.binarySearch(segment.indexIds, 0, segment.indexCount, startId);
+            if (entry < 0) entry = Math.max(0, -entry - 2);
+            startOffset = segment.indexCount == 0 ? 0 : segment.indexOffsets[entry];
+            size = segment.indexedBytes;
+        }
+
+        ByteBuffer buffer = map(segment, size);
+        List<Message> messages = new ArrayList<>(n);
+        int offset = startOffset;
+        while (offset < size) {
+            int length = buffer.getInt(offset);
+            long id = buffer.getLong(offset + HEADER_BYTES);
+            if (id >= beforeId) break;
+            messages.add(decode(buffer, offset, length, id));
+            offset += HEADER_BYTES + length;
+        }
+
+        // Keep only the newest n, the scan starts at the index entry at or before the first wanted id
+        return messages.size() > n ? messages.subList(messages.size() - n, messages.size()) : messages;
+    }
+
+    private static Message decode(ByteBuffer buffer, int offset, int length, long id) {
+        int senderOffset = offset + HEADER_BYTES + Long.BYTES + Integer.BYTES;
+        int senderLength = buffer.getInt(offset + HEADER_BYTES + Long.BYTES);
+        int contentOffset = senderOffset + senderLength;
+        int contentLength = offset + HEADER_BYTES + length - contentOffset;
+
+        String sender = StandardCharsets.UTF_8.decode(buffer.slice(senderOffset, senderLength)).toString();
+        String content = StandardCharsets.UTF_8.decode(buffer.slice(contentOffset, contentLength)).toString();
+        return new Message(sender, content).withId(id);
+    }
+
+    // Extends the segment's sparse index over records written since the last call
+    private void indexSegment(Segment segment) throws IOException {
+        synchronized (segment) {
+            long size = segment.size;
+            if (segment.indexedBytes >= size) return;
+
+            ByteBuffer buffer = map(segment, size);
+            int offset = (int) segment.indexedBytes;
+            while (offset < size) {
+                int length = buffer.getInt(offset);
+                long id = buffer.getLong(offset + HEADER_BYTES);
+                if (segment.indexedRecords % INDEX_INTERVAL == 0)
+                    addIndexEntry(segment, id, offset);
+                segment.indexedRecords++;
+                segment.lastId = id;
+                offset += HEADER_BYTES + length;
+            }
+            segment.indexedBytes = offset;
+        }
+    }
+
+    private static void addIndexEntry(Segment segment, long id, int offset) {
+        if (segment.indexCount == segment.indexIds.length) {
+            segment.indexIds = Arrays.copyOf(segment.indexIds, segment.indexCount * 2);
+            segment.indexOffsets = Arrays.copyOf(segment.indexOffsets, segment.indexCount * 2);
+        }
+        segment.indexIds[segment.indexCount] = id;
+        segment.indexOffsets[segment.indexCount] = offset;
+        segment.indexCount++;
+    }
+
+    // Sealed segments keep their mapping, the active one is remapped to its current size
+    private ByteBuffer map(Segment segment, long size) throws IOException {
+        synchronized (segment) {
+            if (segment.mapped != null && segment.mapped.limit() >= size)
+                return segment.mapped.duplicate();
+
+            if (segment.readChannel == null)
+                segment.readChannel = FileChannel.open(segment.path, StandardOpenOption.READ);
+            MappedByteBuffer mapped = segment.readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (segment != activeSegment())
+                segment.mapped = mapped;
+            return mapped.duplicate();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        pendingLock.lock();
+        try {
+            pendingAvailable.signalAll();
+        } finally {
+            pendingLock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        activeChannel.close();
+        List<Segment> snapshot;
+        segmentsLock.lock();
+        try {
+            snapshot = new ArrayList<>(segments);
+        } finally {
+            segmentsLock.unlock();
+        }
+        for (Segment segment : snapshot) {
+            synchronized (segment) {
+                if (segment.readChannel != null) segment.readChannel.close();
+            }
+        }
+    }
+}
@@ -1,62 +1,162 @@
 
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.locks.*;
 
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 
 public class Server {
+    private static final String[] CIPHER_SUITES = { 
+        "TLS_AES_128_GCM_SHA256", 
+        "TLS_AES_256_GCM_SHA384" 
+    };
+
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    private static final int MAX_HISTORY_CAPACITY = 1_000_000; // Per room, kept in memory
+
     private final int port;
-    private final Map<String, Room> rooms = new HashMap<>();
-    private final Lock roomLock = new ReentrantLock();
+    private final TimerWheel timer = new TimerWheel(TIMER_TICK_MS, TIMER_WHEEL_SIZE);
+    private final RoomRegistry rooms = new RoomRegistry(RoomShards.fromSystemProperties(timer));
     private AuthManager authManager;
+    private MessageLogManager messageLogs;
+    private final OutboundConfig outboundConfig = OutboundConfig.fromSystemProperties();
+    private final AIScheduler aiScheduler = AIScheduler.fromSystemProperties(timer);
+    private final ResponseCache aiCache = ResponseCache.fromSystemProperties();
+    private final InferenceBackend aiBackend = InferenceRouter.fromSystemProperties();
+    private ServerMetrics metrics;
+    private ClusterNode cluster; // Null unless chat.cluster.nodeId is set
+    private ServerContext context;
 
     public Server(int port) {
         this.port = port;
     }
 
     public void start() throws IOException {
-        authManager = new AuthManager("data/users.txt");
+        authManager = new AuthManager(Path.of(System.getProperty("chat.auth.dir", "data")), timer);
+        messageLogs = new MessageLogManager(
+            Path.of(System.getProperty("chat.log.dir", "data/log")), 
+            SegmentedMessageLog.Settings.fromSystemProperties());
+        Runtime.getRuntime().addShutdownHook(new Thread(messageLogs::close)); // Flush pending log writes
+        Runtime.getRuntime().addShutdownHook(new Thread(authManager::close)); // Checkpoint the credential index
+
+        MessageBus bus = TcpBus.fromSystemProperties();
+        if (bus != null) 
+            cluster = new ClusterNode(bus, Long.getLong("chat.cluster.requestTimeoutMs", 2000), authManager.getSessions().getTtlMs());
+        startMetrics();
+        context = new ServerContext(rooms, authManager, outboundConfig, messageLogs, timer, aiScheduler, aiCache, aiBackend, metrics, cluster);
+
         loadRoomsFromFile("data/rooms.txt");
+        loadRoomsFromLog();
+        if (cluster != null) 
+            cluster.start(context);
+
+        if ("nio".equals(System.getProperty("chat.transport", "blocking"))) 
+            startNio();
+        else 
+            startBlocking();
+    }
+
+    private void startMetrics() {
+        metrics = new ServerMetrics(rooms, authManager, aiScheduler, aiCache, aiBackend, cluster, 
+            Integer.getInteger("chat.metrics.topRooms", 10));
+
+        long intervalMs = Long.getLong("chat.metrics.intervalMs", 60000);
+        if (intervalMs <= 0) return;
+        Path snapshotFile = Path.of(System.getProperty("chat.metrics.file", "data/metrics.txt"));
+        metrics.startSnapshots(snapshotFile, intervalMs);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> metrics.writeSnapshot(snapshotFile)));
+    }
 
+    // One virtual thread per connection, blocking reads and writes
+    private void startBlocking() throws IOException {
         SSLServerSocketFactory ssf = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
         SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(port);
-        serverSocket.setEnabledCipherSuites(new String[] { 
-            "TLS_AES_128_GCM_SHA256", 
-            "TLS_AES_256_GCM_SHA384" 
-        });
+        serverSocket.setEnabledCipherSuites(CIPHER_SUITES);
 
-        System.out.println("Server started on port " + port);
+        Log.info("Server started", "port", port, "transport", "blocking");
         while (true) {
             try {
                 SSLSocket clientSocket = (SSLSocket)serverSocket.accept();
-                Thread.startVirtualThread(new ClientHandler(clientSocket, rooms, roomLock, authManager));
+                Thread.startVirtualThread(new ClientHandler(clientSocket, context));
             } catch (SSLException e) {
-                System.err.println("SSL Handshake failed: " + e.getMessage());
+                Log.warn("SSL handshake failed", "error", e.getMessage());
                 continue; // Keep server running
             } catch (IOException e) {
-                System.err.println("IOException: " + e.getMessage());
-                e.printStackTrace();
+                Log.error("Accept failed", "error", e);
             }
         }
     }
 
+    // A few selector threads multiplexing non-blocking channels
+    private void startNio() throws IOException {
+        SSLContext sslContext;
+        try {
+            sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available: " + e.getMessage(), e);
+        }
+
+        int selectors = Integer.getInteger("chat.nio.selectors", Runtime.getRuntime().availableProcessors());
+        NioServer nioServer = new NioServer(port, sslContext, CIPHER_SUITES, selectors, 
+            connection -> new ClientHandler(connection, context));
+        nioServer.start();
+    }
+
     private void loadRoomsFromFile(String filePath) throws IOException {
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String roomName;
-            while ((roomName = reader.readLine()) != null) {
-                roomName = roomName.trim();
-                if (!roomName.isEmpty()) {
-                    rooms.put(roomName, new Room(roomName));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                // Optional per-room history size: <roomname>:<capacity>. A suffix that isn't
+                // a number is part of the name, as in AI:<roomname>
+                String roomName = line;
+                int historyCapacity = Room.DEFAULT_HISTORY_CAPACITY;
+                int separator = line.lastIndexOf(':');
+                if (separator > 0 && line.substring(separator + 1).trim().matches("[-+]?\\d+")) {
+                    roomName = line.substring(0, separator).trim();
+                    historyCapacity = parseHistoryCapacity(roomName, line.substring(separator + 1).trim());
                 }
+                boolean owned = cluster == null || cluster.owns(roomName);
+                Room room = new Room(roomName, historyCapacity, owned ? messageLogs.open(roomName, false) : null);
+                room.setCluster(cluster);
+                rooms.put(room);
             }
         }
     }
 
+    // The capacity given in rooms.txt, or the default one if it is not a sensible size
+    private static int parseHistoryCapacity(String roomName, String value) {
+        try {
+            int capacity = Integer.parseInt(value);
+            if (capacity > 0 && capacity <= MAX_HISTORY_CAPACITY) return capacity;
+        } catch (NumberFormatException e) {
+            // Too large for an int
+        }
+        Log.warn("Invalid history capacity in rooms file, using the default", "room", roomName,
+            "capacity", value, "default", Room.DEFAULT_HISTORY_CAPACITY);
+        return Room.DEFAULT_HISTORY_CAPACITY;
+    }
+
+    // Brings back rooms created by users in earlier runs
+    private void loadRoomsFromLog() throws IOException {
+        for (Map.Entry<String, Boolean> stored : messageLogs.storedRooms().entrySet()) {
+            String roomName = stored.getKey();
+            if (rooms.contains(roomName)) continue;
+
+            rooms.put(context.newRoom(roomName, stored.getValue()));
+        }
+    }
+
     public static void main(String[] args) {
 
         System.setProperty("javax.net.ssl.keyStore", "server.jks");
@@ -71,7 +171,7 @@ public class Server {
         try {
             server.start();
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            Log.error("Server error", "error", e.getMessage());
         }
     }
 }
@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+/**
+ * Server-wide services shared by every ClientHandler.
+ */
+public record ServerContext(
+    RoomRegistry rooms,
+    AuthManager authManager,
+    OutboundConfig outboundConfig,
+    MessageLogManager messageLogs,
+    TimerWheel timer,
+    AIScheduler aiScheduler,
+    ResponseCache aiCache,
+    InferenceBackend aiBackend,
+    ServerMetrics metrics,
+    ClusterNode cluster // Null unless the server is part of a cluster
+) {
+
+    /** Creates a room for a join: with a log if this node owns it, and attached to the cluster. */
+    public Room newRoom(String name, boolean ai) throws IOException {
+        MessageStore store = cluster == null || cluster.owns(name) ? messageLogs.open(name, ai) : null;
+        Room room = ai 
+            ? AIRoom.create(name, store, aiScheduler, aiCache, aiBackend) 
+            : new Room(name, Room.DEFAULT_HISTORY_CAPACITY, store);
+        room.setCluster(cluster);
+        return room;
+    }
+}
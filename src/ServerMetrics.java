@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide metrics, for capacity planning without a profiler. Command
+ * latencies and connection counts are recorded here. Everything else is kept
+ * by the component it measures (rooms, AI rooms, AuthManager, ...) and only
+ * read when a report is made, so recording never goes through this class.
+ * Reports are shown by the "metrics" command, to local clients only, and
+ * written to a snapshot file at a fixed interval.
+ */
+public class ServerMetrics {
+    // Indexed by opcode, see BinaryProtocol. A line dispatched as OP_LINE matched no command
+    private static final String[] COMMAND_NAMES = {
+        "unknown", "auth", "reconnect", "ping", "join", "msg", "leave", "list",
+        "who", "history", "help", "quit", "proto", "metrics"
+    };
+
+    private final LatencyHistogram[] commandStats = new LatencyHistogram[COMMAND_NAMES.length];
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+
+    private final RoomRegistry rooms;
+    private final AuthManager authManager;
+    private final AIScheduler aiScheduler;
+    private final ResponseCache aiCache;
+    private final InferenceBackend aiBackend;
+    private final ClusterNode cluster; // Null unless the server is part of a cluster
+    private final int topRooms;
+
+    public ServerMetrics(RoomRegistry rooms, AuthManager authManager, AIScheduler aiScheduler,
+                         ResponseCache aiCache, InferenceBackend aiBackend, ClusterNode cluster, int topRooms) {
+        for (int i = 0; i < commandStats.length; i++)
+            commandStats[i] = new LatencyHistogram();
+        this.rooms = rooms;
+        this.authManager = authManager;
+        this.aiScheduler = aiScheduler;
+        this.aiCache = aiCache;
+        this.aiBackend = aiBackend;
+        this.cluster = cluster;
+        this.topRooms = topRooms;
+    }
+
+    /** Records a command that started at startNanos, a System.nanoTime() reading. */
+    public void recordCommand(int opcode, long startNanos) {
+        int index = opcode >= 0 && opcode < COMMAND_NAMES.length ? opcode : BinaryProtocol.OP_LINE;
+        commandStats[index].recordSince(startNanos);
+    }
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+        connectionsOpened.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /** Writes a report to file every intervalMs, replacing the previous one, until the server stops. */
+    public void startSnapshots(Path file, long intervalMs) {
+        Thread.ofVirtual().name("metrics-snapshot").start(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(intervalMs);
+                    writeSnapshot(file);
+                }
+            } catch (InterruptedException e) {
+                // Server stopping
+            }
+        });
+    }
+
+    /** Writes a report to file, atomically replacing the previous one. */
+    public void writeSnapshot(Path file) {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            Files.writeString(tmp, report(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error("Failed to write metrics snapshot", "file", file, "error", e.getMessage());
+        }
+    }
+
+    /** The current metrics as text, one line per item. Every time is shown with its unit. */
+    public String report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Chat server metrics at " + Instant.now());
+        lines.add("uptime=" + (System.currentTimeMillis() - startedAt) / 1000 + "s connections=" + connections.get()
+            + " connectionsOpened=" + connectionsOpened.get());
+
+        for (int i = 0; i < commandStats.length; i++) {
+            if (commandStats[i].getCount() == 0) continue;
+            lines.add("command." + COMMAND_NAMES[i] + " " + commandStats[i].format(TimeUnit.MICROSECONDS));
+        }
+
+        reportRooms(lines);
+        reportAuth(lines);
+        reportAI(lines);
+        if (cluster != null) lines.add("cluster " + cluster);
+        return String.join("\n", lines) + "\n";
+    }
+
+    // Totals over every room, then the busiest ones on their own
+    private void reportRooms(List<String> lines) {
+        List<Room> all = rooms.rooms();
+        LatencyHistogram fanOut = new LatencyHistogram();
+        LatencyHistogram outboundQueued = new LatencyHistogram(); // One value per connected user
+        Set<User> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        int participants = 0;
+        long rejected = 0; // Tasks the cluster bus couldn't hand to a full room
+        for (Room room : all) {
+            fanOut.add(room.getFanOutStats());
+            rejected += room.getMailbox().getRejected();
+            for (User user : room.getParticipants()) {
+                participants++;
+                if (seen.add(user)) outboundQueued.record(user.getQueuedMessages());
+            }
+        }
+        lines.add("rooms count=" + all.size() + " participants=" + participants + " rejected=" + rejected);
+        lines.add("rooms.fanOut " + fanOut.format(TimeUnit.MICROSECONDS));
+        lines.add("rooms.shards " + rooms.getShards());
+        lines.add("outbound.queued " + outboundQueued);
+
+        all.sort(Comparator.comparingLong((Room room) -> room.getFanOutStats().getCount()).reversed());
+        for (Room room : all.subList(0, Math.min(topRooms, all.size()))) {
+            if (room.getFanOutStats().getCount() == 0) break;
+            lines.add("room." + room.getName() + " participants=" + room.getParticipants().size()
+                + " rejected=" + room.getMailbox().getRejected() + " " + room.getDeliveryStats());
+            lines.add("room." + room.getName() + ".fanOut " + room.getFanOutStats().format(TimeUnit.MICROSECONDS));
+        }
+    }
+
+    private void reportAuth(List<String> lines) {
+        SessionStore sessions = authManager.getSessions();
+        lines.add("auth users=" + authManager.getUserCount() + " sessions=" + sessions.size()
+            + " expired=" + sessions.getExpired() + " displaced=" + sessions.getDisplaced()
+            + " busy=" + authManager.getRejected());
+        lines.add("auth.total " + authManager.getAuthStats().format(TimeUnit.MILLISECONDS));
+        lines.add("auth.bcrypt " + authManager.getHashStats().format(TimeUnit.MILLISECONDS));
+    }
+
+    private void reportAI(List<String> lines) {
+        LatencyHistogram wait = new LatencyHistogram();
+        LatencyHistogram firstToken = new LatencyHistogram();
+        LatencyHistogram inference = new LatencyHistogram();
+        int aiRooms = 0;
+        int pending = 0;
+        for (Room room : rooms.rooms()) {
+            if (!(room instanceof AIRoom aiRoom)) continue;
+            aiRooms++;
+            pending += aiRoom.getPendingMentions();
+            wait.add(aiRoom.getWaitStats());
+            firstToken.add(aiRoom.getFirstTokenStats());
+            inference.add(aiRoom.getInferenceStats());
+        }
+        lines.add("ai rooms=" + aiRooms + " running=" + aiScheduler.running() + " pendingMentions=" + pending);
+        lines.add("ai.wait " + wait.format(TimeUnit.MILLISECONDS));
+        lines.add("ai.firstToken " + firstToken.format(TimeUnit.MILLISECONDS));
+        lines.add("ai.inference " + inference.format(TimeUnit.MILLISECONDS));
+        lines.add("ai.cache " + aiCache);
+        lines.add("ai.backends " + aiBackend);
+    }
+}
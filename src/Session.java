@@ -1,17 +1,70 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A logged in user's session. Expires after a period without activity, or
+ * earlier when the SessionStore invalidates it. Handlers keep a reference to
+ * their session, so checking it is a volatile read and no lookup.
+ */
 class Session {
+    private static final long INVALIDATED = 0;
+    private static final VarHandle EXPIRATION_TIME;
+    static {
+        try {
+            EXPIRATION_TIME = MethodHandles.lookup().findVarHandle(Session.class, "expirationTime", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String token;
     private final String username;
-    private final long expirationTime;
-    private Room room;
-    
-    Session(String username, long expirationTime) {
+    private final long ttlMs;
+    private final long renewStepMs;
+    private volatile long expirationTime;
+    private volatile Room room; // Set by the handler, read by the one that reconnects
+
+    Session(String token, String username, long ttlMs, long renewStepMs) {
+        this.token = token;
         this.username = username;
-        this.expirationTime = expirationTime;
+        this.ttlMs = ttlMs;
+        this.renewStepMs = renewStepMs;
+        this.expirationTime = System.currentTimeMillis() + ttlMs;
     }
 
     public boolean isValid() {
         return System.currentTimeMillis() < expirationTime;
     }
 
+    /**
+     * Records activity: returns false if the session is no longer valid, otherwise
+     * pushes its expiration back to the full TTL. The write is skipped unless it
+     * would move by at least the renew step, so busy sessions don't write on every command.
+     */
+    public boolean touch() {
+        long now = System.currentTimeMillis();
+        long current = expirationTime;
+        if (now >= current) return false;
+
+        long renewed = now + ttlMs;
+        // A lost race is either another renewal, or an invalidation that must not be undone
+        if (renewed - current >= renewStepMs) EXPIRATION_TIME.compareAndSet(this, current, renewed);
+        return true;
+    }
+
+    /** Ends the session now. Handlers holding it see it on their next check. */
+    void invalidate() {
+        expirationTime = INVALIDATED;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -0,0 +1,195 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Active sessions by token. A session expires after a period without activity:
+ * every successful validation slides its expiration forward. Lookups and
+ * renewals take no lock. A session that is removed, because it expired or
+ * was displaced, is also invalidated, so handlers holding it find out without
+ * a lookup. Each session has one timer on the shared wheel; when
+ * it fires, an expired session is removed and a renewed one is checked again
+ * at its new expiration, so sessions whose token is never presented again are
+ * still dropped. Each user keeps at most a fixed number of sessions, the
+ * oldest one making way for a new login. In a cluster, a listener shares
+ * sessions with the other nodes, and a node a client reconnects to adopts
+ * the session under its existing token.
+ */
+public class SessionStore {
+    private static final long MAX_RENEW_STEP_MS = 1000;
+
+    /** Told when sessions start, change room and end, e.g. to share them with other nodes. */
+    public interface Listener {
+        /** A session was created or adopted, or its room changed. */
+        void sessionUpdated(Session session);
+
+        /** A session expired or was displaced. Not called for sessions dropped because another node took them. */
+        void sessionEnded(Session session);
+    }
+
+    private final long ttlMs;
+    private final long renewStepMs;
+    private final int maxSessionsPerUser;
+    private final TimerWheel timer;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>(); // (token, session)
+
+    // Only taken when sessions are created or removed, never by lookups
+    private final Lock userTokensLock = new ReentrantLock();
+    private final Map<String, ArrayDeque<String>> tokensByUser = new HashMap<>(); // Oldest first
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong displaced = new AtomicLong();
+    private volatile Listener listener;
+
+    public SessionStore(long ttlMs, int maxSessionsPerUser, TimerWheel timer) {
+        this.ttlMs = ttlMs;
+        this.renewStepMs = Math.min(MAX_RENEW_STEP_MS, ttlMs / 10);
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.timer = timer;
+    }
+
+    public static SessionStore fromSystemProperties(TimerWheel timer) {
+        return new SessionStore(
+            TimeUnit.MINUTES.toMillis(Long.getLong("chat.auth.sessionMinutes", 5)),
+            Integer.getInteger("chat.auth.maxSessionsPerUser", 8),
+            timer);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public String create(String username) {
+        String token = UUID.randomUUID().toString();
+        add(new Session(token, username, ttlMs, renewStepMs));
+        return token;
+    }
+
+    /**
+     * Takes over a session another node started, keeping its token. Returns the
+     * session, or the one already here with that token.
+     */
+    public Session adopt(String token, String username) {
+        Session session = new Session(token, username, ttlMs, renewStepMs);
+        Session existing = add(session);
+        return existing != null ? existing : session;
+    }
+
+    // Returns the session already stored under the token instead, if there is one
+    private Session add(Session session) {
+        String token = session.getToken();
+        String username = session.getUsername();
+        Session existing = sessions.putIfAbsent(token, session);
+        if (existing != null) return existing;
+
+        String displacedToken = null;
+        userTokensLock.lock();
+        try {
+            ArrayDeque<String> tokens = tokensByUser.computeIfAbsent(username, k -> new ArrayDeque<>());
+            tokens.addLast(token);
+            if (tokens.size() > maxSessionsPerUser) displacedToken = tokens.pollFirst();
+        } finally {
+            userTokensLock.unlock();
+        }
+        if (displacedToken != null) {
+            Session displacedSession = sessions.remove(displacedToken);
+            if (displacedSession != null) { // Unless it expired or was dropped meanwhile
+                displacedSession.invalidate();
+                displaced.incrementAndGet();
+                if (listener != null) listener.sessionEnded(displacedSession);
+            }
+        }
+
+        scheduleSweep(token, session, ttlMs);
+        if (listener != null) listener.sessionUpdated(session);
+        return null;
+    }
+
+    /** Records the room the session's user is in, so a reconnect can return to it. */
+    public void setRoom(Session session, Room room) {
+        session.setRoom(room);
+        if (listener != null && sessions.get(session.getToken()) == session) listener.sessionUpdated(session);
+    }
+
+    /** Ends the session here without telling the listener, because another node took it over. */
+    public void drop(String token) {
+        Session session = sessions.get(token);
+        if (session != null) remove(token, session, false);
+    }
+
+    public void forEach(Consumer<Session> action) {
+        sessions.values().forEach(action);
+    }
+
+    /** The session, renewed, or null if the token is unknown or expired. */
+    public Session validate(String token) {
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        if (!session.touch()) {
+            remove(token, session, true);
+            return null;
+        }
+        return session;
+    }
+
+    /** The session without checking or renewing it, or null. */
+    public Session get(String token) {
+        return sessions.get(token);
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getDisplaced() {
+        return displaced.get();
+    }
+
+    private void scheduleSweep(String token, Session session, long delayMs) {
+        timer.schedule(() -> sweep(token, session), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs when the session was due to expire. It may have been renewed since
+    private void sweep(String token, Session session) {
+        if (sessions.get(token) != session) return; // Already removed
+        long remaining = session.getExpirationTime() - System.currentTimeMillis();
+        if (remaining > 0) scheduleSweep(token, session, remaining);
+        else remove(token, session, true);
+    }
+
+    private void remove(String token, Session session, boolean expired) {
+        if (!sessions.remove(token, session)) return;
+        session.invalidate();
+        if (expired) {
+            this.expired.incrementAndGet();
+            if (listener != null) listener.sessionEnded(session);
+        }
+
+        userTokensLock.lock();
+        try {
+            ArrayDeque<String> tokens = tokensByUser.get(session.getUsername());
+            if (tokens != null) {
+                tokens.remove(token);
+                if (tokens.isEmpty()) tokensByUser.remove(session.getUsername());
+            }
+        } finally {
+            userTokensLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output of a connection of the blocking transport. Writes collect bytes and
+ * flush hands them to a virtual thread that writes them to the socket, so no
+ * writer ever blocks on a client that doesn't read, least of all under the
+ * writers' monitors, where it would pin its carrier thread.
+ *
+ * As with NioConnection, once too many bytes are waiting, the User's writer
+ * and the next command wait in awaitWritable until the client reads. The
+ * User's queue then fills up, and its overflow policy deals with the slow
+ * client. Closing it closes the socket once everything queued so far was
+ * sent, or after CLOSE_TIMEOUT_MS if the client doesn't read it.
+ */
+public final class SocketOutput extends OutputStream implements Backpressure, Closeable {
+    private static final int MAX_QUEUED_BYTES = Integer.getInteger("chat.blocking.maxQueuedBytes", 256 * 1024);
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+    private static final int LINGER_SECONDS = 1; // Bounds closing a TLS socket while a write is stuck on the client
+
+    private final Socket socket;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(256); // Not flushed yet
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition(); // Something queued, or closing
+    private final Condition notFull = lock.newCondition();   // Fewer than MAX_QUEUED_BYTES queued, or done
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private boolean closing = false;
+    private boolean done = false; // The socket failed or was closed, nothing more is sent
+    private Thread writerThread;   // Started by the first flush
+
+    public SocketOutput(Socket socket) throws SocketException {
+        this.socket = socket;
+        socket.setSoLinger(true, LINGER_SECONDS);
+    }
+
+    @Override
+    public void write(int b) {
+        lock.lock();
+        try {
+            pending.write(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        lock.lock();
+        try {
+            pending.write(bytes, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queues what was written for the socket. Never waits. */
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            if (pending.size() == 0) return;
+            if (done) {
+                pending.reset(); // Like PrintWriter, leave it to the reader to notice the broken socket
+                return;
+            }
+            byte[] bytes = pending.toByteArray();
+            pending.reset();
+            queue.addLast(bytes);
+            queuedBytes += bytes.length;
+            if (writerThread == null)
+                writerThread = Thread.ofVirtual().name("socket-writer").start(this::run);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits while chat.blocking.maxQueuedBytes are waiting for the client to read them. */
+    @Override
+    public void awaitWritable() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queuedBytes >= MAX_QUEUED_BYTES && !done) notFull.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the socket once what is queued was sent, or after CLOSE_TIMEOUT_MS. Safe to call from any thread. */
+    @Override
+    public void close() {
+        flush();
+        lock.lock();
+        try {
+            if (closing) return;
+            closing = true;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        Thread.startVirtualThread(() -> {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+                while (!done && writerThread != null && remaining > 0) remaining = notFull.awaitNanos(remaining);
+            } catch (InterruptedException ignored) {
+            } finally {
+                lock.unlock();
+            }
+            finish(); // Also ends a write stuck on the client
+        });
+    }
+
+    // Writes queued bytes to the socket until it fails or everything was sent after close
+    private void run() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !closing && !done) available.await();
+                    if (done || queue.isEmpty()) break;
+                    batch.addAll(queue);
+                    queue.clear();
+                } finally {
+                    lock.unlock();
+                }
+
+                long written = 0;
+                for (byte[] bytes : batch) {
+                    out.write(bytes);
+                    written += bytes.length;
+                }
+                out.flush();
+                batch.clear();
+                released(written);
+            }
+        } catch (IOException | InterruptedException e) {
+            // The socket was closed under the write, or the client went away
+        }
+        finish();
+    }
+
+    private void released(long bytes) {
+        lock.lock();
+        try {
+            if (done) return; // Reset by finish
+            queuedBytes -= bytes;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Closes the socket outside the lock, since that can wait for a stuck write, up to LINGER_SECONDS
+    private void finish() {
+        lock.lock();
+        try {
+            done = true;
+            queue.clear();
+            queuedBytes = 0;
+            notFull.signalAll();
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,489 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A MessageBus over TLS, for nodes on one machine or a private network.
+ * Every node listens on its own address and keeps one outgoing connection to
+ * each other node, which only carries messages in that direction. A node is
+ * up while its connection is: a writer that is idle sends a heartbeat every
+ * second, so a node that went away is noticed by a failed write, and by the
+ * reader timing out on the other side.
+ *
+ * Both ends of a connection present a certificate from the cluster key store.
+ * The listening node then sends a random challenge, and the connecting node
+ * answers with its node id, an HMAC of the challenge keyed by the cluster
+ * secret and a challenge of its own, which the listening node answers the
+ * same way. The secret itself never goes over the wire, and a connection
+ * without the right answers is refused.
+ *
+ * A node that falls MAX_QUEUED messages behind is reconnected: its queue is
+ * dropped, and it gets this node's sessions again once it is back up. That
+ * resync runs on a thread of its own while the writer already drains the
+ * queue, and doesn't count toward MAX_QUEUED: it waits for room instead, so
+ * a node with more sessions than that is resynced rather than reconnected
+ * over and over.
+ *
+ * Frame: [int length][int field count][int length][UTF-8 bytes]...   (field 0 is the type)
+ */
+public class TcpBus implements MessageBus {
+    private static final String CHALLENGE = "CHALLENGE"; // nonce
+    private static final String HELLO = "HELLO";         // nodeId, HMAC of the challenge, nonce
+    private static final String WELCOME = "WELCOME";     // HMAC of the nonce in HELLO
+    private static final String HEARTBEAT = "HEARTBEAT";
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final long HEARTBEAT_MS = 1000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long RECONNECT_MS = 500;
+    private static final int MAX_QUEUED = 65536;
+    private static final int NONCE_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // Outgoing connection to one node, with the messages waiting for it
+    private final class Peer {
+        final String nodeId;
+        final InetSocketAddress address;
+        final ArrayDeque<BusMessage> queue = new ArrayDeque<>();
+        final Lock lock = new ReentrantLock();
+        final Condition available = lock.newCondition();
+        final Condition notFull = lock.newCondition(); // Fewer than MAX_QUEUED resync messages queued, or down
+        final AtomicLong dropped = new AtomicLong();    // Messages lost to a full queue
+        final AtomicLong reconnects = new AtomicLong(); // Times the queue filled up
+        int resyncQueued = 0;     // Of the queued messages, those onNodeUp sent
+        volatile boolean up = false;
+        volatile Socket socket;        // The current connection, closed to reconnect
+        volatile Thread resyncThread;  // Runs onNodeUp for the current connection
+
+        Peer(String nodeId, InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.address = address;
+        }
+
+        boolean offer(BusMessage message) {
+            if (!up) return false;
+            if (Thread.currentThread() == resyncThread) return offerResync(message);
+            lock.lock();
+            try {
+                int dropping = queue.size() + 1;
+                if (queue.size() - resyncQueued >= MAX_QUEUED) {
+                    // The node can't keep up. Start over on a new connection, onNodeUp resyncs it
+                    dropped.addAndGet(dropping);
+                    reconnects.incrementAndGet();
+                    up = false;
+                    clear();
+                    Log.warn("Cluster bus queue full, reconnecting", "node", nodeId, "dropped", dropping);
+                    closeQuietly(socket); // Also ends a write stuck on the node
+                    return false;
+                }
+                queue.addLast(message);
+                available.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Waits for room rather than reconnecting, so that any number of sessions can be resent
+        private boolean offerResync(BusMessage message) {
+            lock.lock();
+            try {
+                while (resyncQueued >= MAX_QUEUED && up) notFull.await();
+                if (!up) return false;
+                queue.addLast(message);
+                resyncQueued++;
+                available.signal();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Connects, writes until the connection fails, then tries again
+        void run() {
+            while (!closed) {
+                boolean connected = false;
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(address, CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    SSLSocket tls = (SSLSocket) sslContext.getSocketFactory()
+                        .createSocket(socket, address.getHostString(), address.getPort(), true);
+                    tls.setSoTimeout(READ_TIMEOUT_MS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(tls.getInputStream()));
+                    OutputStream out = new BufferedOutputStream(tls.getOutputStream());
+                    BusMessage challenge = readFrame(in);
+                    if (!CHALLENGE.equals(challenge.type()) || challenge.fields().length != 1)
+                        throw new IOException("Expected a challenge, got " + challenge.type());
+                    String ownChallenge = newChallenge();
+                    writeFrame(out, BusMessage.of(HELLO, nodeId(), mac(challenge.field(0), nodeId(), nodeId), ownChallenge));
+                    out.flush();
+                    BusMessage welcome = readFrame(in);
+                    if (!WELCOME.equals(welcome.type()) || welcome.fields().length != 1
+                            || !macMatches(welcome.field(0), ownChallenge, nodeId, nodeId())) {
+                        Log.warn("Refused cluster node with a wrong secret", "node", nodeId);
+                        throw new IOException("Node " + nodeId + " doesn't know the cluster secret");
+                    }
+
+                    connected = true;
+                    up = true;
+                    Log.info("Cluster node up", "node", nodeId, "address", address);
+                    // Set before it starts, so that offer takes even its first sends for resync messages
+                    Thread resync = Thread.ofVirtual().name("bus-resync-" + nodeId).unstarted(() -> listener.onNodeUp(nodeId));
+                    resyncThread = resync;
+                    resync.start();
+                    drain(out);
+                } catch (IOException e) {
+                    if (connected) Log.warn("Cluster node down", "node", nodeId, "error", e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (connected) {
+                        up = false;
+                        lock.lock();
+                        try {
+                            clear();
+                        } finally {
+                            lock.unlock();
+                        }
+                        listener.onNodeDown(nodeId);
+                    }
+                }
+                try {
+                    Thread resync = resyncThread;
+                    if (resync != null) resync.join(); // Its sends fail fast once the node is down
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void drain(OutputStream out) throws IOException, InterruptedException {
+            List<BusMessage> batch = new ArrayList<>();
+            while (!closed) {
+                lock.lock();
+                try {
+                    if (queue.isEmpty()) available.await(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    batch.addAll(queue);
+                    queue.clear();
+                    if (resyncQueued > 0) {
+                        resyncQueued = 0;
+                        notFull.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (batch.isEmpty()) batch.add(BusMessage.of(HEARTBEAT));
+                for (BusMessage message : batch)
+                    writeFrame(out, message);
+                out.flush();
+                batch.clear();
+            }
+        }
+
+        // Called with the lock held, once the node is down
+        private void clear() {
+            queue.clear();
+            resyncQueued = 0;
+            notFull.signal();
+        }
+    }
+
+    private final String nodeId;
+    private final InetSocketAddress listenAddress;
+    private final SecretKeySpec secretKey;
+    private final SSLContext sslContext;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final Set<String> nodes;
+    private volatile Listener listener;
+    private volatile SSLServerSocket serverSocket;
+    private volatile boolean closed = false;
+
+    /**
+     * nodes maps every node id, including this one, to the address it listens
+     * on. sslContext must both present a certificate and trust the other nodes'.
+     */
+    public TcpBus(String nodeId, Map<String, InetSocketAddress> nodes, String secret, SSLContext sslContext) {
+        if (!nodes.containsKey(nodeId))
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster " + nodes.keySet());
+        if (secret == null || secret.isBlank())
+            throw new IllegalArgumentException("A cluster needs a secret, set chat.cluster.secret");
+        this.nodeId = nodeId;
+        this.listenAddress = nodes.get(nodeId);
+        this.secretKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.sslContext = sslContext;
+        this.nodes = Collections.unmodifiableSet(nodes.keySet());
+        nodes.forEach((id, address) -> {
+            if (!id.equals(nodeId)) peers.put(id, new Peer(id, address));
+        });
+    }
+
+    /**
+     * The bus configured by chat.cluster.nodeId and chat.cluster.nodes, a comma
+     * separated list of id=host:port, with chat.cluster.secret and the key store
+     * chat.cluster.keyStore. Null if this server is not in a cluster.
+     */
+    public static TcpBus fromSystemProperties() {
+        String nodeId = System.getProperty("chat.cluster.nodeId");
+        if (nodeId == null || nodeId.isBlank()) return null;
+
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String node : System.getProperty("chat.cluster.nodes", "").split(",")) {
+            node = node.strip();
+            if (node.isEmpty()) continue;
+            String[] idAndAddress = node.split("=", 2);
+            int colon = idAndAddress[1].lastIndexOf(':');
+            nodes.put(idAndAddress[0].strip(), new InetSocketAddress(
+                idAndAddress[1].substring(0, colon).strip(), Integer.parseInt(idAndAddress[1].substring(colon + 1).strip())));
+        }
+        return new TcpBus(nodeId.strip(), nodes, System.getProperty("chat.cluster.secret"), sslContext(
+            System.getProperty("chat.cluster.keyStore", "server.jks"),
+            System.getProperty("chat.cluster.keyStorePassword", "changeit").toCharArray()));
+    }
+
+    // Presents the key store's certificate and trusts only the certificates in it
+    private static SSLContext sslContext(String keyStorePath, char[] password) {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(new File(keyStorePath), password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cluster key store " + keyStorePath + " can't be used: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        try {
+            serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+            serverSocket.setNeedClientAuth(true);
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(listenAddress);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cluster bus can't listen on " + listenAddress + ": " + e.getMessage(), e);
+        }
+        Thread.ofVirtual().name("bus-accept").start(this::acceptLoop);
+        for (Peer peer : peers.values())
+            Thread.ofVirtual().name("bus-to-" + peer.nodeId).start(peer::run);
+        Log.info("Cluster bus started", "node", nodeId, "address", listenAddress, "nodes", nodes);
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public Set<String> nodes() {
+        return nodes;
+    }
+
+    @Override
+    public boolean isUp(String nodeId) {
+        if (nodeId.equals(this.nodeId)) return true;
+        Peer peer = peers.get(nodeId);
+        return peer != null && peer.up;
+    }
+
+    @Override
+    public boolean send(String nodeId, BusMessage message) {
+        Peer peer = peers.get(nodeId);
+        return peer != null && peer.offer(message);
+    }
+
+    @Override
+    public void publish(BusMessage message) {
+        for (Peer peer : peers.values())
+            peer.offer(message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (serverSocket != null) serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("bus-from").start(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (!closed) Log.error("Cluster bus accept failed", "error", e.getMessage());
+            }
+        }
+    }
+
+    // Hands every message of an incoming connection to the listener, in order
+    private void readLoop(Socket socket) {
+        String from = null;
+        try (socket) {
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String challenge = newChallenge();
+            writeFrame(out, BusMessage.of(CHALLENGE, challenge));
+            out.flush();
+
+            BusMessage hello = readFrame(in);
+            if (!HELLO.equals(hello.type()) || hello.fields().length != 3 || !peers.containsKey(hello.field(0))) {
+                Log.warn("Refused cluster connection from an unknown node", "address", socket.getRemoteSocketAddress());
+                return;
+            }
+            if (!macMatches(hello.field(1), challenge, hello.field(0), nodeId)) {
+                Log.warn("Refused cluster connection with a wrong secret", "node", hello.field(0));
+                return;
+            }
+            from = hello.field(0);
+            writeFrame(out, BusMessage.of(WELCOME, mac(hello.field(2), nodeId, from)));
+            out.flush();
+
+            while (!closed) {
+                BusMessage message = readFrame(in);
+                if (HEARTBEAT.equals(message.type())) continue;
+                try {
+                    listener.onMessage(message.from(from));
+                } catch (RuntimeException e) {
+                    Log.error("Cluster message failed", "node", from, "type", message.type(), "error", e);
+                }
+            }
+        } catch (EOFException | SocketTimeoutException e) {
+            Log.debug("Cluster connection closed", "node", from);
+        } catch (IOException e) {
+            Log.warn("Cluster connection failed", "node", from, "error", e.getMessage());
+        }
+    }
+
+    // Proves that from knows the secret, for this challenge and connection direction only
+    private String mac(String challenge, String from, String to) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secretKey);
+            byte[] digest = mac.doFinal((challenge + "\n" + from + "\n" + to).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private boolean macMatches(String received, String challenge, String from, String to) {
+        return MessageDigest.isEqual(mac(challenge, from, to).getBytes(StandardCharsets.UTF_8), received.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String newChallenge() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Peer peer : peers.values()) {
+            if (out.length() > 0) out.append(", ");
+            int queued;
+            peer.lock.lock();
+            try {
+                queued = peer.queue.size();
+            } finally {
+                peer.lock.unlock();
+            }
+            out.append(peer.nodeId).append(" up=").append(peer.up).append(" queued=").append(queued)
+                .append(" dropped=").append(peer.dropped.get()).append(" reconnects=").append(peer.reconnects.get());
+        }
+        return out.toString();
+    }
+
+    // Encodes the frame first and writes it in one call: DataOutputStream's writes are synchronized,
+    // and a virtual thread blocked on the socket under a monitor would pin its carrier thread
+    private static void writeFrame(OutputStream out, BusMessage message) throws IOException {
+        byte[][] parts = new byte[message.fields().length + 1][];
+        parts[0] = message.type().getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 4 + parts[0].length;
+        for (int i = 0; i < message.fields().length; i++) {
+            parts[i + 1] = message.field(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + parts[i + 1].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length);
+        frame.putInt(parts.length);
+        for (byte[] part : parts) {
+            frame.putInt(part.length);
+            frame.put(part);
+        }
+        out.write(frame.array());
+    }
+
+    private static BusMessage readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 8 || length > MAX_FRAME_BYTES) throw new IOException("Bad cluster frame length " + length);
+        int count = in.readInt();
+        if (count < 1 || count > length / 4) throw new IOException("Bad cluster frame field count " + count);
+
+        String[] parts = new String[count];
+        int remaining = length - 4;
+        for (int i = 0; i < count; i++) {
+            int partLength = in.readInt();
+            remaining -= 4 + partLength;
+            if (partLength < 0 || remaining < 0) throw new IOException("Bad cluster frame field length " + partLength);
+            byte[] bytes = new byte[partLength];
+            in.readFully(bytes);
+            parts[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        String[] fields = new String[count - 1];
+        System.arraycopy(parts, 1, fields, 0, fields.length);
+        return BusMessage.of(parts[0], fields);
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.charset.Charset;
+
+/**
+ * Writer for the text protocol. Characters are collected until the next flush
+ * or message and then encoded in one go, so a println costs one encoding.
+ */
+public class TextWriter extends MessageWriter {
+    /** Charset of the text protocol, the same one the client's reader uses by default. */
+    public static final Charset CHARSET = Charset.defaultCharset();
+
+    private final StringBuilder pending = new StringBuilder(128);
+
+    public TextWriter(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        synchronized (lock) {
+            pending.append(chars, offset, length);
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) {
+        synchronized (lock) {
+            pending.append(text, offset, offset + length);
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (pending.length() == 0) return;
+        out.write(pending.toString().getBytes(CHARSET));
+        pending.setLength(0);
+        if (pending.capacity() > 4096) pending.trimToSize(); // Don't keep a big help text around
+    }
+
+    @Override
+    public void writeMessage(EncodedMessage message) throws IOException {
+        synchronized (lock) {
+            writePending();
+            out.write(message.textBytes());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            writePending();
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            writePending();
+            out.close();
+        }
+    }
+}
@@ -1,43 +1,194 @@
-
-
-import java.io.PrintWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connected user. Messages sent to the user are queued in a bounded outbound
+ * mailbox and written to the client's socket by a dedicated virtual thread,
+ * so senders never block on network I/O. When the mailbox passes its
+ * high-water mark the configured {@link OverflowPolicy} is applied.
+ * Messages are pre-encoded and shared with the other recipients, the writer
+ * thread only copies their bytes. Before each batch it waits for the
+ * transport to take more, so a client that stops reading fills the mailbox.
+ */
 public class User {
+    public static final String SLOW_CONSUMER = "SLOW_CONSUMER";
+
+    private static final int MAX_BATCH_SIZE = 64;
+
     private final String username;
-    private final PrintWriter out;
-    private PrintWriter fileWriter;
+    private final MessageWriter out;
+    private final Backpressure backpressure;
+    private final OutboundConfig config;
+    private final Consumer<String> disconnectHandler; // Receives the reason code
+    private final DeliveryStats stats = new DeliveryStats();
 
-    public User(String username, PrintWriter out) {
+    private final ArrayDeque<EncodedMessage> outbound = new ArrayDeque<>();
+    private final Lock outboundLock = new ReentrantLock();
+    private final Condition outboundAvailable = outboundLock.newCondition();
+    private final Thread writerThread;
+
+    private volatile boolean closed = false;
+
+    public User(String username, MessageWriter out, Backpressure backpressure, OutboundConfig config,
+            Consumer<String> disconnectHandler) {
         this.username = username;
         this.out = out;
-
-        try {
-            String filePath = "./temp/output_" + username + ".txt";
-            this.fileWriter = new PrintWriter(new FileWriter(filePath, true));
-        } catch (IOException e) {
-            System.err.println("Error creating file writer: " + e.getMessage());
-        }
+        this.backpressure = backpressure;
+        this.config = config;
+        this.disconnectHandler = disconnectHandler;
+        this.writerThread = Thread.ofVirtual()
+            .name("outbound-" + username)
+            .start(this::drainOutbound);
     }
 
     public String getUsername() {
         return username;
     }
 
+    public DeliveryStats getDeliveryStats() {
+        return stats;
+    }
+
+    /** Messages waiting to be written to the client. */
+    public int getQueuedMessages() {
+        outboundLock.lock();
+        try {
+            return outbound.size();
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
     public void send(String message) {
-        fileWriter.println(message);
-        fileWriter.flush();
+        send(EncodedMessage.ofLine(message, false), null);
     }
 
-    public void close() {
-        System.out.println("Limpando e fechando o ficheiro de mensagens do usuário: " + username);
-        try (PrintWriter cleaner = new PrintWriter(new FileWriter("./temp/output_" + username + ".txt", false))) {
+    /**
+     * Queues a message for delivery without blocking. The message may be shared
+     * with other recipients. Overflow is counted both on this user and on
+     * roomStats, when given.
+     */
+    public void send(EncodedMessage message, DeliveryStats roomStats) {
+        if (closed) return;
 
-        } catch (IOException e) {
-            System.err.println("Error cleaning the file: " + e.getMessage());
+        boolean disconnect = false;
+        outboundLock.lock();
+        try {
+            if (outbound.size() >= config.highWaterMark()) {
+                switch (config.overflowPolicy()) {
+                    case DROP_OLDEST:
+                        outbound.pollFirst();
+                        recordDropped(roomStats);
+                        break;
+                    case DROP_NEWEST:
+                        recordDropped(roomStats);
+                        return;
+                    case COALESCE_SYSTEM:
+                        int coalesced = coalesceSystemMessages(message.isSystem());
+                        stats.recordCoalesced(coalesced);
+                        if (roomStats != null) roomStats.recordCoalesced(coalesced);
+                        if (outbound.size() >= config.highWaterMark()) {
+                            outbound.pollFirst();
+                            recordDropped(roomStats);
+                        }
+                        break;
+                    case DISCONNECT:
+                        outbound.clear();
+                        disconnect = true;
+                        break;
+                }
+            }
+            if (!disconnect) {
+                outbound.addLast(message);
+                outboundAvailable.signal();
+            }
+        } finally {
+            outboundLock.unlock();
         }
 
-        fileWriter.close();
+        if (disconnect) 
+            disconnectSlowConsumer(roomStats);
+    }
+
+    // Removes queued system messages, keeping the newest one unless the incoming message supersedes it
+    private int coalesceSystemMessages(boolean incomingIsSystem) {
+        int removed = 0;
+        boolean keepNewest = !incomingIsSystem;
+        Iterator<EncodedMessage> it = outbound.descendingIterator();
+        while (it.hasNext()) {
+            if (!it.next().isSystem()) continue;
+            if (keepNewest) {
+                keepNewest = false;
+                continue;
+            }
+            it.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    private void recordDropped(DeliveryStats roomStats) {
+        stats.recordDropped();
+        if (roomStats != null) roomStats.recordDropped();
+    }
+
+    private void disconnectSlowConsumer(DeliveryStats roomStats) {
+        stats.recordDisconnect();
+        if (roomStats != null) roomStats.recordDisconnect();
+        Log.info("Disconnecting slow consumer", "user", username, "stats", stats.toString());
+        close();
+        // The handler may block closing the socket, so never run it on the sender's thread
+        Thread.startVirtualThread(() -> disconnectHandler.accept(SLOW_CONSUMER));
+    }
+
+    // Writes queued messages in batches, flushing the socket once per batch
+    private void drainOutbound() {
+        List<EncodedMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (!closed) {
+                outboundLock.lock();
+                try {
+                    while (outbound.isEmpty()) {
+                        outboundAvailable.await();
+                    }
+                    while (!outbound.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+                        batch.add(outbound.pollFirst());
+                    }
+                } finally {
+                    outboundLock.unlock();
+                }
+
+                backpressure.awaitWritable();
+                try {
+                    for (EncodedMessage message : batch)
+                        out.writeMessage(message);
+                    out.flush();
+                } catch (IOException e) {
+                    // Like PrintWriter, leave it to the connection's reader to notice the broken socket
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Interrupted by close()
+        }
+    }
+
+    public void close() {
+        closed = true;
+        writerThread.interrupt();
+        outboundLock.lock();
+        try {
+            outbound.clear();
+        } finally {
+            outboundLock.unlock();
+        }
     }
 }
@@ -0,0 +1,203 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A client that stops reading while a room floods it. What the server keeps
+ * for it must stay bounded: once its connection has maxQueuedBytes waiting,
+ * the User's queue fills up and the overflow policy runs, dropping the oldest
+ * messages or disconnecting it. Meanwhile the sender, a healthy client, must
+ * keep getting its own messages back quickly.
+ *
+ * Virtual threads get a single carrier, so a thread blocked on the stalled
+ * client while pinning its carrier stalls the whole server.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" BackpressureTest [blocking|nio]
+ *
+ * Starts servers in this JVM, so run it from the project directory, where
+ * server.jks and data/rooms.txt are.
+ */
+public class BackpressureTest {
+    private static final int MESSAGES = 5000;
+    private static final int MESSAGE_CHARS = 4000; // 20 MB in all, more than the socket buffers hold
+    private static final int HIGH_WATER_MARK = 64;
+    private static final int WINDOW = HIGH_WATER_MARK / 4; // Messages the sender has in flight
+    private static final long MAX_ROUND_TRIP_P99_MS = 2000;   // For a window to come back to the sender
+
+    public static void main(String[] args) throws Exception {
+        String transport = args.length > 0 ? args[0] : "blocking";
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", "1"); // Before the first virtual thread
+        System.setProperty("javax.net.ssl.keyStore", "server.jks");
+        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+        System.setProperty("javax.net.ssl.trustStore", "server.jks");
+        System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
+        Path data = Check.tempDirectory("nio-backpressure");
+        System.setProperty("chat.transport", transport);
+        System.setProperty("chat.auth.dir", data.toString());
+        System.setProperty("chat.log.dir", data.resolve("log").toString());
+        System.setProperty("chat.log.fsync", "NEVER");
+        System.setProperty("chat.metrics.intervalMs", "0");
+        System.setProperty("chat." + transport + ".maxQueuedBytes", String.valueOf(64 * 1024));
+        System.setProperty("chat.outbound.highWaterMark", String.valueOf(HIGH_WATER_MARK));
+
+        Check.run("stalled reader keeps the newest messages with DROP_OLDEST", () -> {
+            int port = startServer("DROP_OLDEST");
+            Client stalled = Client.connect(port, "stalled1", "flood");
+            long p99 = flood(port, "sender1");
+            Check.that(p99 < MAX_ROUND_TRIP_P99_MS, "sender's p99 round trip " + p99 + " ms");
+
+            // The server has handled every msg by now. Read what was kept for the stalled client
+            int received = 0;
+            int last = -1;
+            String line;
+            while ((line = stalled.readLine(2000)) != null) {
+                if (!line.startsWith("[sender1]: ")) continue;
+                received++;
+                last = Integer.parseInt(line.substring("[sender1]: ".length(), line.indexOf(' ', "[sender1]: ".length())));
+            }
+            Check.that(received < MESSAGES / 2, "stalled client got " + received + " of " + MESSAGES + " messages, nothing was dropped");
+            Check.equal(MESSAGES - 1, last, "last message received");
+
+            // Still connected
+            stalled.send("list");
+            Check.equal("Available rooms:", stalled.readUntil(line2 -> line2.startsWith("Available rooms"), 5000), "list reply");
+            stalled.close();
+        });
+
+        Check.run("stalled reader is disconnected with DISCONNECT", () -> {
+            int port = startServer("DISCONNECT");
+            Client stalled = Client.connect(port, "stalled2", "flood");
+            long p99 = flood(port, "sender2");
+            Check.that(p99 < MAX_ROUND_TRIP_P99_MS, "sender's p99 round trip " + p99 + " ms");
+
+            int received = 0;
+            long deadline = System.currentTimeMillis() + 10_000;
+            boolean ended = false;
+            while (System.currentTimeMillis() < deadline) {
+                String line;
+                try {
+                    line = stalled.readLine(1000);
+                } catch (IOException e) {
+                    ended = true; // Reset or TLS failure on a connection closed under it
+                    break;
+                }
+                if (line == null && stalled.eof) {
+                    ended = true;
+                    break;
+                }
+                if (line != null && line.startsWith("[sender2]: ")) received++;
+            }
+            Check.that(ended, "stalled client should have been disconnected");
+            Check.that(received < MESSAGES / 2, "stalled client got " + received + " of " + MESSAGES + " messages before being disconnected");
+            stalled.close();
+        });
+        System.exit(0); // The servers' threads and shutdown hooks don't stop on their own
+    }
+
+    private static int startServer(String overflowPolicy) throws Exception {
+        System.setProperty("chat.outbound.overflowPolicy", overflowPolicy);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Server server = new Server(port);
+        Thread.ofPlatform().daemon().name("server-" + overflowPolicy).start(() -> {
+            try {
+                server.start(); // Accepts connections until the JVM exits
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(1000);
+        return port;
+    }
+
+    // Sends every message, a window at a time so the sender itself never falls behind. Returns the p99 round trip of a window in ms
+    private static long flood(int port, String username) throws Exception {
+        Client sender = Client.connect(port, username, "flood");
+        String padding = "x".repeat(MESSAGE_CHARS);
+        List<Long> roundTrips = new ArrayList<>();
+        long windowStart = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            sender.send("msg " + i + " " + padding);
+            if (i % WINDOW == WINDOW - 1 || i == MESSAGES - 1) {
+                String echo = "[" + username + "]: " + i + " ";
+                sender.readUntil(line -> line.startsWith(echo), 30_000);
+                roundTrips.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - windowStart));
+                windowStart = System.nanoTime();
+            }
+        }
+        sender.close();
+        roundTrips.sort(null);
+        return roundTrips.get((int) (roundTrips.size() * 0.99));
+    }
+
+    private static final class Client {
+        final SSLSocket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        boolean eof = false;
+
+        private Client(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        // Logs in and joins the room. The small receive buffer makes a client that doesn't read stall sooner
+        static Client connect(int port, String username, String room) throws IOException {
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+            socket.setReceiveBufferSize(8 * 1024);
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+            Client client = new Client(socket);
+            client.send("auth " + username + " secret");
+            client.readUntil(line -> line.startsWith("TOKEN "), 10_000);
+            client.send("join " + room);
+            client.readUntil(line -> line.startsWith("Joined room: "), 10_000);
+            return client;
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        // The next line, or null if none came within timeoutMs or the connection ended
+        String readLine(int timeoutMs) throws IOException {
+            socket.setSoTimeout(timeoutMs);
+            try {
+                String line = in.readLine();
+                if (line == null) eof = true;
+                return line;
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+        }
+
+        String readUntil(Predicate<String> match, int timeoutMs) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (System.currentTimeMillis() < deadline) {
+                String line = readLine(timeoutMs);
+                if (line == null && eof) break;
+                if (line != null && match.test(line)) return line;
+            }
+            throw new AssertionError("No matching line within " + timeoutMs + " ms");
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
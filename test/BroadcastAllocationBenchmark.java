@@ -0,0 +1,84 @@
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heap allocated and CPU time spent per broadcast to a room of 1000 members,
+ * from Room.addMessage until every member's writer wrote it. Members write to
+ * an OutputStream that discards everything, so no socket is involved. Runs
+ * once with every member on the text protocol and once on the binary one.
+ * Allocation is the JVM's count over all threads, so it includes the shard
+ * and the members' writer threads, and some noise from the rest of the JVM.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" BroadcastAllocationBenchmark [members] [broadcasts] [messageBytes] [runs]
+ */
+public class BroadcastAllocationBenchmark {
+
+    // Discards what it is given, counting the messages
+    private static final class Sink extends OutputStream {
+        final AtomicLong messages;
+        final int messageBytes;
+
+        Sink(AtomicLong messages, int messageBytes) {
+            this.messages = messages;
+            this.messageBytes = messageBytes;
+        }
+
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (length >= messageBytes) messages.incrementAndGet(); // Headers and notices are shorter
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int messageBytes = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        TimerWheel timer = new TimerWheel(100, 64);
+        RoomShards shards = new RoomShards(Runtime.getRuntime().availableProcessors(), timer, 0, 1.5);
+        OutboundConfig config = new OutboundConfig(broadcasts + 16, OverflowPolicy.DROP_OLDEST); // Nothing is dropped
+        String content = "x".repeat(messageBytes);
+
+        System.out.printf("members=%d broadcasts=%d messageBytes=%d runs=%d%n", members, broadcasts, messageBytes, runs);
+        for (int run = 1; run <= runs; run++) {
+            for (boolean binary : new boolean[] {false, true}) {
+                Room room = new Room("allocation-" + run + "-" + binary);
+                shards.place(room.getMailbox());
+                AtomicLong written = new AtomicLong();
+                List<User> users = new ArrayList<>(members);
+                for (int i = 0; i < members; i++) {
+                    Sink sink = new Sink(written, messageBytes);
+                    User user = new User("member" + i, binary ? new FrameWriter(sink) : new TextWriter(sink), () -> {}, config, reason -> {});
+                    users.add(user);
+                    room.addParticipant(user);
+                }
+                room.getMailbox().call(() -> null); // Every member joined
+
+                long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+                long cpuBefore = os.getProcessCpuTime();
+                long start = System.nanoTime();
+                for (int b = 0; b < broadcasts; b++)
+                    room.addMessage(new Message("sender", content));
+                Check.eventually(() -> written.get() == (long) members * broadcasts, 60_000, "messages written " + written.get());
+                long elapsed = System.nanoTime() - start;
+                long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+                long cpu = os.getProcessCpuTime() - cpuBefore;
+                users.forEach(User::close);
+
+                System.out.printf("run %d %-6s per broadcast: %8.0f bytes allocated, %5.1f bytes per member, %6.1f us CPU, %6.1f us wall%n",
+                    run, binary ? "binary" : "text", (double) allocated / broadcasts, (double) allocated / broadcasts / members,
+                    cpu / 1e3 / broadcasts, elapsed / 1e3 / broadcasts);
+            }
+        }
+        timer.stop();
+    }
+}
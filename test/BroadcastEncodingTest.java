@@ -0,0 +1,72 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Room.broadcast encodes a message once for the whole fan-out: in a room of
+ * 1000 members, half on the text protocol and half on the binary one, every
+ * text recipient writes the same line bytes and every binary recipient the
+ * same content bytes, whichever recipient's writer encoded them first.
+ */
+public class BroadcastEncodingTest {
+    private static final int MEMBERS = 1000;
+    private static final int MESSAGES = 20;
+    private static final int CONTENT_CHARS = 200; // Longer than any other write, so a write this long is a message
+
+    // Keeps every array of at least CONTENT_CHARS bytes written to it, by identity
+    private static final class Recorder extends OutputStream {
+        final Set<byte[]> arrays;
+        final AtomicLong writes;
+
+        Recorder(Set<byte[]> arrays, AtomicLong writes) {
+            this.arrays = arrays;
+            this.writes = writes;
+        }
+
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (length < CONTENT_CHARS) return;
+            arrays.add(bytes);
+            writes.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TimerWheel timer = new TimerWheel(100, 64);
+        RoomShards shards = new RoomShards(2, timer, 0, 1.5);
+        OutboundConfig config = new OutboundConfig(MESSAGES * 2, OverflowPolicy.DROP_OLDEST);
+
+        Check.run("every recipient of a broadcast writes the same encoded bytes", () -> {
+            Room room = new Room("encode-once");
+            shards.place(room.getMailbox());
+            Set<byte[]> textArrays = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+            Set<byte[]> binaryArrays = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+            AtomicLong writes = new AtomicLong();
+            List<User> users = new ArrayList<>();
+            for (int i = 0; i < MEMBERS; i++) {
+                boolean binary = i % 2 == 1;
+                Recorder recorder = new Recorder(binary ? binaryArrays : textArrays, writes);
+                MessageWriter writer = binary ? new FrameWriter(recorder) : new TextWriter(recorder);
+                User user = new User((binary ? "binary" : "text") + i, writer, () -> {}, config, reason -> {});
+                users.add(user);
+                room.addParticipant(user);
+            }
+
+            for (int m = 0; m < MESSAGES; m++)
+                room.addMessage(new Message("sender", Character.toString('a' + m).repeat(CONTENT_CHARS)));
+            Check.eventually(() -> writes.get() == (long) MEMBERS * MESSAGES, 10_000, "messages written " + writes.get());
+            Check.equal(MESSAGES, textArrays.size(), "distinct text encodings");
+            Check.equal(MESSAGES, binaryArrays.size(), "distinct binary encodings");
+            users.forEach(User::close);
+        });
+
+        timer.stop();
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Assertions for the tests in this directory. The project has no build tool,
+ * so each test is a class with a main method that runs its cases in order,
+ * prints one line per case, and exits with status 1 on the first failure.
+ */
+public final class Check {
+    private Check() {}
+
+    /** A case of a test: code that throws when something is wrong. */
+    public interface Case {
+        void run() throws Exception;
+    }
+
+    /** Runs a case, printing its outcome. Exits the JVM if it failed. */
+    public static void run(String name, Case test) {
+        long start = System.nanoTime();
+        try {
+            test.run();
+            System.out.printf("ok   %s (%d ms)%n", name, (System.nanoTime() - start) / 1_000_000);
+        } catch (Throwable e) {
+            System.out.printf("FAIL %s: %s%n", name, e);
+            e.printStackTrace(System.out);
+            System.exit(1);
+        }
+    }
+
+    public static void that(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    public static void equal(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    /** Polls the condition until it holds, failing after timeoutMs. */
+    public static void eventually(BooleanSupplier condition, long timeoutMs, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError(message + " (after " + timeoutMs + " ms)");
+            Thread.sleep(10);
+        }
+    }
+
+    /** A new empty directory, deleted with its contents when the JVM exits. */
+    public static Path tempDirectory(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                        Files.delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        Files.delete(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException ignored) {}
+        }));
+        return directory;
+    }
+}
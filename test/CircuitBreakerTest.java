@@ -0,0 +1,57 @@
+/**
+ * CircuitBreaker's states: closed until enough failures in a row, open for
+ * openMs, then a single trial request that closes or reopens it.
+ */
+public class CircuitBreakerTest {
+    private static final int FAILURES = 3;
+    private static final long OPEN_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        Check.run("stays closed until failures in a row reach the threshold", () -> {
+            CircuitBreaker breaker = new CircuitBreaker(FAILURES, OPEN_MS);
+            for (int i = 0; i < FAILURES - 1; i++) breaker.recordFailure();
+            breaker.recordSuccess(); // Resets the count
+            for (int i = 0; i < FAILURES - 1; i++) {
+                Check.that(breaker.tryAcquire(), "closed breaker refused a request");
+                breaker.recordFailure();
+            }
+            Check.that(breaker.isAvailable(), "breaker opened below the threshold");
+            Check.equal(0L, breaker.retryInMs(), "retryInMs while closed");
+        });
+
+        Check.run("opens at the threshold and refuses requests", () -> {
+            CircuitBreaker breaker = open();
+            Check.that(!breaker.isAvailable(), "open breaker is available");
+            Check.that(!breaker.tryAcquire(), "open breaker let a request through");
+            long retryInMs = breaker.retryInMs();
+            Check.that(retryInMs > 0 && retryInMs <= OPEN_MS, "retryInMs " + retryInMs);
+        });
+
+        Check.run("half-open lets one trial through and closes when it succeeds", () -> {
+            CircuitBreaker breaker = open();
+            Thread.sleep(OPEN_MS + 20);
+            Check.that(breaker.isAvailable(), "breaker not available once openMs passed");
+            Check.that(breaker.tryAcquire(), "trial request refused");
+            Check.that(!breaker.tryAcquire(), "second request let through during the trial");
+            Check.that(!breaker.isAvailable(), "available during the trial");
+            breaker.recordSuccess();
+            Check.that(breaker.tryAcquire() && breaker.tryAcquire(), "closed breaker refused a request");
+            Check.that(breaker.toString().startsWith("closed"), "state " + breaker);
+        });
+
+        Check.run("a failed trial opens the breaker for another period", () -> {
+            CircuitBreaker breaker = open();
+            Thread.sleep(OPEN_MS + 20);
+            Check.that(breaker.tryAcquire(), "trial request refused");
+            breaker.recordFailure(); // One failure is enough during a trial
+            Check.that(!breaker.tryAcquire(), "reopened breaker let a request through");
+            Check.that(breaker.retryInMs() > OPEN_MS / 2, "retryInMs " + breaker.retryInMs());
+        });
+    }
+
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = new CircuitBreaker(FAILURES, OPEN_MS);
+        for (int i = 0; i < FAILURES; i++) breaker.recordFailure();
+        return breaker;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * InferenceRouter over FakeBackends: failing over to the next backend, taking
+ * a failing backend out once its breaker opens, failing fast while every
+ * breaker is open, and coming back through a half-open trial.
+ */
+public class InferenceRouterTest {
+    private static final String HEALTHY = "fake:?firstMs=0&tokenMs=0&tokens=3";
+    private static final String FAILING = "fake:?firstMs=0&failRate=1";
+    private static final int BREAKER_FAILURES = 2;
+    private static final long BREAKER_OPEN_MS = 200;
+
+    // Every request the router sent, by backend name, in order
+    private static final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+    // A FakeBackend that can be swapped for another, recording each request
+    private static final class Recorded implements InferenceBackend {
+        private final String name;
+        private volatile FakeBackend fake;
+
+        Recorded(String name, String url) {
+            this.name = name;
+            this.fake = new FakeBackend(url);
+        }
+
+        void become(String url) {
+            fake = new FakeBackend(url);
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String model() {
+            return fake.model();
+        }
+
+        @Override
+        public void generate(String prompt, Consumer<String> onToken) throws IOException, InterruptedException {
+            calls.add(name);
+            fake.generate(prompt, onToken);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Check.run("a request that fails before its first token goes to the next backend", () -> {
+            InferenceRouter router = router(new Recorded("a", FAILING), new Recorded("b", HEALTHY));
+            calls.clear();
+            List<String> tokens = new ArrayList<>();
+            router.generate("hi", tokens::add); // The first request starts at the first backend
+            Check.equal(List.of("a", "b"), calls, "backends tried");
+            Check.equal(List.of("Fake answer, token 0", " 1", " 2"), tokens, "tokens");
+        });
+
+        Check.run("a failing backend is skipped once its breaker opens", () -> {
+            InferenceRouter router = router(new Recorded("a", FAILING), new Recorded("b", HEALTHY));
+            calls.clear();
+            for (int i = 0; i < 10; i++) router.generate("hi", token -> {});
+            Check.equal((long) BREAKER_FAILURES, calls.stream().filter("a"::equals).count(), "requests sent to a");
+            Check.equal(List.of("b", "b", "b", "b"), calls.subList(calls.size() - 4, calls.size()), "last backends tried");
+            Check.that(router.isAvailable(), "router with a healthy backend is unavailable");
+        });
+
+        Check.run("requests fail fast while every breaker is open", () -> {
+            Recorded only = new Recorded("a", FAILING);
+            InferenceRouter router = router(only);
+            for (int i = 0; i < BREAKER_FAILURES; i++) {
+                IOException error = expect(() -> router.generate("hi", token -> {}));
+                Check.that(!(error instanceof BackendUnavailableException), "backend's own failure expected, got " + error);
+            }
+            calls.clear();
+            IOException error = expect(() -> router.generate("hi", token -> {}));
+            Check.that(error instanceof BackendUnavailableException, "expected BackendUnavailableException, got " + error);
+            Check.that(!router.isAvailable(), "router available while every breaker is open");
+            Check.equal(List.of(), calls, "backends tried while open");
+        });
+
+        Check.run("a half-open backend comes back after a successful trial", () -> {
+            Recorded only = new Recorded("a", FAILING);
+            InferenceRouter router = router(only);
+            for (int i = 0; i < BREAKER_FAILURES; i++) expect(() -> router.generate("hi", token -> {}));
+
+            // A failed trial opens the breaker again
+            Thread.sleep(BREAKER_OPEN_MS + 20);
+            Check.that(router.isAvailable(), "router unavailable once openMs passed");
+            expect(() -> router.generate("hi", token -> {}));
+            Check.that(!router.isAvailable(), "router available after a failed trial");
+
+            only.become(HEALTHY);
+            Thread.sleep(BREAKER_OPEN_MS + 20);
+            List<String> tokens = new ArrayList<>();
+            router.generate("hi", tokens::add);
+            Check.equal(3, tokens.size(), "tokens from the trial");
+            Check.that(router.toString().contains("breaker=closed"), "state " + router);
+        });
+    }
+
+    private static InferenceRouter router(InferenceBackend... backends) {
+        return new InferenceRouter(List.of(backends), 1, BREAKER_FAILURES, BREAKER_OPEN_MS, 1000);
+    }
+
+    private static IOException expect(Check.Case call) throws Exception {
+        try {
+            call.run();
+        } catch (IOException e) {
+            return e;
+        }
+        throw new AssertionError("Expected an IOException");
+    }
+}
@@ -0,0 +1,81 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A burst of logins larger than the verifier queue: the extra ones must be
+ * turned down right away with BUSY instead of hashing on the caller's thread,
+ * and the accounts created before the burst must still work afterwards. A
+ * corrupt stored hash gives ERROR rather than an exception.
+ */
+public class LoginStormTest {
+    private static final int QUEUE = 4;
+    private static final int STORM = 64;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.auth.verifierQueue", String.valueOf(QUEUE)); // Read when AuthManager is loaded
+        TimerWheel timer = new TimerWheel(100, 64);
+        Path directory = Check.tempDirectory("login-storm");
+        AuthManager auth = new AuthManager(directory, timer);
+
+        Check.run("single login registers and logs in", () -> {
+            Check.equal("NEW_USER", auth.authenticateOrRegister("alice", "secret"), "first login");
+            Check.equal("OK", auth.authenticateOrRegister("alice", "secret"), "second login");
+            Check.equal("WRONG_PASSWORD", auth.authenticateOrRegister("alice", "guess"), "wrong password");
+        });
+
+        Check.run("storm beyond the queue is turned down without hashing", () -> {
+            Map<String, Long> results = new ConcurrentHashMap<>();
+            AtomicLong slowestBusyNanos = new AtomicLong();
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> callers = new ArrayList<>();
+            for (int i = 0; i < STORM; i++) {
+                String username = "storm" + i;
+                callers.add(Thread.ofVirtual().start(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    String result = auth.authenticateOrRegister(username, "pw");
+                    if (result.equals("BUSY")) slowestBusyNanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+                    results.merge(result, 1L, Long::sum);
+                }));
+            }
+            long hashedBefore = auth.getHashStats().getCount();
+            go.countDown();
+            for (Thread caller : callers) caller.join();
+
+            long created = results.getOrDefault("NEW_USER", 0L);
+            long busy = results.getOrDefault("BUSY", 0L);
+            Check.equal((long) STORM, created + busy, "NEW_USER + BUSY, results " + results);
+            Check.that(busy > 0, "some logins should be turned down, results " + results);
+            Check.that(created > 0, "some logins should get through, results " + results);
+            Check.equal(busy, auth.getRejected(), "rejected counter");
+            Check.equal(created, auth.getHashStats().getCount() - hashedBefore, "hashes run on the verifier pool");
+            // A rejected caller never ran bcrypt (tens of ms at the default cost)
+            Check.that(slowestBusyNanos.get() < TimeUnit.MILLISECONDS.toNanos(20),
+                "BUSY took " + TimeUnit.NANOSECONDS.toMillis(slowestBusyNanos.get()) + " ms");
+        });
+
+        Check.run("logins work again after the storm", () -> {
+            Check.equal("OK", auth.authenticateOrRegister("alice", "secret"), "login after storm");
+            Check.equal("NEW_USER", auth.authenticateOrRegister("bob", "secret"), "registration after storm");
+        });
+
+        Check.run("a stored hash bcrypt can't parse gives ERROR", () -> {
+            auth.importUser("mallory", "not-a-bcrypt-hash");
+            Check.equal("ERROR", auth.authenticateOrRegister("mallory", "secret"), "login against a corrupt hash");
+            Check.equal("OK", auth.authenticateOrRegister("alice", "secret"), "login after the error");
+        });
+
+        auth.close();
+        timer.stop();
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Append and cold-start times of SegmentedMessageLog.
+ *
+ * For every fsync policy, appends the messages to a fresh log and times until
+ * close() returns, which waits for the writer to get everything on disk. Then
+ * appends garbage to the last segment of the log written with NEVER, as a
+ * crash in the middle of a write would, and times reopening it and reading
+ * back the tail a room refills its history with.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" MessageLogBenchmark [messages] [segmentBytes] [runs]
+ */
+public class MessageLogBenchmark {
+    private static final int HISTORY = 500; // Messages a room reloads, as Room.DEFAULT_HISTORY_CAPACITY
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long segmentBytes = args.length > 1 ? Long.parseLong(args[1]) : 1024 * 1024;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Path base = Check.tempDirectory("message-log-benchmark");
+
+        System.out.printf("messages=%d segmentBytes=%d runs=%d%n", messages, segmentBytes, runs);
+        Path lastLog = null;
+        for (int run = 1; run <= runs; run++) {
+            for (SegmentedMessageLog.FsyncPolicy policy : SegmentedMessageLog.FsyncPolicy.values()) {
+                Path directory = base.resolve(policy + "-" + run);
+                long start = System.nanoTime();
+                appendAll(directory, new SegmentedMessageLog.Settings(segmentBytes, policy, 1000), messages);
+                System.out.printf("run %d append %-8s %6d ms%n", run, policy, (System.nanoTime() - start) / 1_000_000);
+                if (policy == SegmentedMessageLog.FsyncPolicy.NEVER) lastLog = directory;
+            }
+        }
+
+        long segments = countSegments(lastLog);
+        tearTail(lastLog);
+        for (int run = 1; run <= runs; run++) {
+            long start = System.nanoTime();
+            List<Message> tail;
+            try (SegmentedMessageLog log = new SegmentedMessageLog(lastLog,
+                    new SegmentedMessageLog.Settings(segmentBytes, SegmentedMessageLog.FsyncPolicy.NEVER, 1000))) {
+                tail = log.readBefore(Long.MAX_VALUE, HISTORY);
+            }
+            long elapsed = System.nanoTime() - start;
+            Check.equal(Math.min(messages, HISTORY), tail.size(), "messages read back");
+            Check.equal((long) messages - 1, tail.get(tail.size() - 1).getId(), "last id after the torn tail");
+            System.out.printf("run %d cold start, %d segments, torn tail: %d ms%n", run, segments, elapsed / 1_000_000);
+        }
+    }
+
+    private static void appendAll(Path directory, SegmentedMessageLog.Settings settings, int messages) throws IOException {
+        try (SegmentedMessageLog log = new SegmentedMessageLog(directory, settings)) {
+            for (int id = 0; id < messages; id++)
+                log.append(new Message("user" + (id % 100), "message number " + id).withId(id));
+        }
+    }
+
+    private static long countSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).count();
+        }
+    }
+
+    // Half a record: a length that runs past the end of the file
+    private static void tearTail(Path directory) throws IOException {
+        Path last;
+        try (Stream<Path> files = Files.list(directory)) {
+            last = files.filter(file -> file.toString().endsWith(".log")).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(100).putInt(0xdead).putInt(7).flip());
+        }
+    }
+}
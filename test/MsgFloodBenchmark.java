@@ -0,0 +1,157 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Messages per second, and per second of CPU, that a server handles when
+ * authenticated clients do nothing but send msg. Every client is alone in its
+ * room, so fan-out costs little and the per-command path dominates: reading
+ * and dispatching the command and checking the session. Each client keeps a
+ * window of messages in flight and waits for its own echoes.
+ *
+ * Starts a server in this JVM, so run it from the project directory, where
+ * server.jks is. The client threads share the CPU with it, so compare numbers
+ * taken on the same machine.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" MsgFloodBenchmark [clients] [messagesPerClient] [runs] [blocking|nio]
+ */
+public class MsgFloodBenchmark {
+    private static final int WINDOW = 32; // Messages a client has in flight
+    private static final int TIMEOUT_MS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        String transport = args.length > 3 ? args[3] : "blocking";
+
+        System.setProperty("javax.net.ssl.keyStore", "server.jks");
+        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+        System.setProperty("javax.net.ssl.trustStore", "server.jks");
+        System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
+        Path data = Check.tempDirectory("msg-flood-benchmark");
+        System.setProperty("chat.transport", transport);
+        System.setProperty("chat.auth.dir", data.toString());
+        System.setProperty("chat.log.dir", data.resolve("log").toString());
+        System.setProperty("chat.log.fsync", "NEVER");
+        System.setProperty("chat.metrics.intervalMs", "0");
+        System.setProperty("chat.metrics.file", data.resolve("metrics.txt").toString());
+        int port = startServer();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        System.out.printf("clients=%d messagesPerClient=%d runs=%d transport=%s cores=%d%n",
+            clients, messages, runs, transport, Runtime.getRuntime().availableProcessors());
+        for (int run = 1; run <= runs; run++) {
+            List<Flooder> flooders = new ArrayList<>();
+            for (int c = 0; c < clients; c++)
+                flooders.add(Flooder.join(port, "flood" + c, "flood-" + run + "-" + c));
+
+            long cpuBefore = os.getProcessCpuTime();
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (Flooder flooder : flooders) {
+                threads.add(Thread.ofVirtual().start(() -> {
+                    try {
+                        flooder.flood(messages);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) thread.join();
+            long elapsed = System.nanoTime() - start;
+            long cpu = os.getProcessCpuTime() - cpuBefore;
+            for (Flooder flooder : flooders) flooder.close();
+
+            long total = (long) clients * messages;
+            System.out.printf("run %d: %d msgs in %d ms, %.0f msgs/s, %.0f msgs per CPU second%n",
+                run, total, TimeUnit.NANOSECONDS.toMillis(elapsed), total * 1e9 / elapsed, total * 1e9 / cpu);
+        }
+        System.exit(0); // The server's threads and shutdown hooks don't stop on their own
+    }
+
+    private static int startServer() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Server server = new Server(port);
+        Thread.ofPlatform().daemon().name("server").start(() -> {
+            try {
+                server.start(); // Accepts connections until the JVM exits
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(1000);
+        return port;
+    }
+
+    // A logged in client alone in its room
+    private static final class Flooder {
+        final String username;
+        final SSLSocket socket;
+        final BufferedReader in;
+        final OutputStream out;
+
+        private Flooder(String username, SSLSocket socket) throws IOException {
+            this.username = username;
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = socket.getOutputStream();
+        }
+
+        static Flooder join(int port, String username, String room) throws IOException {
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+            socket.setSoTimeout(TIMEOUT_MS);
+            Flooder flooder = new Flooder(username, socket);
+            PrintWriter writer = new PrintWriter(flooder.out, true);
+            writer.println("auth " + username + " flood");
+            flooder.readUntil("TOKEN ");
+            writer.println("join " + room);
+            flooder.readUntil("Joined room: ");
+            return flooder;
+        }
+
+        // Sends the messages a window at a time, each window in one write
+        void flood(int messages) throws IOException {
+            String echo = "[" + username + "]: ";
+            StringBuilder window = new StringBuilder();
+            for (int i = 0; i < messages; i++) {
+                window.append("msg ").append(i).append('\n');
+                if (i % WINDOW == WINDOW - 1 || i == messages - 1) {
+                    out.write(window.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    window.setLength(0);
+                    readUntil(echo + i);
+                }
+            }
+        }
+
+        private void readUntil(String prefix) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(prefix)) return;
+            }
+            throw new IOException(username + " was disconnected waiting for " + prefix);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * OllamaBackend.generate against a stub server that streams NDJSON the way
+ * Ollama does: tokens must reach the caller as their lines arrive, even when
+ * a line is split across chunks, and the stream ends at done, at an error
+ * line, or with a non-200 status.
+ */
+public class OllamaBackendTest {
+    private interface Script {
+        void play(HttpExchange exchange, OutputStream body) throws Exception;
+    }
+
+    private static volatile Script script;
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/generate", exchange -> {
+            try (exchange) {
+                exchange.getRequestBody().readAllBytes();
+                script.play(exchange, exchange.getResponseBody());
+            } catch (Exception e) {
+                // The client hung up or the case failed, either way the case reports it
+            }
+        });
+        server.start();
+        OllamaBackend backend = new OllamaBackend(
+            "http://127.0.0.1:" + server.getAddress().getPort() + "/api/generate", "stub", Duration.ofSeconds(5));
+
+        Check.run("tokens stream as chunks arrive and stop at done", () -> {
+            CountDownLatch firstToken = new CountDownLatch(1);
+            script = (exchange, body) -> {
+                exchange.sendResponseHeaders(200, 0); // Chunked
+                send(body, "{\"response\":\"Hel\",\"done\":false}\n");
+                // The rest is only sent once the caller has the first token
+                if (!firstToken.await(5, TimeUnit.SECONDS)) return;
+                send(body, "{\"response\":\"lo\",\"do");
+                send(body, "ne\":false}\n\n{\"response\":\"!\",\"done\":true}\n");
+                send(body, "{\"response\":\"after done\",\"done\":false}\n");
+            };
+            List<String> tokens = new ArrayList<>();
+            backend.generate("hi", token -> {
+                tokens.add(token);
+                firstToken.countDown();
+            });
+            Check.equal(List.of("Hel", "lo", "!"), tokens, "tokens");
+        });
+
+        Check.run("error line mid-stream fails after the tokens before it", () -> {
+            script = (exchange, body) -> {
+                exchange.sendResponseHeaders(200, 0);
+                send(body, "{\"response\":\"partial\",\"done\":false}\n");
+                send(body, "{\"error\":\"model crashed\"}\n");
+            };
+            List<String> tokens = new ArrayList<>();
+            IOException error = expectIOException(() -> backend.generate("hi", tokens::add));
+            Check.equal(List.of("partial"), tokens, "tokens before the error");
+            Check.that(error.getMessage().contains("model crashed"), "error message: " + error.getMessage());
+        });
+
+        Check.run("non-200 status fails with the response body", () -> {
+            script = (exchange, body) -> {
+                byte[] message = "{\"error\":\"model 'stub' not found\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(404, message.length);
+                body.write(message);
+            };
+            List<String> tokens = new ArrayList<>();
+            IOException error = expectIOException(() -> backend.generate("hi", tokens::add));
+            Check.equal(List.of(), tokens, "tokens");
+            Check.that(error.getMessage().contains("not found"), "error message: " + error.getMessage());
+        });
+
+        server.stop(0);
+    }
+
+    private static void send(OutputStream body, String chunk) throws IOException {
+        body.write(chunk.getBytes(StandardCharsets.UTF_8));
+        body.flush();
+    }
+
+    private static IOException expectIOException(Check.Case call) throws Exception {
+        try {
+            call.run();
+        } catch (IOException e) {
+            return e;
+        }
+        throw new AssertionError("Expected an IOException");
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * PromptWindow: the window stays within its token budget, what it evicts is
+ * counted in the summary and its snippets stay within theirs, linesBefore
+ * returns the lines right before a message, and an AIRoom restored from its
+ * store starts with its history in the window.
+ */
+public class PromptWindowTest {
+    private static final int TOKEN_BUDGET = 100;
+    private static final int SUMMARY_TOKENS = 40;
+    private static final String HISTORY_HEADER = "The chat history is as follows:\n";
+
+    public static void main(String[] args) throws Exception {
+        Check.run("the window keeps the newest messages within its budget", () -> {
+            PromptWindow window = new PromptWindow(TOKEN_BUDGET, SUMMARY_TOKENS);
+            List<Message> messages = fill(window, 50);
+            Message mention = mention(window, 50);
+
+            String history = history(window.buildPrompt(mention));
+            Check.that(PromptWindow.estimateTokens(history) <= TOKEN_BUDGET, "window of " + PromptWindow.estimateTokens(history) + " tokens");
+            Check.that(history.endsWith(line(messages.get(49))), "newest message missing: " + history);
+            Check.that(!history.contains(line(messages.get(0))), "oldest message still in the window: " + history);
+        });
+
+        Check.run("the newest message is kept even if it alone is over budget", () -> {
+            PromptWindow window = new PromptWindow(TOKEN_BUDGET, SUMMARY_TOKENS);
+            fill(window, 5);
+            Message big = new Message("carol", "y".repeat(TOKEN_BUDGET * 8)).withId(5);
+            window.add(big);
+            Check.equal(List.of(line(big)), window.linesBefore(new Message("dave", "next").withId(6), 10), "window");
+        });
+
+        Check.run("evicted messages are counted in the summary", () -> {
+            PromptWindow window = new PromptWindow(TOKEN_BUDGET, SUMMARY_TOKENS);
+            fill(window, 50);
+            Message mention = mention(window, 50);
+            String prompt = window.buildPrompt(mention);
+
+            int kept = window.linesBefore(mention, 50).size();
+            int evicted = 50 - kept;
+            Check.that(evicted > 0, "nothing was evicted");
+            int alice = (evicted + 1) / 2; // fill alternates, starting with alice
+            String expected = "Summary of the earlier conversation: " + evicted + " older messages, from alice ("
+                + alice + "), bob (" + (evicted - alice) + ")";
+            Check.that(prompt.contains(expected), "expected '" + expected + "' in " + prompt);
+
+            // Only the latest snippets, within their own budget
+            String snippets = prompt.substring(prompt.indexOf("began:\n") + "began:\n".length(), prompt.indexOf(HISTORY_HEADER));
+            Check.that(PromptWindow.estimateTokens(snippets) <= SUMMARY_TOKENS + snippets.lines().count(), "snippets of " + snippets.length() + " chars");
+            Check.that(snippets.contains("message " + (evicted - 1) + "''"), "latest evicted message missing: " + snippets);
+            Check.that(!snippets.contains("message 0''"), "oldest snippet kept: " + snippets);
+        });
+
+        Check.run("long evicted messages are cut short in the summary", () -> {
+            PromptWindow window = new PromptWindow(TOKEN_BUDGET, SUMMARY_TOKENS * 4);
+            window.add(new Message("alice", "z".repeat(500)).withId(0));
+            fill(window, 1, 20);
+            String prompt = window.buildPrompt(mention(window, 20));
+            Check.that(prompt.contains("alice said ''" + "z".repeat(80 - "alice said ''".length()) + "...''\n"), "snippet: " + prompt);
+        });
+
+        Check.run("linesBefore returns the lines right before a message, oldest first", () -> {
+            PromptWindow window = new PromptWindow(TOKEN_BUDGET, SUMMARY_TOKENS);
+            List<Message> messages = fill(window, 50);
+            Check.equal(List.of(line(messages.get(37)), line(messages.get(38)), line(messages.get(39))),
+                window.linesBefore(messages.get(40), 3), "3 lines before message 40");
+            Check.equal(List.of(), window.linesBefore(messages.get(40), 0), "no lines");
+
+            // Never more than the window holds
+            List<String> all = window.linesBefore(mention(window, 50), 50);
+            Check.that(all.size() < 50, "linesBefore returned evicted lines");
+            Check.equal(line(messages.get(49)), all.get(all.size() - 1), "last line");
+        });
+
+        Check.run("an AI room starts with the history restored from its store", () -> {
+            List<Message> stored = new ArrayList<>();
+            for (int i = 0; i < 10; i++) stored.add(new Message("alice", "restored " + i).withId(i));
+            MessageStore store = new MessageStore() {
+                @Override
+                public void append(Message message) {}
+
+                @Override
+                public List<Message> readBefore(long beforeId, int n) {
+                    return stored.subList(Math.max(0, stored.size() - n), stored.size());
+                }
+            };
+            CompletableFuture<String> prompt = new CompletableFuture<>();
+            InferenceBackend backend = new InferenceBackend() {
+                @Override
+                public String name() {
+                    return "recording";
+                }
+
+                @Override
+                public String model() {
+                    return "recording";
+                }
+
+                @Override
+                public void generate(String text, Consumer<String> onToken) {
+                    prompt.complete(text);
+                    onToken.accept("ok");
+                }
+            };
+
+            TimerWheel timer = new TimerWheel(10, 64);
+            RoomShards shards = new RoomShards(1, timer, 0, 1.5);
+            AIRoom room = AIRoom.create("restored", store, new AIScheduler(1, 4, 1, timer),
+                new ResponseCache(false, 0, 0, 0), backend);
+            shards.place(room.getMailbox());
+            room.addMessage(new Message("bob", "@AI what did alice say?"));
+
+            String history = history(prompt.get(5, TimeUnit.SECONDS));
+            for (Message message : stored)
+                Check.that(history.contains(line(message)), "restored message missing: " + history);
+            timer.stop();
+        });
+    }
+
+    // Adds count messages, alternating between alice and bob, with ids from 0
+    private static List<Message> fill(PromptWindow window, int count) {
+        return fill(window, 0, count);
+    }
+
+    private static List<Message> fill(PromptWindow window, int from, int to) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Message message = new Message(i % 2 == 0 ? "alice" : "bob", "message " + i).withId(i);
+            window.add(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // A mention added to the window, as AIRoom adds it before asking
+    private static Message mention(PromptWindow window, long id) {
+        Message mention = new Message("dave", "@ai hello").withId(id);
+        window.add(mention);
+        return mention;
+    }
+
+    private static String line(Message message) {
+        return message.getSender() + " said ''" + message.getContent() + "''\n";
+    }
+
+    // What the prompt includes of the window
+    private static String history(String prompt) {
+        return prompt.substring(prompt.indexOf(HISTORY_HEADER) + HISTORY_HEADER.length());
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Throughput of the text protocol against the binary one on a msg-heavy
+ * workload. Every member of a room sends messages, a window at a time, and
+ * reads every message of every member, its own included. Prints deliveries
+ * per second and the bytes a delivery took on the wire, before TLS.
+ *
+ * Starts a server in this JVM, so run it from the project directory, where
+ * server.jks is.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" ProtocolBenchmark [members] [messagesPerMember] [messageBytes] [runs]
+ */
+public class ProtocolBenchmark {
+    private static final int WINDOW = 16; // Messages a member has in flight
+    private static final long TIMEOUT_MS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int messageBytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        System.setProperty("javax.net.ssl.keyStore", "server.jks");
+        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+        System.setProperty("javax.net.ssl.trustStore", "server.jks");
+        System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
+        Path data = Check.tempDirectory("protocol-benchmark");
+        System.setProperty("chat.auth.dir", data.toString());
+        System.setProperty("chat.log.dir", data.resolve("log").toString());
+        System.setProperty("chat.log.fsync", "NEVER");
+        System.setProperty("chat.metrics.intervalMs", "0");
+        System.setProperty("chat.metrics.file", data.resolve("metrics.txt").toString());
+        System.setProperty("chat.outbound.highWaterMark", String.valueOf(members * WINDOW * 4)); // Nothing is dropped
+        int port = startServer();
+
+        String content = "x".repeat(messageBytes);
+        System.out.printf("members=%d messagesPerMember=%d messageBytes=%d runs=%d%n", members, messages, messageBytes, runs);
+        for (int run = 1; run <= runs; run++) {
+            for (boolean binary : new boolean[] {false, true}) {
+                String protocol = binary ? "binary" : "text";
+                String room = "bench-" + protocol + "-" + run;
+                List<Member> joined = new ArrayList<>();
+                for (int m = 0; m < members; m++)
+                    joined.add(Member.join(port, protocol + m, room, binary, (long) members * messages));
+
+                CountDownLatch sent = new CountDownLatch(members);
+                long start = System.nanoTime();
+                for (Member member : joined) {
+                    Thread.ofVirtual().start(() -> {
+                        try {
+                            member.flood(messages, content);
+                        } catch (IOException | InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                        sent.countDown();
+                    });
+                }
+                long deliveries = 0;
+                long bytes = 0;
+                for (Member member : joined) {
+                    Check.that(member.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                        member.username + " got " + member.delivered.get() + " of " + member.expected + " messages");
+                    deliveries += member.delivered.get();
+                    bytes += member.chatBytes.get();
+                }
+                long elapsed = System.nanoTime() - start;
+                sent.await();
+                for (Member member : joined) member.close();
+
+                System.out.printf("run %d %-6s %9d deliveries in %5d ms, %9.0f deliveries/s, %5.1f bytes each%n",
+                    run, protocol, deliveries, elapsed / 1_000_000, deliveries * 1e9 / elapsed, (double) bytes / deliveries);
+            }
+        }
+        System.exit(0); // The server's threads and shutdown hooks don't stop on their own
+    }
+
+    private static int startServer() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Server server = new Server(port);
+        Thread.ofPlatform().daemon().name("server").start(() -> {
+            try {
+                server.start(); // Accepts connections until the JVM exits
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(1000);
+        return port;
+    }
+
+    // One member of the room, with a thread reading everything sent to it
+    private static final class Member {
+        final String username;
+        final boolean binary;
+        final long expected;                      // Messages it must receive
+        final SSLSocket socket;
+        final InputStream in;
+        final OutputStream out;
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong chatBytes = new AtomicLong(); // Wire bytes of those messages
+        final Semaphore echoes = new Semaphore(0);     // Its own messages received back
+        final CountDownLatch done = new CountDownLatch(1);
+        int ownId = -1;                                // Its sender id in OP_CHAT, once named
+        int systemId = -1;                             // The id of the room's notices, such as joins
+
+        private Member(String username, boolean binary, long expected, SSLSocket socket) throws IOException {
+            this.username = username;
+            this.binary = binary;
+            this.expected = expected;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        static Member join(int port, String username, String room, boolean binary, long expected) throws IOException {
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            Member member = new Member(username, binary, expected, socket);
+            if (binary) {
+                member.sendLine(BinaryProtocol.NEGOTIATE_COMMAND);
+                while (!BinaryProtocol.NEGOTIATE_REPLY.equals(member.readLine())) {}
+                member.command(BinaryProtocol.OP_AUTH, username + " bench");
+                member.awaitText("TOKEN ");
+                member.command(BinaryProtocol.OP_JOIN, room);
+                member.awaitText("Joined room: ");
+                Thread.ofVirtual().start(member::readFrames);
+            } else {
+                member.sendLine("auth " + username + " bench");
+                while (!member.readLine().startsWith("TOKEN ")) {}
+                member.sendLine("join " + room);
+                while (!member.readLine().startsWith("Joined room: ")) {}
+                Thread.ofVirtual().start(member::readLines);
+            }
+            return member;
+        }
+
+        void flood(int messages, String content) throws IOException, InterruptedException {
+            for (int i = 0; i < messages; i++) {
+                if (binary) {
+                    BinaryProtocol.writeFrame(out, BinaryProtocol.OP_MSG, content);
+                } else {
+                    out.write(("msg " + content + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                if (i % WINDOW == WINDOW - 1 || i == messages - 1) {
+                    out.flush();
+                    echoes.acquire(i % WINDOW + 1);
+                }
+            }
+        }
+
+        private void readLines() {
+            String prefix = "[" + username + "]: ";
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while (delivered.get() < expected && (line = reader.readLine()) != null) {
+                    if (!line.startsWith("[") || line.startsWith("[System]: ")) continue;
+                    chatBytes.addAndGet(line.length() + 1);
+                    delivered.incrementAndGet();
+                    if (line.startsWith(prefix)) echoes.release();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+            done.countDown();
+        }
+
+        private void readFrames() {
+            byte[] frame = new byte[BinaryProtocol.MAX_FRAME_LENGTH];
+            try {
+                while (delivered.get() < expected) readFrame(frame);
+            } catch (IOException e) {
+                // Closed
+            }
+            done.countDown();
+        }
+
+        // Reads the next frame into frame, keeping track of names and counting chat messages. Returns its length
+        private int readFrame(byte[] frame) throws IOException {
+            int length = (int) BinaryProtocol.readVarint(in);
+            in.readNBytes(frame, 0, length);
+            int opcode = frame[0] & 0xff;
+            if (opcode == BinaryProtocol.OP_NAME && frame[1] == BinaryProtocol.NAME_USER) {
+                int id = (int) BinaryProtocol.getVarint(frame, 2, length);
+                int nameStart = 2 + BinaryProtocol.varintSize(id);
+                String name = new String(frame, nameStart, length - nameStart, StandardCharsets.UTF_8);
+                if (name.equals(username)) ownId = id;
+                else if (name.equals("System")) systemId = id;
+            } else if (opcode == BinaryProtocol.OP_CHAT) {
+                int roomId = (int) BinaryProtocol.getVarint(frame, 1, length);
+                int senderId = (int) BinaryProtocol.getVarint(frame, 1 + BinaryProtocol.varintSize(roomId), length);
+                if (senderId != systemId) {
+                    chatBytes.addAndGet(BinaryProtocol.varintSize(length) + length);
+                    delivered.incrementAndGet();
+                    if (senderId == ownId) echoes.release();
+                }
+            }
+            return length;
+        }
+
+        private void command(int opcode, String payload) throws IOException {
+            BinaryProtocol.writeFrame(out, opcode, payload);
+            out.flush();
+        }
+
+        // Reads frames until an OP_TEXT reply that starts with prefix
+        private void awaitText(String prefix) throws IOException {
+            byte[] frame = new byte[BinaryProtocol.MAX_FRAME_LENGTH];
+            while (true) {
+                int length = readFrame(frame);
+                if ((frame[0] & 0xff) == BinaryProtocol.OP_TEXT
+                        && new String(frame, 1, length - 1, StandardCharsets.UTF_8).startsWith(prefix)) return;
+            }
+        }
+
+        private void sendLine(String line) throws IOException {
+            PrintWriter writer = new PrintWriter(out);
+            writer.println(line);
+            writer.flush();
+        }
+
+        // A line read byte by byte, so that nothing past it is taken from in
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) throw new IOException("Connection closed");
+                if (b != '\r') line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention on RoomRegistry from many handlers at once. Every handler is a
+ * virtual thread that runs a mix of join (getOrCreate) and list (names)
+ * over a fixed set of room names. Building a room is made slow on purpose,
+ * so that handlers joining a room that is still being built have to wait for
+ * it. At the end, every room must have been built exactly once.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" RoomRegistryBenchmark [handlers] [opsPerHandler] [rooms] [buildMs] [runs]
+ */
+public class RoomRegistryBenchmark {
+    private static final int LIST_PERCENT = 20;
+
+    public static void main(String[] args) throws Exception {
+        int handlers = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int roomCount = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        long buildMs = args.length > 3 ? Long.parseLong(args[3]) : 5;
+        int runs = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        TimerWheel timer = new TimerWheel(100, 64);
+        RoomShards shards = new RoomShards(Runtime.getRuntime().availableProcessors(), timer, 0, 1.5);
+        System.out.printf("handlers=%d ops=%d rooms=%d buildMs=%d%n", handlers, operations, roomCount, buildMs);
+
+        for (int run = 1; run <= runs; run++) {
+            RoomRegistry registry = new RoomRegistry(shards);
+            ConcurrentMap<String, AtomicInteger> builds = new ConcurrentHashMap<>();
+            AtomicLong failures = new AtomicLong();
+            RoomRegistry.RoomFactory factory = name -> {
+                builds.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+                try {
+                    Thread.sleep(buildMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new Room(name);
+            };
+
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>(handlers);
+            for (int h = 0; h < handlers; h++) {
+                threads.add(Thread.ofVirtual().start(() -> {
+                    try {
+                        go.await();
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int op = 0; op < operations; op++) {
+                            if (random.nextInt(100) < LIST_PERCENT) {
+                                registry.names();
+                            } else {
+                                String name = "room-" + random.nextInt(roomCount);
+                                if (!registry.getOrCreate(name, factory).getName().equals(name)) failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }));
+            }
+
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread thread : threads) thread.join();
+            long elapsed = System.nanoTime() - start;
+
+            Check.equal(0L, failures.get(), "failed operations");
+            Check.equal(roomCount, registry.size(), "rooms");
+            for (var built : builds.entrySet())
+                Check.equal(1, built.getValue().get(), "builds of " + built.getKey());
+            long total = (long) handlers * operations;
+            System.out.printf("run %d: %d ops in %d ms, %.0f ops/s, every room built once%n",
+                run, total, elapsed / 1_000_000, total * 1e9 / elapsed);
+        }
+        timer.stop();
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A room whose shard is stuck: threads that offer tasks, like the cluster bus,
+ * are turned down right away and counted, while execute makes its caller
+ * wait, and every task accepted still runs once the shard is free again.
+ */
+public class RoomShardsTest {
+    private static final int CAPACITY = 8;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.shards.mailboxCapacity", String.valueOf(CAPACITY)); // Read when RoomShards is loaded
+        TimerWheel timer = new TimerWheel(100, 64);
+        RoomShards shards = new RoomShards(1, timer, 0, 1.5);
+
+        Check.run("offer turns tasks down while the mailbox is full, execute waits", () -> {
+            RoomShards.Mailbox mailbox = new RoomShards.Mailbox("stuck");
+            shards.place(mailbox);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger ran = new AtomicInteger();
+            mailbox.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            for (int i = 1; i < CAPACITY; i++) mailbox.execute(ran::incrementAndGet);
+
+            long start = System.nanoTime();
+            Check.that(!mailbox.offer(ran::incrementAndGet), "offer to a full mailbox accepted");
+            Check.that(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50), "offer waited");
+            Check.equal(1L, mailbox.getRejected(), "rejected");
+
+            Thread waiter = Thread.ofVirtual().start(() -> mailbox.execute(ran::incrementAndGet));
+            waiter.join(200);
+            Check.that(waiter.isAlive(), "execute on a full mailbox didn't wait");
+
+            release.countDown();
+            waiter.join(5000);
+            Check.that(!waiter.isAlive(), "execute still waiting once the mailbox drained");
+            Check.eventually(() -> ran.get() == CAPACITY, 5000, "accepted tasks ran");
+            Check.that(mailbox.offer(ran::incrementAndGet), "offer once the mailbox drained");
+            Check.eventually(() -> ran.get() == CAPACITY + 1, 5000, "offered task ran");
+        });
+
+        timer.stop();
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SessionStore: sessions expire after their TTL without activity, whether or
+ * not their token is presented again, validating one extends it, and a user
+ * over maxSessionsPerUser loses the oldest session, which is counted and
+ * reported to the listener as ended.
+ */
+public class SessionStoreTest {
+    private static final long TTL_MS = 300;
+    private static final int MAX_SESSIONS_PER_USER = 2;
+
+    // Sessions the store reported as ended
+    private static final class Recorder implements SessionStore.Listener {
+        final List<String> ended = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void sessionUpdated(Session session) {}
+
+        @Override
+        public void sessionEnded(Session session) {
+            ended.add(session.getToken());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TimerWheel timer = new TimerWheel(10, 64);
+
+        Check.run("a session expires after its TTL without activity", () -> {
+            SessionStore store = new SessionStore(TTL_MS, MAX_SESSIONS_PER_USER, timer);
+            Recorder recorder = new Recorder();
+            store.setListener(recorder);
+            String presented = store.create("alice");
+            String forgotten = store.create("bob");
+            Session session = store.validate(presented);
+            Check.that(session != null && session.isValid(), "new session is not valid");
+
+            Thread.sleep(TTL_MS + 50);
+            Check.that(!session.isValid(), "session still valid after its TTL");
+            Check.equal(null, store.validate(presented), "validate after the TTL");
+
+            // Removed by its timer, though its token never came back
+            Check.eventually(() -> store.get(forgotten) == null, 2000, "session never presented again still stored");
+            Check.equal(0, store.size(), "sessions left");
+            Check.equal(2L, store.getExpired(), "expired");
+            Check.equal(Set.of(presented, forgotten), Set.copyOf(recorder.ended), "ended");
+        });
+
+        Check.run("validating a session extends it", () -> {
+            SessionStore store = new SessionStore(TTL_MS, MAX_SESSIONS_PER_USER, timer);
+            String token = store.create("alice");
+            long deadline = System.currentTimeMillis() + TTL_MS * 3;
+            while (System.currentTimeMillis() < deadline) {
+                Check.that(store.validate(token) != null, "session expired while in use");
+                Thread.sleep(TTL_MS / 3);
+            }
+            long expiresIn = store.get(token).getExpirationTime() - System.currentTimeMillis();
+            Check.that(expiresIn > TTL_MS / 2, "expires in " + expiresIn + " ms");
+
+            Thread.sleep(TTL_MS + 50);
+            Check.equal(null, store.validate(token), "validate once no longer in use");
+            Check.equal(1L, store.getExpired(), "expired");
+        });
+
+        Check.run("a login over maxSessionsPerUser ends the oldest session", () -> {
+            SessionStore store = new SessionStore(60_000, MAX_SESSIONS_PER_USER, timer);
+            Recorder recorder = new Recorder();
+            store.setListener(recorder);
+            String oldest = store.create("alice");
+            Session oldestSession = store.get(oldest);
+            String second = store.create("alice");
+            String other = store.create("bob");
+            Check.equal(0L, store.getDisplaced(), "displaced before the limit");
+
+            String newest = store.create("alice");
+            Check.equal(null, store.validate(oldest), "validate the displaced session");
+            Check.that(!oldestSession.isValid(), "displaced session still valid for handlers holding it");
+            for (String token : List.of(second, newest, other))
+                Check.that(store.validate(token) != null, "session " + token + " ended");
+            Check.equal(1L, store.getDisplaced(), "displaced");
+            Check.equal(0L, store.getExpired(), "expired");
+            Check.equal(List.of(oldest), recorder.ended, "ended");
+
+            // A session that ended on its own leaves room for the next one
+            store.drop(second);
+            store.create("alice");
+            Check.equal(1L, store.getDisplaced(), "displaced after a session was dropped");
+            Check.that(store.validate(newest) != null, "newest session ended");
+        });
+
+        timer.stop();
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent signups against CredentialStore, which group-commits them. Every
+ * client is a virtual thread that registers its own users, and every user is
+ * also claimed by a second client, so half the calls find the user already
+ * there. The hash is a fixed string, leaving bcrypt out of the timings. Then
+ * times importing a users.txt of the same size into a fresh store.
+ *
+ * At the end, every user must be stored once and read back after reopening.
+ *
+ *   java -cp "test-bin:lib/json-20231013.jar:lib/jbcrypt-0.4.jar" SignupBenchmark [clients] [usersPerClient] [runs]
+ */
+public class SignupBenchmark {
+    private static final String HASH = "$2a$10$abcdefghijklmnopqrstuuFp7uHHJ8yG8b7Kf0YWy1Pz3m7GQbjxS"; // Bcrypt's length
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int usersPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int users = clients * usersPerClient;
+        Path base = Check.tempDirectory("signup-benchmark");
+
+        System.out.printf("clients=%d usersPerClient=%d runs=%d%n", clients, usersPerClient, runs);
+        for (int run = 1; run <= runs; run++) {
+            Path directory = base.resolve("signup-" + run);
+            long[] latencies = new long[users * 2];
+            AtomicLong stored = new AtomicLong();
+            long elapsed;
+            try (CredentialStore store = new CredentialStore(directory)) {
+                CountDownLatch go = new CountDownLatch(1);
+                List<Thread> threads = new ArrayList<>(clients);
+                for (int c = 0; c < clients; c++) {
+                    int client = c;
+                    threads.add(Thread.ofVirtual().start(() -> {
+                        try {
+                            go.await();
+                            // Its own users, then the next client's, which that client signs up at the same time
+                            for (int i = 0; i < usersPerClient * 2; i++) {
+                                int owner = i < usersPerClient ? client : (client + 1) % clients;
+                                String username = "user-" + owner + "-" + (i % usersPerClient);
+                                long start = System.nanoTime();
+                                if (store.putIfAbsent(username, HASH) == null) stored.incrementAndGet();
+                                latencies[client * usersPerClient * 2 + i] = System.nanoTime() - start;
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }));
+                }
+                long start = System.nanoTime();
+                go.countDown();
+                for (Thread thread : threads) thread.join();
+                elapsed = System.nanoTime() - start;
+                Check.equal((long) users, stored.get(), "users stored");
+                Check.equal((long) users, store.size(), "store size");
+            }
+
+            Arrays.sort(latencies);
+            System.out.printf("run %d signup: %d calls in %d ms, %.0f calls/s, p50 %.2f ms, p99 %.2f ms%n",
+                run, latencies.length, elapsed / 1_000_000, latencies.length * 1e9 / elapsed,
+                latencies[latencies.length / 2] / 1e6, latencies[(int) (latencies.length * 0.99)] / 1e6);
+
+            try (CredentialStore reopened = new CredentialStore(directory)) {
+                for (int c = 0; c < clients; c++)
+                    for (int i = 0; i < usersPerClient; i++)
+                        Check.equal(HASH, reopened.get("user-" + c + "-" + i), "hash after reopening");
+            }
+        }
+
+        Path legacy = base.resolve("import");
+        Files.createDirectories(legacy);
+        List<String> lines = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) lines.add("user-" + i + ":" + HASH);
+        Files.write(legacy.resolve("users.txt"), lines);
+        long start = System.nanoTime();
+        try (CredentialStore imported = new CredentialStore(legacy)) {
+            long elapsed = System.nanoTime() - start;
+            Check.equal((long) users, imported.size(), "users imported");
+            Check.that(!Files.exists(legacy.resolve("users.db.tmp")), "import left its temporary file");
+            System.out.printf("import of %d users: %d ms%n", users, elapsed / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TcpBus between nodes in this JVM: nodes with the same secret connect over
+ * TLS and exchange messages, nodes with different secrets never come up, a
+ * cluster without a secret doesn't start, and a resync larger than a node's
+ * queue goes through without reconnecting.
+ *
+ * Run it from the project directory, where server.jks is.
+ */
+public class TcpBusTest {
+    private static final int MAX_QUEUED = 65536; // TcpBus's
+
+    // What a node's listener got
+    private static class Recorder implements MessageBus.Listener {
+        final List<BusMessage> messages = new CopyOnWriteArrayList<>();
+        final Set<String> up = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void onMessage(BusMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onNodeUp(String nodeId) {
+            up.add(nodeId);
+        }
+
+        @Override
+        public void onNodeDown(String nodeId) {
+            up.remove(nodeId);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Check.run("a cluster without a secret doesn't start", () -> {
+            System.clearProperty("chat.cluster.secret");
+            try {
+                bus("a", "a=127.0.0.1:" + freePort());
+                throw new AssertionError("Bus started without a secret");
+            } catch (IllegalArgumentException expected) {
+                Check.that(expected.getMessage().contains("chat.cluster.secret"), "message: " + expected.getMessage());
+            }
+        });
+
+        Check.run("nodes with the same secret connect and exchange messages", () -> {
+            System.setProperty("chat.cluster.secret", "shared");
+            String nodes = "a=127.0.0.1:" + freePort() + ",b=127.0.0.1:" + freePort();
+            TcpBus a = bus("a", nodes);
+            TcpBus b = bus("b", nodes);
+            Recorder atA = new Recorder();
+            Recorder atB = new Recorder();
+            a.start(atA);
+            b.start(atB);
+            Check.eventually(() -> a.isUp("b") && b.isUp("a"), 5000, "nodes up");
+
+            Check.that(a.send("b", BusMessage.of("PING", "1", "héllo")), "send to a node that is up");
+            Check.eventually(() -> !atB.messages.isEmpty(), 5000, "message delivered");
+            BusMessage received = atB.messages.get(0);
+            Check.equal("PING", received.type(), "type");
+            Check.equal("a", received.from(), "from");
+            Check.equal("héllo", received.field(1), "field");
+            Check.that(a.toString().contains("b up=true") && a.toString().contains("dropped=0"), "metrics " + a);
+            a.close();
+            b.close();
+        });
+
+        Check.run("nodes with different secrets never come up", () -> {
+            String nodes = "a=127.0.0.1:" + freePort() + ",b=127.0.0.1:" + freePort();
+            System.setProperty("chat.cluster.secret", "one");
+            TcpBus a = bus("a", nodes);
+            System.setProperty("chat.cluster.secret", "other");
+            TcpBus b = bus("b", nodes);
+            Recorder atA = new Recorder();
+            Recorder atB = new Recorder();
+            a.start(atA);
+            b.start(atB);
+            Thread.sleep(2000); // A few reconnects
+            Check.that(!a.isUp("b") && !b.isUp("a"), "a node with the wrong secret came up");
+            Check.that(atA.up.isEmpty() && atB.up.isEmpty(), "onNodeUp called");
+            Check.that(!a.send("b", BusMessage.of("PING")), "send to a node that never came up");
+            a.close();
+            b.close();
+        });
+
+        Check.run("a resync larger than the queue is sent without reconnecting", () -> {
+            System.setProperty("chat.cluster.secret", "shared");
+            String nodes = "a=127.0.0.1:" + freePort() + ",b=127.0.0.1:" + freePort();
+            TcpBus a = bus("a", nodes);
+            TcpBus b = bus("b", nodes);
+            int sessions = MAX_QUEUED * 2;
+            Recorder atA = new Recorder() {
+                @Override
+                public void onNodeUp(String nodeId) {
+                    super.onNodeUp(nodeId);
+                    for (int i = 0; i < sessions; i++) a.send(nodeId, BusMessage.of("SESSION", "token" + i));
+                }
+            };
+            AtomicInteger receivedAtB = new AtomicInteger();
+            Recorder atB = new Recorder() {
+                @Override
+                public void onMessage(BusMessage message) {
+                    receivedAtB.incrementAndGet();
+                }
+            };
+            b.start(atB);
+            a.start(atA);
+            Check.eventually(() -> receivedAtB.get() >= sessions, 30_000, "every session resent");
+            Check.that(a.toString().contains("dropped=0 reconnects=0"), "metrics " + a);
+            Check.equal(sessions, receivedAtB.get(), "sessions received");
+            a.close();
+            b.close();
+        });
+        System.exit(0); // The buses' reconnecting threads don't stop on their own
+    }
+
+    private static TcpBus bus(String nodeId, String nodes) {
+        System.setProperty("chat.cluster.nodeId", nodeId);
+        System.setProperty("chat.cluster.nodes", nodes);
+        return TcpBus.fromSystemProperties();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}